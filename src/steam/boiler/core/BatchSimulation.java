@@ -0,0 +1,387 @@
+package steam.boiler.core;
+
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import steam.boiler.model.PhysicalUnits;
+import steam.boiler.util.Mailbox;
+import steam.boiler.util.Mailbox.Message;
+import steam.boiler.util.Mailbox.MessageKind;
+import steam.boiler.util.SteamBoilerCharacteristics;
+import steam.boiler.util.UnboundedMailbox;
+
+/**
+ * Runs the controller against the physical units without any user interface,
+ * and as fast as possible. This is intended for long running (soak) jobs on
+ * machines without a display. Each tick can be written out as one line of a
+ * time series, and a summary is produced at the end.
+ *
+ * @author eliza
+ *
+ */
+public class BatchSimulation {
+    /**
+     * Time (in ms) between updates of the physical units.
+     */
+    public static final int GRANULARITY = 100;
+
+    /**
+     * A fault to be injected at a given time.
+     */
+    public static final class ScheduledFault {
+        public final long time;
+        public final HardwareFault fault;
+        public final int pumpNo;
+
+        /**
+         * Construct a scheduled fault.
+         *
+         * @param time   Time (in ms) at which to inject the fault.
+         * @param fault  The fault to inject.
+         * @param pumpNo The pump to inject it into, if relevant.
+         */
+        public ScheduledFault(long time, HardwareFault fault, int pumpNo) {
+            this.time = time;
+            this.fault = fault;
+            this.pumpNo = pumpNo;
+        }
+    }
+
+    private final SteamBoilerCharacteristics configuration;
+    private final MySteamBoilerController controller;
+    private final PhysicalUnits units;
+    private final List<ScheduledFault> faults;
+    private int nextFault = 0;
+
+    /**
+     * Total time (in ms) simulated so far.
+     */
+    private long time = 0;
+    private double level = 0;
+    private double levelReading = Double.NaN;
+    private double steamReading = Double.NaN;
+    private final boolean[] pumpStates;
+    private boolean emergencyStop = false;
+
+    /**
+     * Construct a simulation of a fresh boiler.
+     *
+     * @param configuration The boiler characteristics to use.
+     * @param faults        Faults to inject, ordered by time.
+     */
+    public BatchSimulation(SteamBoilerCharacteristics configuration, List<ScheduledFault> faults) {
+        this.configuration = configuration;
+        this.controller = new MySteamBoilerController(configuration);
+        this.units = new PhysicalUnits.Template(configuration).construct();
+        this.units.setMode(PhysicalUnits.Mode.WAITING);
+        this.faults = faults;
+        this.pumpStates = new boolean[configuration.getNumberOfPumps()];
+    }
+
+    /**
+     * Simulate a single tick, injecting any faults which are now due, updating
+     * the physical units and exchanging messages with the controller once.
+     */
+    public void tick() {
+        while (this.nextFault < this.faults.size()
+                && this.faults.get(this.nextFault).time <= this.time) {
+            ScheduledFault f = this.faults.get(this.nextFault++);
+            f.fault.inject(this.units, this.configuration, f.pumpNo);
+        }
+        int period = this.controller.getPeriod();
+        for (int elapsed = 0; elapsed < period; elapsed += GRANULARITY) {
+            this.units.clock(GRANULARITY);
+            if (elapsed == 0) {
+                exchange();
+            }
+        }
+        this.time += period;
+        this.level = this.units.getBoiler().getWaterLevel();
+    }
+
+    /**
+     * Transmit readings from the physical units to the controller, and apply its
+     * response.
+     */
+    private void exchange() {
+        Mailbox input = new UnboundedMailbox(100);
+        Mailbox output = new UnboundedMailbox(100);
+        this.units.transmit(input);
+        this.controller.clock(input, output);
+        this.units.receive(output);
+        this.levelReading = Double.NaN;
+        this.steamReading = Double.NaN;
+        for (int i = 0; i != input.size(); ++i) {
+            Message m = input.read(i);
+            if (m.getKind() == MessageKind.LEVEL_v) {
+                this.levelReading = m.getDoubleParameter();
+            } else if (m.getKind() == MessageKind.STEAM_v) {
+                this.steamReading = m.getDoubleParameter();
+            } else if (m.getKind() == MessageKind.PUMP_STATE_n_b
+                    && m.getIntegerParameter() < this.pumpStates.length) {
+                this.pumpStates[m.getIntegerParameter()] = m.getBooleanParameter();
+            }
+        }
+        for (int i = 0; i != output.size(); ++i) {
+            Message m = output.read(i);
+            if (m.getKind() == MessageKind.MODE_m
+                    && m.getModeParameter() == Mailbox.Mode.EMERGENCY_STOP) {
+                this.emergencyStop = true;
+            }
+        }
+    }
+
+    public long getTime() {
+        return this.time;
+    }
+
+    /**
+     * Get the time between controller clocks, which is the length of a tick.
+     *
+     * @return the controller's period (in ms)
+     */
+    public int getPeriod() {
+        return this.controller.getPeriod();
+    }
+
+    public double getLevel() {
+        return this.level;
+    }
+
+    public double getLevelReading() {
+        return this.levelReading;
+    }
+
+    public double getSteamReading() {
+        return this.steamReading;
+    }
+
+    public boolean getPumpState(int pumpNo) {
+        return this.pumpStates[pumpNo];
+    }
+
+    public String getStatusMessage() {
+        return this.controller.getStatusMessage();
+    }
+
+    public boolean isEmergencyStop() {
+        return this.emergencyStop;
+    }
+
+    public SteamBoilerCharacteristics getConfiguration() {
+        return this.configuration;
+    }
+
+    /**
+     * Run the simulation for a given amount of time, or until it emergency stops.
+     *
+     * @param duration Time (in ms) to run for.
+     * @param series   Stream to write the time series to, or null for none.
+     * @return the summary of the run
+     */
+    public Summary run(long duration, PrintStream series) {
+        Summary summary = new Summary();
+        if (series != null) {
+            series.println("time,mode,level,level_reading,steam_reading,pumps");
+        }
+        while (this.time < duration && !this.emergencyStop) {
+            tick();
+            summary.record(this);
+            if (series != null) {
+                StringBuilder pumps = new StringBuilder();
+                for (boolean p : this.pumpStates) {
+                    pumps.append(p ? '1' : '0');
+                }
+                series.println((this.time / 1000) + "," + getStatusMessage() + "," + this.level
+                        + "," + this.levelReading + "," + this.steamReading + "," + pumps);
+            }
+        }
+        return summary;
+    }
+
+    /**
+     * Summarises a run.
+     */
+    public static final class Summary {
+        private static final String[] MODES = { "WAITING", "READY", "NORMAL", "DEGRADED",
+            "RESCUE", "EMERGENCY_STOP" };
+        private int ticks = 0;
+        private long time = 0;
+        private String mode = "";
+        private double minLevel = Double.MAX_VALUE;
+        private double maxLevel = -Double.MAX_VALUE;
+        private int limitViolations = 0;
+        private boolean operational = false;
+        private final int[] ticksPerMode = new int[MODES.length];
+
+        private void record(BatchSimulation s) {
+            this.ticks++;
+            this.time = s.getTime();
+            this.mode = s.isEmergencyStop() ? "EMERGENCY_STOP" : s.getStatusMessage();
+            for (int i = 0; i != MODES.length; ++i) {
+                if (MODES[i].equals(this.mode)) {
+                    this.ticksPerMode[i]++;
+                }
+            }
+            // Limits only apply once the boiler has been filled
+            this.operational |= this.mode.equals("NORMAL");
+            if (this.operational) {
+                this.minLevel = Math.min(this.minLevel, s.getLevel());
+                this.maxLevel = Math.max(this.maxLevel, s.getLevel());
+                if (s.getLevel() < s.getConfiguration().getMinimalLimitLevel()
+                        || s.getLevel() > s.getConfiguration().getMaximalLimitLevel()) {
+                    this.limitViolations++;
+                }
+            }
+        }
+
+        public boolean isEmergencyStop() {
+            return this.mode.equals("EMERGENCY_STOP");
+        }
+
+        public int getLimitViolations() {
+            return this.limitViolations;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder r = new StringBuilder();
+            r.append("simulated " + (this.time / 1000) + "s in " + this.ticks + " ticks\n");
+            r.append("final mode " + this.mode + "\n");
+            if (this.operational) {
+                r.append("level " + this.minLevel + " .. " + this.maxLevel + ", "
+                        + this.limitViolations + " ticks outside limits\n");
+            }
+            for (int i = 0; i != MODES.length; ++i) {
+                if (this.ticksPerMode[i] > 0) {
+                    r.append(MODES[i] + " " + this.ticksPerMode[i] + " ticks\n");
+                }
+            }
+            return r.toString();
+        }
+    }
+
+    /**
+     * Load boiler characteristics. These are either a preset (<code>default</code>
+     * or <code>pumps=N</code>), or a properties file which can set
+     * <code>numberOfPumps</code>, <code>pumpCapacity</code> and
+     * <code>pumpCapacity.N</code> on top of the default characteristics.
+     *
+     * @param name The preset or file name.
+     * @return the characteristics
+     * @throws IOException if the file could not be read
+     */
+    public static SteamBoilerCharacteristics loadCharacteristics(String name) throws IOException {
+        SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+        if (name.equals("default")) {
+            return config;
+        } else if (name.startsWith("pumps=")) {
+            int n = Integer.parseInt(name.substring(6));
+            return config.setNumberOfPumps(n, config.getPumpCapacity(0));
+        }
+        Properties properties = new Properties();
+        try (InputStream in = new FileInputStream(name)) {
+            properties.load(in);
+        } catch (FileNotFoundException e) {
+            throw new IOException("unknown preset or file: " + name, e);
+        }
+        double capacity = Double.parseDouble(
+                properties.getProperty("pumpCapacity", Double.toString(config.getPumpCapacity(0))));
+        int n = Integer.parseInt(properties.getProperty("numberOfPumps",
+                Integer.toString(config.getNumberOfPumps())));
+        config = config.setNumberOfPumps(n, capacity);
+        for (int i = 0; i != n; ++i) {
+            String c = properties.getProperty("pumpCapacity." + i);
+            if (c != null) {
+                config = config.setPumpCapacity(i, Double.parseDouble(c));
+            }
+        }
+        return config;
+    }
+
+    /**
+     * Parse a fault schedule. This is a comma-separated list of
+     * <code>TIME:FAULT</code> or <code>TIME:FAULT/PUMP</code> entries, where time
+     * is given in seconds, such as <code>120:STEAM_STUCK_ZERO,300:PUMP_STUCK_CLOSED/2</code>.
+     *
+     * @param schedule      The schedule to parse.
+     * @param configuration The boiler characteristics, which give the valid pump
+     *                      numbers.
+     * @return the faults, ordered by time
+     * @throws IllegalArgumentException if an entry is malformed, or names an
+     *                                  unknown fault or pump
+     */
+    public static List<ScheduledFault> parseSchedule(String schedule,
+            SteamBoilerCharacteristics configuration) {
+        List<ScheduledFault> faults = new ArrayList<>();
+        for (String entry : schedule.split(",")) {
+            if (entry.isEmpty()) {
+                continue;
+            }
+            int colon = entry.indexOf(':');
+            int slash = entry.indexOf('/');
+            if (colon < 0) {
+                throw new IllegalArgumentException("invalid fault: " + entry);
+            }
+            long time = toMillis(Long.parseLong(entry.substring(0, colon)));
+            HardwareFault fault = HardwareFault
+                    .valueOf(entry.substring(colon + 1, slash < 0 ? entry.length() : slash));
+            int pumpNo = slash < 0 ? 0 : Integer.parseInt(entry.substring(slash + 1));
+            if (fault.isPerPump()
+                    && (pumpNo < 0 || pumpNo >= configuration.getNumberOfPumps())) {
+                throw new IllegalArgumentException("invalid pump: " + entry);
+            }
+            faults.add(new ScheduledFault(time, fault, pumpNo));
+        }
+        faults.sort((a, b) -> Long.compare(a.time, b.time));
+        return faults;
+    }
+
+    /**
+     * Convert a non-negative number of seconds to milliseconds.
+     *
+     * @throws IllegalArgumentException if it is negative or too large
+     */
+    private static long toMillis(long seconds) {
+        if (seconds < 0 || seconds > Long.MAX_VALUE / 1000) {
+            throw new IllegalArgumentException("invalid time: " + seconds);
+        }
+        return seconds * 1000;
+    }
+
+    /**
+     * Run a simulation from the command line. The arguments are
+     * <code>[characteristics] [duration in seconds] [fault schedule]</code>. The
+     * time series is written to standard output and the summary to standard
+     * error. The exit status is non-zero if the run emergency stopped or the water
+     * left the limit levels.
+     *
+     * @param args Command-line arguments.
+     */
+    public static void main(String[] args) {
+        try {
+            SteamBoilerCharacteristics config = loadCharacteristics(
+                    args.length > 0 ? args[0] : "default");
+            long duration = toMillis(args.length > 1 ? Long.parseLong(args[1]) : 3600);
+            List<ScheduledFault> faults = args.length > 2 ? parseSchedule(args[2], config)
+                    : new ArrayList<>();
+            BatchSimulation simulation = new BatchSimulation(config, faults);
+            PrintStream series = System.out;
+            Summary summary = simulation.run(duration, series);
+            series.flush();
+            System.err.print(summary);
+            System.exit(summary.isEmergencyStop() || summary.getLimitViolations() > 0 ? 1 : 0);
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(
+                    "usage: Simulation [default|pumps=N|FILE] [SECONDS] [TIME:FAULT[/PUMP],...]");
+            System.exit(2);
+        }
+    }
+}
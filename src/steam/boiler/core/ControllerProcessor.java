@@ -0,0 +1,287 @@
+package steam.boiler.core;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.eclipse.jdt.annotation.Nullable;
+
+import steam.boiler.model.SteamBoilerController;
+import steam.boiler.util.Mailbox;
+import steam.boiler.util.UnboundedMailbox;
+
+/**
+ * Runs a controller as a stage of a reactive stream, so that it can be driven by
+ * a stream of incoming mailboxes (one per clock) rather than by calling
+ * {@link SteamBoilerController#clock} directly. Each mailbox is decoded,
+ * diagnosed, decided on and encoded:
+ *
+ * <ol>
+ * <li>decode: the messages are copied as they arrive, so that the publisher is
+ * free to reuse its mailbox, and are put in the input buffer;</li>
+ * <li>diagnose and decide: the controller is clocked with them, which checks
+ * the physical units and chooses the mode and pump commands. These are the
+ * controller's own clock, since each decision depends on the state left by
+ * the last one, so they are run in order for one mailbox at a time;</li>
+ * <li>encode: the response is put in a fresh mailbox and published to every
+ * subscriber.</li>
+ * </ol>
+ *
+ * <p>
+ * Both ends are bounded. No more incoming mailboxes are requested than there
+ * is room for in the input buffer, and one more is only requested once one has
+ * been published. Publishing waits whilst any subscriber's buffer is full, so
+ * a slow subscriber holds back the clocks and, in turn, the publisher, rather
+ * than letting a queue grow. The wait does not hold a thread of the executor:
+ * draining stops with the response held back, and is retried on the executor
+ * a millisecond later. The same executor can therefore run the clocks and
+ * deliver to subscribers, even if it only has one thread or is saturated.
+ * For a fleet, each boiler has its own processor. Merging their responses is
+ * then a matter of one subscriber subscribing to several processors, and
+ * splitting them of several subscribers subscribing to one.
+ * </p>
+ *
+ * @author eliza
+ *
+ */
+public class ControllerProcessor extends SubmissionPublisher<Mailbox>
+        implements Flow.Processor<Mailbox, Mailbox> {
+    /**
+     * Time (in ns) between checks for room in the subscribers' buffers.
+     */
+    private static final long WAIT = 1000000;
+
+    private final SteamBoilerController controller;
+    private final Executor executor;
+    private final int bufferSize;
+
+    /**
+     * Runs a task on the executor after {@link #WAIT}, without holding one of
+     * its threads in the meantime.
+     */
+    private final Executor retry;
+
+    /**
+     * Response waiting for room in the subscribers' buffers, or null if none.
+     * This is only accessed by the task draining the input buffer.
+     */
+    private @Nullable Mailbox pending;
+
+    /**
+     * Decoded mailboxes waiting to be clocked.
+     */
+    private final ArrayBlockingQueue<Mailbox> buffer;
+
+    /**
+     * Whether a task is draining the input buffer, so that only one ever clocks
+     * the controller.
+     */
+    private final AtomicBoolean draining = new AtomicBoolean();
+
+    private @Nullable Flow.Subscription subscription;
+    private volatile boolean done = false;
+    private volatile @Nullable Throwable failure;
+    private volatile long processed = 0;
+
+    /**
+     * Construct a processor around a controller.
+     *
+     * @param controller The controller to clock.
+     * @param executor   Runs the clocks, and delivers responses to subscribers.
+     *                   Any number of threads will do.
+     * @param bufferSize Number of mailboxes which can wait at either end.
+     */
+    public ControllerProcessor(SteamBoilerController controller, Executor executor,
+            int bufferSize) {
+        super(executor, bufferSize);
+        if (bufferSize <= 0) {
+            throw new IllegalArgumentException("buffer size must be positive");
+        }
+        this.controller = controller;
+        this.executor = executor;
+        this.retry = CompletableFuture.delayedExecutor(WAIT, TimeUnit.NANOSECONDS, executor);
+        this.bufferSize = bufferSize;
+        this.buffer = new ArrayBlockingQueue<>(bufferSize);
+    }
+
+    /**
+     * Get the number of incoming mailboxes which have been clocked.
+     *
+     * @return number of clocks
+     */
+    public long getProcessed() {
+        return this.processed;
+    }
+
+    /**
+     * Get the number of mailboxes which can wait in the input buffer, which is
+     * the most ever requested ahead of being clocked.
+     *
+     * @return input buffer size
+     */
+    public int getBufferSize() {
+        return this.bufferSize;
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription s) {
+        if (this.subscription != null) {
+            s.cancel();
+            return;
+        }
+        this.subscription = s;
+        s.request(this.bufferSize);
+    }
+
+    @Override
+    public void onNext(Mailbox item) {
+        if (this.done) {
+            return;
+        }
+        if (!this.buffer.offer(decode(item))) {
+            // More was sent than was requested
+            fail(new IllegalStateException("mailbox sent without demand"));
+            return;
+        }
+        schedule();
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        this.failure = throwable;
+        this.done = true;
+        schedule();
+    }
+
+    @Override
+    public void onComplete() {
+        this.done = true;
+        schedule();
+    }
+
+    /**
+     * Copy the messages from an incoming mailbox.
+     */
+    private static Mailbox decode(Mailbox incoming) {
+        Mailbox copy = new UnboundedMailbox(incoming.size());
+        for (int i = 0; i != incoming.size(); ++i) {
+            copy.send(incoming.read(i));
+        }
+        return copy;
+    }
+
+    /**
+     * Start draining the input buffer, unless a task is already doing so.
+     */
+    private void schedule() {
+        if (this.draining.compareAndSet(false, true)) {
+            this.executor.execute(this::drain);
+        }
+    }
+
+    /**
+     * Clock the controller with every mailbox in the input buffer, and finish
+     * once the publisher is done and the buffer is empty. If there is no room for
+     * a response, then this stops and is retried later, still holding the right
+     * to drain.
+     */
+    private void drain() {
+        Mailbox held = this.pending;
+        if (held != null) {
+            this.pending = null;
+            if (!publish(held)) {
+                return;
+            }
+        }
+        for (;;) {
+            Mailbox incoming;
+            while ((incoming = this.buffer.poll()) != null) {
+                if (!process(incoming)) {
+                    return;
+                }
+            }
+            if (this.done && this.buffer.isEmpty()) {
+                // Leave draining set, so that nothing runs after closing
+                Throwable t = this.failure;
+                if (t != null) {
+                    closeExceptionally(t);
+                } else {
+                    close();
+                }
+                return;
+            }
+            this.draining.set(false);
+            // Anything which arrived before this was cleared is drained here,
+            // and anything after is drained by the task scheduled for it.
+            if ((this.buffer.isEmpty() && !this.done)
+                    || !this.draining.compareAndSet(false, true)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Clock the controller with one mailbox and publish the response.
+     *
+     * @return false if draining must stop, because the controller failed, the
+     *         response is waiting for room, or the stream was closed
+     */
+    private boolean process(Mailbox incoming) {
+        Mailbox outgoing = new UnboundedMailbox(100);
+        try {
+            this.controller.clock(incoming, outgoing);
+        } catch (RuntimeException e) {
+            fail(e);
+            return false;
+        }
+        this.processed++;
+        return publish(outgoing);
+    }
+
+    /**
+     * Publish a response and request the next mailbox, or hold the response back
+     * and retry draining later if any subscriber's buffer is full. This checks
+     * for room rather than letting submit wait, since submit holds a thread of
+     * the executor (and a lock which would stop this being closed) whilst it
+     * waits.
+     *
+     * @return false if draining must stop
+     */
+    private boolean publish(Mailbox outgoing) {
+        if (isClosed()) {
+            return false;
+        } else if (estimateMaximumLag() >= getMaxBufferCapacity()) {
+            this.pending = outgoing;
+            this.retry.execute(this::drain);
+            return false;
+        }
+        try {
+            submit(outgoing);
+        } catch (IllegalStateException e) {
+            // Closed whilst this clock was running
+            return false;
+        }
+        Flow.Subscription s = this.subscription;
+        if (s != null && !this.done) {
+            s.request(1);
+        }
+        return true;
+    }
+
+    /**
+     * Cancel the incoming stream and end the outgoing one with an error.
+     */
+    private void fail(Throwable t) {
+        this.done = true;
+        this.buffer.clear();
+        Flow.Subscription s = this.subscription;
+        if (s != null) {
+            s.cancel();
+        }
+        closeExceptionally(t);
+    }
+}
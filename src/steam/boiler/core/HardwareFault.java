@@ -0,0 +1,212 @@
+package steam.boiler.core;
+
+import steam.boiler.model.LevelSensorModels;
+import steam.boiler.model.PhysicalUnits;
+import steam.boiler.model.PumpControllerModels;
+import steam.boiler.model.PumpModels;
+import steam.boiler.model.SteamBoilerModels;
+import steam.boiler.model.SteamSensorModels;
+import steam.boiler.util.SteamBoilerCharacteristics;
+
+/**
+ * The hardware faults which can be injected into a set of physical units, such
+ * as by a batch simulation or a fault campaign. Each fault swaps one component
+ * of the physical units for a faulty model, and records whether the controller
+ * is expected to survive it (i.e. carry on in degraded or rescue mode) or
+ * whether an emergency stop is the correct response.
+ *
+ * @author eliza
+ *
+ */
+public enum HardwareFault {
+    LEVEL_STUCK_NEGATIVE(Component.LEVEL_SENSOR, true),
+    LEVEL_STUCK_CAPACITY(Component.LEVEL_SENSOR, true),
+    LEVEL_OFFSET_TEN(Component.LEVEL_SENSOR, true),
+    LEVEL_OFFSET_NEGATIVE_TEN(Component.LEVEL_SENSOR, true),
+    LEVEL_OFFSET_ONE_HUNDRED(Component.LEVEL_SENSOR, true),
+    LEVEL_OFFSET_NEGATIVE_ONE_HUNDRED(Component.LEVEL_SENSOR, true),
+    LEVEL_TX_FAILURE(Component.LEVEL_SENSOR, false),
+    STEAM_STUCK_NEGATIVE(Component.STEAM_SENSOR, true),
+    STEAM_STUCK_ZERO(Component.STEAM_SENSOR, true),
+    STEAM_STUCK_CAPACITY(Component.STEAM_SENSOR, true),
+    STEAM_TX_FAILURE(Component.STEAM_SENSOR, false),
+    PUMP_STUCK_CLOSED(Component.PUMP, true),
+    PUMP_STICKS_OPEN(Component.PUMP, true),
+    PUMP_TX_FAILURE(Component.PUMP, false),
+    PUMP_CONTROLLER_STUCK_OFF(Component.PUMP_CONTROLLER, true),
+    PUMP_CONTROLLER_TX_FAILURE(Component.PUMP_CONTROLLER, false),
+    VALVE_STUCK_OPEN(Component.STEAM_BOILER, false);
+
+    /**
+     * The physical component replaced by a fault.
+     */
+    public enum Component {
+        LEVEL_SENSOR, STEAM_SENSOR, PUMP, PUMP_CONTROLLER, STEAM_BOILER
+    }
+
+    private final Component component;
+    private final boolean tolerable;
+
+    private HardwareFault(Component component, boolean tolerable) {
+        this.component = component;
+        this.tolerable = tolerable;
+    }
+
+    /**
+     * Get the component which this fault replaces.
+     *
+     * @return the faulty component
+     */
+    public Component getComponent() {
+        return this.component;
+    }
+
+    /**
+     * Check whether the controller should survive this fault on its own,
+     * without an emergency stop.
+     *
+     * @return true if an emergency stop is not an acceptable response
+     */
+    public boolean isTolerable() {
+        return this.tolerable;
+    }
+
+    /**
+     * Check whether this fault is applied to an individual pump (or pump
+     * controller).
+     *
+     * @return true if the fault needs a pump number
+     */
+    public boolean isPerPump() {
+        return this.component == Component.PUMP || this.component == Component.PUMP_CONTROLLER;
+    }
+
+    /**
+     * Get every fault which replaces the given component.
+     *
+     * @param component The component of interest.
+     * @return the matching faults, in declaration order
+     */
+    public static HardwareFault[] of(Component component) {
+        int count = 0;
+        for (HardwareFault f : values()) {
+            if (f.component == component) {
+                count++;
+            }
+        }
+        HardwareFault[] matches = new HardwareFault[count];
+        int index = 0;
+        for (HardwareFault f : values()) {
+            if (f.component == component) {
+                matches[index++] = f;
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * Inject this fault into a set of physical units by replacing the relevant
+     * component with a faulty model.
+     *
+     * @param units  The physical units to break.
+     * @param config The boiler characteristics the units were built from.
+     * @param pumpNo The pump to break, ignored unless {@link #isPerPump()}.
+     */
+    public void inject(PhysicalUnits units, SteamBoilerCharacteristics config, int pumpNo) {
+        switch (this) {
+            case LEVEL_STUCK_NEGATIVE:
+                units.setLevelSensor(new LevelSensorModels.StuckNegativeOne(units));
+                break;
+            case LEVEL_STUCK_CAPACITY:
+                units.setLevelSensor(new LevelSensorModels.Stuck(units, config.getCapacity()));
+                break;
+            case LEVEL_OFFSET_TEN:
+                units.setLevelSensor(new LevelSensorModels.OffsetTen(units));
+                break;
+            case LEVEL_OFFSET_NEGATIVE_TEN:
+                units.setLevelSensor(new LevelSensorModels.OffsetNegativeTen(units));
+                break;
+            case LEVEL_OFFSET_ONE_HUNDRED:
+                units.setLevelSensor(new LevelSensorModels.OffsetOneHundred(units));
+                break;
+            case LEVEL_OFFSET_NEGATIVE_ONE_HUNDRED:
+                units.setLevelSensor(new LevelSensorModels.OffsetNegativeOneHundred(units));
+                break;
+            case LEVEL_TX_FAILURE:
+                units.setLevelSensor(new LevelSensorModels.TxFailure(units));
+                break;
+            case STEAM_STUCK_NEGATIVE:
+                units.setSteamSensor(new SteamSensorModels.StuckNegativeOne(units));
+                break;
+            case STEAM_STUCK_ZERO:
+                units.setSteamSensor(new SteamSensorModels.StuckZero(units));
+                break;
+            case STEAM_STUCK_CAPACITY:
+                units.setSteamSensor(new SteamSensorModels.Stuck(units, config.getCapacity()));
+                break;
+            case STEAM_TX_FAILURE:
+                units.setSteamSensor(new SteamSensorModels.TxFailure(units));
+                break;
+            case PUMP_STUCK_CLOSED:
+                units.setPump(pumpNo,
+                        new PumpModels.StuckClosed(pumpNo, config.getPumpCapacity(pumpNo), units));
+                break;
+            case PUMP_STICKS_OPEN:
+                units.setPump(pumpNo,
+                        new PumpModels.SticksOpen(pumpNo, config.getPumpCapacity(pumpNo), units));
+                units.getPump(pumpNo).open();
+                break;
+            case PUMP_TX_FAILURE:
+                units.setPump(pumpNo,
+                        new PumpModels.TxFailureAll(pumpNo, config.getPumpCapacity(pumpNo), units));
+                break;
+            case PUMP_CONTROLLER_STUCK_OFF:
+                units.setPumpController(pumpNo, new PumpControllerModels.StuckOff(pumpNo, units));
+                break;
+            case PUMP_CONTROLLER_TX_FAILURE:
+                units.setPumpController(pumpNo, new PumpControllerModels.TxFailure(pumpNo, units));
+                break;
+            case VALVE_STUCK_OPEN:
+                units.setBoiler(new SteamBoilerModels.ValveStuck(true, config.getCapacity(), 20.0,
+                        (Integer elapsed) -> SteamBoilerModels.linearSteamConversionModel(elapsed,
+                                60000, config.getMaximualSteamRate())));
+                break;
+            default:
+                throw new IllegalArgumentException("invalid fault");
+        }
+    }
+
+    /**
+     * Repair this fault by putting back an ideal model of the component it
+     * replaced, and reporting that component as repaired. The steam boiler
+     * itself cannot be replaced without losing its water, so a fault in it
+     * cannot be repaired.
+     *
+     * @param units  The physical units to repair.
+     * @param config The boiler characteristics the units were built from.
+     * @param pumpNo The pump to repair, ignored unless {@link #isPerPump()}.
+     */
+    public void repair(PhysicalUnits units, SteamBoilerCharacteristics config, int pumpNo) {
+        switch (this.component) {
+            case LEVEL_SENSOR:
+                units.setLevelSensor(new LevelSensorModels.Ideal(units));
+                units.setLevelSensorStatus(PhysicalUnits.ComponentStatus.REPAIRED);
+                break;
+            case STEAM_SENSOR:
+                units.setSteamSensor(new SteamSensorModels.Ideal(units));
+                units.setSteamSensorStatus(PhysicalUnits.ComponentStatus.REPAIRED);
+                break;
+            case PUMP:
+                units.setPump(pumpNo,
+                        new PumpModels.Ideal(pumpNo, config.getPumpCapacity(pumpNo), units));
+                units.setPumpStatus(pumpNo, PhysicalUnits.ComponentStatus.REPAIRED);
+                break;
+            case PUMP_CONTROLLER:
+                units.setPumpController(pumpNo, new PumpControllerModels.Ideal(pumpNo, units));
+                units.setPumpControllerStatus(pumpNo, PhysicalUnits.ComponentStatus.REPAIRED);
+                break;
+            default:
+                throw new IllegalArgumentException("cannot repair " + this);
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package steam.boiler.core;
+
+/**
+ * Detects a failing water level sensor by comparing each reading against the
+ * level predicted from the previous reading, the water pumped in and the steam
+ * leaving. The difference between the two (the residual) is accumulated in a
+ * two-sided CUSUM, which ignores residuals smaller than a given slack but adds
+ * up larger ones. The slack is given as a rate, so that the same drift is
+ * ignored whatever the time between readings. The sensor is considered failed
+ * once either sum passes a threshold. This catches slow drift, which a check on
+ * each reading alone misses, whilst a single large jump is still caught straight
+ * away. Drift slower than the slack is never caught. Only a constant amount of
+ * state is kept, and each reading takes constant time.
+ *
+ * @author eliza
+ *
+ */
+public class LevelAnomalyDetector {
+    private final double period;
+    private final double slack;
+    private final double threshold;
+
+    /**
+     * The previous level reading, or NaN if there was none.
+     */
+    private double previous = Double.NaN;
+    private double residual = 0;
+    private double high = 0;
+    private double low = 0;
+
+    /**
+     * Construct a detector.
+     *
+     * @param period    Time (in seconds) between readings.
+     * @param slack     Rate of drift (in litres/sec) in the residual which is
+     *                  ignored.
+     * @param threshold Accumulated residual (in litres) at which the sensor is
+     *                  considered failed.
+     */
+    public LevelAnomalyDetector(double period, double slack, double threshold) {
+        this.period = period;
+        this.slack = period * slack;
+        this.threshold = threshold;
+    }
+
+    /**
+     * Construct a copy of another detector, in the same state.
+     *
+     * @param other The detector to copy.
+     */
+    public LevelAnomalyDetector(LevelAnomalyDetector other) {
+        this.period = other.period;
+        this.slack = other.slack;
+        this.threshold = other.threshold;
+        this.previous = other.previous;
+        this.residual = other.residual;
+        this.high = other.high;
+        this.low = other.low;
+    }
+
+    /**
+     * Process a level reading.
+     *
+     * @param level  The level reading.
+     * @param inflow Rate (in litres/sec) at which water was pumped in since the
+     *               previous reading.
+     * @param steam  Rate (in litres/sec) at which steam was leaving.
+     * @return true if the sensor is considered failed
+     */
+    public boolean update(double level, double inflow, double steam) {
+        if (Double.isNaN(this.previous)) {
+            this.previous = level;
+            return false;
+        }
+        double predicted = this.previous + (this.period * (inflow - steam));
+        this.residual = level - predicted;
+        this.high = Math.max(0, this.high + this.residual - this.slack);
+        this.low = Math.max(0, this.low - this.residual - this.slack);
+        this.previous = level;
+        return isAnomalous();
+    }
+
+    /**
+     * Check whether the accumulated residual has passed the threshold.
+     *
+     * @return true if the sensor is considered failed
+     */
+    public boolean isAnomalous() {
+        return this.high > this.threshold || this.low > this.threshold;
+    }
+
+    /**
+     * Get the residual of the most recent reading.
+     *
+     * @return the residual (in litres)
+     */
+    public double getResidual() {
+        return this.residual;
+    }
+
+    /**
+     * Forget all previous readings, such as when the sensor has been repaired.
+     */
+    public void reset() {
+        this.previous = Double.NaN;
+        this.residual = 0;
+        this.high = 0;
+        this.low = 0;
+    }
+}
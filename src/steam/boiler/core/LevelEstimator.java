@@ -0,0 +1,115 @@
+package steam.boiler.core;
+
+/**
+ * Estimates the water level, along with the variance of the estimate, using a
+ * Kalman filter. Since the only state is the level itself, the filter is a
+ * single value and its variance rather than matrices. On each clock the level
+ * is predicted from the water pumped in and the steam leaving, and the variance
+ * grows with the uncertainty in both. Whenever a trusted level reading is
+ * available it is then combined with the prediction, weighted by their
+ * variances. Without readings (i.e. in rescue mode) the estimate carries on
+ * from the predictions alone, becoming less certain on each clock.
+ *
+ * @author eliza
+ *
+ */
+public class LevelEstimator {
+    private final double period;
+    private final double readingVariance;
+
+    /**
+     * The estimated level, or NaN before the first reading.
+     */
+    private double level = Double.NaN;
+    private double variance = 0;
+
+    /**
+     * Construct an estimator.
+     *
+     * @param period           Time (in seconds) between clocks.
+     * @param readingDeviation Standard deviation (in litres) of a level reading.
+     */
+    public LevelEstimator(double period, double readingDeviation) {
+        this.period = period;
+        this.readingVariance = readingDeviation * readingDeviation;
+    }
+
+    /**
+     * Construct a copy of another estimator, in the same state.
+     *
+     * @param other The estimator to copy.
+     */
+    public LevelEstimator(LevelEstimator other) {
+        this.period = other.period;
+        this.readingVariance = other.readingVariance;
+        this.level = other.level;
+        this.variance = other.variance;
+    }
+
+    /**
+     * Predict the level at the end of a clock.
+     *
+     * @param inflow         Rate (in litres/sec) at which water was pumped in.
+     * @param inflowVariance Variance of the inflow.
+     * @param steam          Rate (in litres/sec) at which steam was leaving.
+     * @param steamVariance  Variance of the steam rate.
+     */
+    public void predict(double inflow, double inflowVariance, double steam, double steamVariance) {
+        this.level += this.period * (inflow - steam);
+        this.variance += this.period * this.period * (inflowVariance + steamVariance);
+    }
+
+    /**
+     * Combine a trusted level reading with the prediction.
+     *
+     * @param reading The level reading.
+     */
+    public void measure(double reading) {
+        if (Double.isNaN(this.level)) {
+            this.level = reading;
+            this.variance = this.readingVariance;
+            return;
+        }
+        double gain = this.variance / (this.variance + this.readingVariance);
+        this.level += gain * (reading - this.level);
+        this.variance *= 1 - gain;
+    }
+
+    /**
+     * Start again from a given estimate, such as one restored from a checkpoint.
+     *
+     * @param level    The estimated level, or NaN if there is none.
+     * @param variance The variance of the estimate.
+     */
+    public void restore(double level, double variance) {
+        this.level = level;
+        this.variance = variance;
+    }
+
+    /**
+     * Get the estimated level.
+     *
+     * @return the level, or NaN before the first reading
+     */
+    public double getLevel() {
+        return this.level;
+    }
+
+    /**
+     * Get the variance of the estimated level.
+     *
+     * @return the variance (in litres squared)
+     */
+    public double getVariance() {
+        return this.variance;
+    }
+
+    /**
+     * Get the standard deviation of the estimated level.
+     *
+     * @return the standard deviation (in litres)
+     */
+    public double getDeviation() {
+        return Math.sqrt(this.variance);
+    }
+}
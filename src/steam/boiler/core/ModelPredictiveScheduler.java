@@ -0,0 +1,433 @@
+package steam.boiler.core;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import steam.boiler.util.SteamBoilerCharacteristics;
+
+/**
+ * Chooses how many pumps to turn on by simulating a number of candidate pump
+ * schedules a few clocks ahead, and picking the one which scores best. Each
+ * candidate turns on a given number of pumps for a given number of clocks, and
+ * after that turns on whichever number of pumps brings the level closest to the
+ * middle of the normal range on each clock. The number of pumps tried on the
+ * first clock ranges either side of the number currently on, and the number of
+ * clocks they are held for doubles from one up to the whole horizon.
+ *
+ * <p>
+ * The boiler is modelled by the water pumped in less the steam leaving, where
+ * the steam follows the forecast along with its bounds. A candidate scores
+ * worse the further the forecast level strays from the middle of the normal
+ * range, the more often the bounds come within the margin of either limit, and
+ * the more pumps it switches. Only the first clock of the best schedule is
+ * used, since everything is planned again on the next clock.
+ * </p>
+ *
+ * <p>
+ * The candidates are split into slices, each with its own scratch buffers, and
+ * the slices are evaluated in parallel on a pool owned by the scheduler. Every
+ * buffer is allocated on construction, so scheduling allocates nothing. A
+ * scheduler must only be used by one controller at a time.
+ * </p>
+ *
+ * @author eliza
+ *
+ */
+public class ModelPredictiveScheduler implements AutoCloseable {
+    /**
+     * Added to the score for each clock on which the level could come within the
+     * margin of a limit, so that any schedule which avoids this is preferred.
+     */
+    private static final double RISK_COST = 1000;
+
+    /**
+     * Added to the score for each pump switched on or off, relative to a clock
+     * spent at the edge of the normal range.
+     */
+    private static final double SWITCH_COST = 0.05;
+
+    private final double period;
+    private final int horizon;
+    private final int width;
+    private final double maximalSteamRate;
+    private final double lowerLimit;
+    private final double upperLimit;
+    private final double midPoint;
+    private final double halfBand;
+    private final double[] pumpCapacities;
+
+    /**
+     * Number of clocks for which the first number of pumps is held.
+     */
+    private final int[] holds;
+
+    /**
+     * Combined flow for each number of pumps on, allowing for the stuck pumps.
+     */
+    private final double[] flow;
+
+    /**
+     * Expected steam rate on each clock of the horizon, along with its bounds.
+     */
+    private final double[] steam;
+    private final double[] steamLow;
+    private final double[] steamHigh;
+
+    /**
+     * Inputs to the candidates on this clock.
+     */
+    private double level;
+    private int current;
+    private int first;
+    private int last;
+
+    private final Slice[] slices;
+    private final Evaluation evaluation;
+    private final ForkJoinPool pool;
+
+    /**
+     * The schedule chosen on the last clock, and the level forecast by it.
+     */
+    private int bestFirst;
+    private int bestHold;
+    private final double[] bestLevels;
+
+    /**
+     * Construct a scheduler.
+     *
+     * @param configuration The boiler characteristics to be used.
+     * @param period        Time (in ms) between clocks.
+     * @param horizon       Number of clocks to simulate ahead.
+     * @param width         Largest change in the number of pumps tried on the
+     *                      first clock.
+     * @param parallelism   Number of slices evaluated in parallel, where one
+     *                      evaluates every candidate on the calling thread.
+     */
+    public ModelPredictiveScheduler(SteamBoilerCharacteristics configuration, int period,
+            int horizon, int width, int parallelism) {
+        if (horizon < 1 || width < 0 || parallelism < 1) {
+            throw new IllegalArgumentException("invalid scheduler parameters");
+        }
+        int pumps = configuration.getNumberOfPumps();
+        this.period = period / 1000.0;
+        this.horizon = horizon;
+        this.width = width;
+        this.maximalSteamRate = configuration.getMaximualSteamRate();
+        double margin = (configuration.getMaximalLimitLevel()
+                - configuration.getMaximalNormalLevel()) / 4;
+        this.lowerLimit = configuration.getMinimalLimitLevel() + margin;
+        this.upperLimit = configuration.getMaximalLimitLevel() - margin;
+        this.halfBand = (configuration.getMaximalNormalLevel()
+                - configuration.getMinimalNormalLevel()) / 2;
+        this.midPoint = configuration.getMinimalNormalLevel() + this.halfBand;
+        this.pumpCapacities = new double[pumps];
+        for (int i = 0; i < pumps; i++) {
+            this.pumpCapacities[i] = configuration.getPumpCapacity(i);
+        }
+        int n = 1;
+        for (int d = 2; d < horizon; d *= 2) {
+            n++;
+        }
+        this.holds = new int[horizon > 1 ? n + 1 : 1];
+        for (int i = 0, d = 1; d < horizon; i++, d *= 2) {
+            this.holds[i] = d;
+        }
+        this.holds[this.holds.length - 1] = horizon;
+        this.flow = new double[pumps + 1];
+        this.steam = new double[horizon];
+        this.steamLow = new double[horizon];
+        this.steamHigh = new double[horizon];
+        this.bestLevels = new double[horizon];
+        this.slices = new Slice[parallelism];
+        for (int i = 0; i < parallelism; i++) {
+            this.slices[i] = new Slice();
+        }
+        this.evaluation = new Evaluation();
+        this.pool = parallelism > 1 ? new ForkJoinPool(parallelism) : null;
+    }
+
+    /**
+     * Get the number of candidates tried for each number of pumps on the first
+     * clock.
+     *
+     * @return number of hold lengths
+     */
+    public int getHolds() {
+        return this.holds.length;
+    }
+
+    /**
+     * Get the number of clocks simulated ahead.
+     *
+     * @return the horizon
+     */
+    public int getHorizon() {
+        return this.horizon;
+    }
+
+    /**
+     * Choose how many pumps to turn on for the next clock.
+     *
+     * @param level      The current (or estimated) level.
+     * @param steamRate  The current steam rate, which is only used if there is
+     *                   no forecast.
+     * @param forecaster Forecast of the steam rate.
+     * @param failures   Pumps which are out of service.
+     * @param open       Pumps which were turned on by the last clock.
+     * @return the number of pumps to have on, including any stuck open
+     */
+    public int schedule(double level, double steamRate, SteamForecaster forecaster,
+            PumpFailures failures, boolean[] open) {
+        prepareFlow(failures, open);
+        prepareSteam(steamRate, forecaster);
+        this.level = level;
+        int lowest = Math.max(this.first, this.current - this.width);
+        int highest = Math.min(this.last, this.current + this.width);
+        int candidates = (highest - lowest + 1) * this.holds.length;
+        int per = (candidates + this.slices.length - 1) / this.slices.length;
+        for (int i = 0; i < this.slices.length; i++) {
+            Slice s = this.slices[i];
+            s.lowest = lowest;
+            s.from = Math.min(candidates, i * per);
+            s.to = Math.min(candidates, s.from + per);
+        }
+        if (this.pool == null) {
+            this.slices[0].evaluate();
+        } else {
+            this.evaluation.reinitialize();
+            this.pool.invoke(this.evaluation);
+        }
+        // Ties go to the earliest candidate, whichever slice it was in
+        Slice best = this.slices[0];
+        for (int i = 1; i < this.slices.length; i++) {
+            Slice s = this.slices[i];
+            if (s.bestScore < best.bestScore) {
+                best = s;
+            }
+        }
+        this.bestFirst = best.bestFirst;
+        this.bestHold = best.bestHold;
+        System.arraycopy(best.bestLevels, 0, this.bestLevels, 0, this.horizon);
+        return this.bestFirst;
+    }
+
+    /**
+     * Work out the flow for each number of pumps on, in the order in which
+     * {@link MySteamBoilerController#turnOnPumps(int)} opens them, along with the
+     * number currently on. Pumps stuck open are always on, and those stuck closed
+     * never are.
+     */
+    private void prepareFlow(PumpFailures failures, boolean[] open) {
+        double f = 0;
+        int n = 0;
+        for (int i = 0; i < this.pumpCapacities.length; i++) {
+            if (failures.isStuckOpen(i)) {
+                f += this.pumpCapacities[i];
+                n++;
+            }
+        }
+        for (int i = 0; i <= n; i++) {
+            this.flow[i] = f;
+        }
+        this.first = n;
+        int on = n;
+        for (int i = 0; i < this.pumpCapacities.length; i++) {
+            if (!failures.isStuck(i)) {
+                f += this.pumpCapacities[i];
+                n++;
+                this.flow[n] = f;
+                if (open[i]) {
+                    on++;
+                }
+            }
+        }
+        for (int i = n + 1; i < this.flow.length; i++) {
+            this.flow[i] = f;
+        }
+        this.last = n;
+        this.current = on;
+    }
+
+    /**
+     * Work out the expected steam rate on each clock of the horizon, along with
+     * its bounds.
+     */
+    private void prepareSteam(double steamRate, SteamForecaster forecaster) {
+        double w = this.maximalSteamRate;
+        for (int k = 0; k < this.horizon; k++) {
+            if (forecaster.isEmpty()) {
+                this.steam[k] = Math.max(0, Math.min(w, steamRate));
+                this.steamLow[k] = 0;
+                this.steamHigh[k] = w;
+            } else {
+                // Average rate over each clock, which lies halfway through it
+                double t = (k + 0.5) * this.period;
+                this.steam[k] = Math.max(0, Math.min(w, forecaster.forecast(t)));
+                this.steamLow[k] = Math.max(0, Math.min(w, forecaster.getLowerBound(t)));
+                this.steamHigh[k] = Math.max(0, Math.min(w, forecaster.getUpperBound(t)));
+            }
+        }
+    }
+
+    /**
+     * Find the number of pumps whose flow is closest to a given flow, by binary
+     * search since the flow grows with the number of pumps.
+     *
+     * @param target The flow wanted.
+     * @return the number of pumps
+     */
+    private int closest(double target) {
+        int lo = this.first;
+        int hi = this.last;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (this.flow[mid] < target) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        if (lo > this.first && target - this.flow[lo - 1] <= this.flow[lo] - target) {
+            return lo - 1;
+        }
+        return lo;
+    }
+
+    /**
+     * Get the number of clocks for which the chosen number of pumps is to be
+     * held, before settling.
+     *
+     * @return the hold length of the best schedule
+     */
+    public int getChosenHold() {
+        return this.bestHold;
+    }
+
+    /**
+     * Get the combined flow of the pumps chosen for the next clock.
+     *
+     * @return the flow (in litres/sec), including any pumps stuck open
+     */
+    public double getChosenFlow() {
+        return this.flow[this.bestFirst];
+    }
+
+    /**
+     * Get the level forecast by the chosen schedule.
+     *
+     * @param step The clock ahead, where zero is the end of the next clock.
+     * @return the forecast level
+     */
+    public double getPredictedLevel(int step) {
+        return this.bestLevels[step];
+    }
+
+    /**
+     * Stop the threads used to evaluate candidates in parallel.
+     */
+    @Override
+    public void close() {
+        if (this.pool != null) {
+            this.pool.shutdown();
+        }
+    }
+
+    /**
+     * Evaluates every slice, one on the current thread and the rest in parallel.
+     */
+    private final class Evaluation extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected void compute() {
+            Slice[] s = ModelPredictiveScheduler.this.slices;
+            for (int i = 1; i < s.length; i++) {
+                s[i].reinitialize();
+                s[i].fork();
+            }
+            s[0].evaluate();
+            for (int i = s.length - 1; i > 0; i--) {
+                s[i].join();
+            }
+        }
+    }
+
+    /**
+     * A range of candidates, along with the scratch buffers used to evaluate
+     * them and the best found.
+     */
+    private final class Slice extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        int lowest;
+        int from;
+        int to;
+        final double[] levels = new double[ModelPredictiveScheduler.this.horizon];
+        final double[] bestLevels = new double[ModelPredictiveScheduler.this.horizon];
+        double bestScore;
+        int bestFirst;
+        int bestHold;
+
+        @Override
+        protected void compute() {
+            evaluate();
+        }
+
+        /**
+         * Simulate every candidate in the range, and keep the best.
+         */
+        void evaluate() {
+            ModelPredictiveScheduler m = ModelPredictiveScheduler.this;
+            int[] holds = m.holds;
+            this.bestScore = Double.POSITIVE_INFINITY;
+            for (int c = this.from; c < this.to; c++) {
+                int a = this.lowest + (c / holds.length);
+                int d = holds[c % holds.length];
+                double score = simulate(a, d);
+                if (score < this.bestScore) {
+                    this.bestScore = score;
+                    this.bestFirst = a;
+                    this.bestHold = d;
+                    System.arraycopy(this.levels, 0, this.bestLevels, 0, m.horizon);
+                }
+            }
+        }
+
+        /**
+         * Simulate a candidate and score it, where lower is better.
+         *
+         * @param a Number of pumps on to begin with.
+         * @param d Number of clocks for which they are held.
+         * @return the score
+         */
+        private double simulate(int a, int d) {
+            ModelPredictiveScheduler m = ModelPredictiveScheduler.this;
+            double t = m.period;
+            double nominal = m.level;
+            double high = m.level;
+            double low = m.level;
+            double score = 0;
+            int switches = Math.abs(a - m.current);
+            int n = a;
+            for (int k = 0; k < m.horizon; k++) {
+                if (k >= d) {
+                    int next = m.closest(m.steam[k] + ((m.midPoint - nominal) / t));
+                    switches += Math.abs(next - n);
+                    n = next;
+                }
+                double in = m.flow[n];
+                nominal += t * (in - m.steam[k]);
+                // Less steam leaves the level higher, and more leaves it lower
+                high += t * (in - m.steamLow[k]);
+                low += t * (in - m.steamHigh[k]);
+                this.levels[k] = nominal;
+                double e = (nominal - m.midPoint) / m.halfBand;
+                score += e * e;
+                if (high > m.upperLimit || low < m.lowerLimit) {
+                    score += RISK_COST;
+                }
+            }
+            return score + (SWITCH_COST * switches);
+        }
+    }
+}
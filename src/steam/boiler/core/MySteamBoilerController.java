@@ -10,8 +10,8 @@ import steam.boiler.util.SteamBoilerCharacteristics;
 import steam.boiler.util.Mailbox.Message;
 import steam.boiler.util.Mailbox.MessageKind;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 /**
  * My Steam Boiler Controller
@@ -35,52 +35,570 @@ public class MySteamBoilerController implements SteamBoilerController {
      */
     private final SteamBoilerCharacteristics configuration;
 
+    /**
+     * Characteristics copied out of the configuration on construction, along with
+     * values derived from them, so that none are looked up or recalculated on
+     * each clock. These are ordinary instance fields, which the JIT still loads
+     * on every use rather than folding as constants, so this saves the getter
+     * calls and the arithmetic and nothing more.
+     */
+    private final double capacity;
+    private final double minimalLimitLevel;
+    private final double maximalLimitLevel;
+    private final double minimalNormalLevel;
+    private final double maximalNormalLevel;
+    private final double maximalSteamRate;
+    private final int numberOfPumps;
+    private final double[] pumpCapacities;
+    private final double normalMidPoint;
+    private final double limitMargin;
+
+    /**
+     * Time (in ms) between clocks when none is given, as in the original
+     * specification.
+     */
+    public static final int DEFAULT_PERIOD = 5000;
+
+    /**
+     * Time between clocks, in ms and in seconds. Every projection of the level is
+     * made over this period.
+     */
+    private final int period;
+    private final double periodSeconds;
+
+    /**
+     * Length of history (in seconds) from which the steam rate is forecast,
+     * whatever the period.
+     */
+    private static final double FORECAST_HISTORY = 60;
+
     /**
      * Identifies the current mode in which the controller is operating.
      */
     private State mode = State.WAITING;
     private State prevRescueMode = State.WAITING;
     private State prevDegradedMode = State.WAITING;
+
+    /**
+     * Messages without a pump number, created once so that none are allocated
+     * whilst clocking.
+     */
+    private static final Message MODE_INITIALISATION = new Message(MessageKind.MODE_m,
+            Mailbox.Mode.INITIALISATION);
+    private static final Message MODE_NORMAL = new Message(MessageKind.MODE_m, Mailbox.Mode.NORMAL);
+    private static final Message MODE_DEGRADED = new Message(MessageKind.MODE_m,
+            Mailbox.Mode.DEGRADED);
+    private static final Message MODE_RESCUE = new Message(MessageKind.MODE_m, Mailbox.Mode.RESCUE);
+    private static final Message MODE_EMERGENCY_STOP = new Message(MessageKind.MODE_m,
+            Mailbox.Mode.EMERGENCY_STOP);
+    private static final Message PROGRAM_READY = new Message(MessageKind.PROGRAM_READY);
+    private static final Message VALVE = new Message(MessageKind.VALVE);
+    private static final Message LEVEL_FAILURE_DETECTION = new Message(
+            MessageKind.LEVEL_FAILURE_DETECTION);
+    private static final Message STEAM_FAILURE_DETECTION = new Message(
+            MessageKind.STEAM_FAILURE_DETECTION);
+    private static final Message LEVEL_REPAIRED_ACKNOWLEDGEMENT = new Message(
+            MessageKind.LEVEL_REPAIRED_ACKNOWLEDGEMENT);
+    private static final Message STEAM_REPAIRED_ACKNOWLEDGEMENT = new Message(
+            MessageKind.STEAM_REPAIRED_ACKNOWLEDGEMENT);
+    private static final Message STEAM_BOILER_WAITING = new Message(
+            MessageKind.STEAM_BOILER_WAITING);
+    private static final Message PHYSICAL_UNITS_READY = new Message(
+            MessageKind.PHYSICAL_UNITS_READY);
+
+    /**
+     * Messages for each pump, indexed by pump number.
+     */
+    private Message[] openPump;
+    private Message[] closePump;
+    private Message[] pumpFailureDetection;
+    private Message[] pumpControlFailureDetection;
+    private Message[] pumpRepairedAcknowledgement;
+    private Message[] pumpControlRepairedAcknowledgement;
     private Mailbox outgoing;
     private Mailbox incoming;
     private Message levelMessage;
     private Message steamMessage;
+
+    /**
+     * Pump state messages received, indexed by pump number. Each slot is stamped
+     * with the clock on which it was filled, so that stale slots can be told
+     * apart without clearing every slot on every clock.
+     */
     private Message[] pumpStateMessages;
     private Message[] pumpControlStateMessages;
+    private int[] pumpStateClocks;
+    private int[] pumpControlStateClocks;
+    private int clocks = 0;
+
+    /**
+     * Whether each message expected on this clock was received exactly once.
+     */
+    private boolean messagesComplete = false;
+
+    /**
+     * Pumps whose state differs from what they were told or from their
+     * controller on this clock, as a bitset with one bit per pump. Pumps are
+     * compared as their messages arrive, so only these pumps need be visited
+     * afterwards.
+     */
+    private long[] pumpMismatches;
+    private int pumpMismatchCount = 0;
+
+    /**
+     * Combined capacity of the pumps reported on during this clock, and the
+     * variance of the inflow when every pump does as it was told.
+     */
+    private double reportedInflow = 0;
+    private final double confirmedInflowVariance;
     private boolean openValve = false;
     private double waterLevel = 0;
     private double rescueWaterEstimate = 0;
     private double steamLevel = 0.0;
-    private int brokenPumpNo = -1;
-    private boolean stuck = false;
 
-    private List<@NonNull Boolean> onOffPumps = new ArrayList<>();
-    private ArrayList<@NonNull Double> middlePoints = new ArrayList<>();
+    /**
+     * Pumps which are out of service, and why.
+     */
+    private final PumpFailures pumpFailures;
+
+    /**
+     * Checks each level reading in normal mode against the level predicted from
+     * the pumps and steam, to catch a sensor which drifts rather than jumps.
+     */
+    private final LevelAnomalyDetector levelDetector;
+    private boolean levelAnomaly = false;
+
+    /**
+     * Time (in seconds) over which a drift in the level residual of the whole
+     * capacity is put down to noise, whatever the period. Faster drift is
+     * accumulated by the detector.
+     */
+    private static final double LEVEL_DRIFT_TIME = 500;
+
+    /**
+     * Forecasts the steam rate over the next clock from recent readings, so the
+     * number of pumps does not swing with each change in load.
+     */
+    private final SteamForecaster steamForecaster;
+
+    /**
+     * Estimates the level from the pumps and steam, along with its uncertainty,
+     * for use in rescue mode.
+     */
+    private final LevelEstimator levelEstimator;
+
+    /**
+     * Number of standard deviations of the estimated level added to the margin
+     * kept from the limits in rescue mode.
+     */
+    private static final double RESCUE_DEVIATIONS = 3;
+
+    private boolean[] onOffPumps;
+
+    /**
+     * Pumps chosen to be on by this clock, before being compared with those
+     * which were on.
+     */
+    private boolean[] chosenPumps;
+
+    /**
+     * Chooses which pumps to turn on when they have different capacities, or
+     * null if they all have the same capacity (in which case the first working
+     * pumps are used).
+     */
+    private final @Nullable PumpSelector pumpSelector;
+
+    /**
+     * Number of sets of stuck pumps for which the choice of pumps is cached.
+     */
+    private static final int SELECTOR_CACHE = 8;
+
+    /**
+     * Combined flow (in litres/sec) wanted from the pumps on this clock, which the
+     * pumps chosen by the selector match as closely as they can.
+     */
+    private double requiredInflow = 0;
 
     /**
-     * Construct a steam boiler controller for a given set of characteristics.
+     * Predicted level for each number of pumps, or NaN before the first estimate.
+     */
+    private double[] middlePoints;
+
+    /**
+     * Identifies a checkpoint, and the version of its layout.
+     */
+    private static final int CHECKPOINT_MAGIC = 0x53424350;
+    private static final short CHECKPOINT_VERSION = 4;
+
+    /**
+     * Size of the fixed part of a checkpoint, which is followed by one byte per
+     * pump for its on/off state and failures, and then one double per pump for
+     * its middle point.
+     */
+    private static final int CHECKPOINT_HEADER = 56;
+
+    /**
+     * Modes by their position, as stored in a checkpoint. Held here since
+     * {@link State#values()} returns a fresh array every time.
+     */
+    private static final State[] STATES = State.values();
+
+    /**
+     * Checkpoint of the controller state, rewritten at the end of every clock.
+     */
+    private final ByteBuffer checkpoint;
+
+    /**
+     * Records the time taken by each clock, if set.
+     */
+    private @Nullable TickMonitor monitor;
+
+    /**
+     * Captures the inputs and decisions of each clock, if set.
+     */
+    private @Nullable Telemetry telemetry;
+
+    /**
+     * Chooses the number of pumps in place of the estimate, if set.
+     */
+    private @Nullable ModelPredictiveScheduler scheduler;
+
+    /**
+     * Holds the pumps as they are unless changing them is worth it, if set.
+     */
+    private @Nullable PumpPlanner planner;
+
+    /**
+     * Number of times any pump has been switched on or off.
+     */
+    private long pumpToggles = 0;
+
+    /**
+     * Construct a steam boiler controller for a given set of characteristics,
+     * which is clocked every {@link #DEFAULT_PERIOD} ms.
      *
      * @param configuration The boiler characteristics to be used.
      */
     public MySteamBoilerController(SteamBoilerCharacteristics configuration) {
+        this(configuration, DEFAULT_PERIOD);
+    }
+
+    /**
+     * Construct a steam boiler controller for a given set of characteristics,
+     * which is clocked with a given period. A shorter period lets the controller
+     * react sooner, since each decision only has to hold until the next clock.
+     *
+     * @param configuration The boiler characteristics to be used.
+     * @param period        Time (in ms) between clocks.
+     */
+    public MySteamBoilerController(SteamBoilerCharacteristics configuration, int period) {
+        if (period <= 0) {
+            throw new IllegalArgumentException("period must be positive");
+        }
         this.configuration = configuration;
-        this.pumpStateMessages = new Message[this.configuration.getNumberOfPumps() + 1];
-        this.pumpControlStateMessages = new Message[this.configuration.getNumberOfPumps() + 1];
+        this.period = period;
+        this.periodSeconds = period / 1000.0;
+        this.capacity = configuration.getCapacity();
+        this.minimalLimitLevel = configuration.getMinimalLimitLevel();
+        this.maximalLimitLevel = configuration.getMaximalLimitLevel();
+        this.minimalNormalLevel = configuration.getMinimalNormalLevel();
+        this.maximalNormalLevel = configuration.getMaximalNormalLevel();
+        this.maximalSteamRate = configuration.getMaximualSteamRate();
+        this.numberOfPumps = configuration.getNumberOfPumps();
+        this.pumpCapacities = new double[this.numberOfPumps];
+        for (int i = 0; i < this.numberOfPumps; i++) {
+            this.pumpCapacities[i] = configuration.getPumpCapacity(i);
+        }
+        this.normalMidPoint = ((this.maximalNormalLevel - this.minimalNormalLevel) / 2)
+                + this.minimalNormalLevel;
+        this.limitMargin = (this.maximalLimitLevel - this.maximalNormalLevel) / 4;
+        this.pumpStateMessages = new Message[this.numberOfPumps];
+        this.pumpControlStateMessages = new Message[this.numberOfPumps];
+        this.pumpStateClocks = new int[this.numberOfPumps];
+        this.pumpControlStateClocks = new int[this.numberOfPumps];
+        this.pumpMismatches = new long[(this.numberOfPumps + 63) >>> 6];
+        double variance = 0;
+        for (int i = 0; i < this.numberOfPumps; i++) {
+            double c = this.pumpCapacities[i];
+            variance += (c / 20) * (c / 20);
+        }
+        this.confirmedInflowVariance = variance;
+        this.checkpoint = ByteBuffer.allocate(checkpointSize(this.numberOfPumps));
+        this.levelDetector = new LevelAnomalyDetector(this.periodSeconds,
+                this.capacity / LEVEL_DRIFT_TIME, this.limitMargin);
+        this.steamForecaster = new SteamForecaster(this.periodSeconds,
+                Math.max(3, (int) Math.round(FORECAST_HISTORY / this.periodSeconds)), 2);
+        this.levelEstimator = new LevelEstimator(this.periodSeconds, this.capacity / 200);
+        this.pumpFailures = new PumpFailures(this.numberOfPumps);
+        this.pumpSelector = PumpSelector.isNeeded(this.pumpCapacities)
+                ? new PumpSelector(this.pumpCapacities, SELECTOR_CACHE)
+                : null;
 
         pumpListInitialisation();
+        writeCheckpoint();
     }
 
     /**
-     * Initialises lists used in program
+     * Construct a steam boiler controller which resumes from a checkpoint taken
+     * from another controller with the same characteristics. The restored
+     * controller carries on in whatever mode the checkpoint was taken in (e.g.
+     * degraded or rescue), rather than starting again from waiting, and with the
+     * same period.
+     *
+     * @param configuration The boiler characteristics to be used.
+     * @param checkpoint    A checkpoint produced by {@link #getCheckpoint()}.
+     */
+    public MySteamBoilerController(SteamBoilerCharacteristics configuration, byte[] checkpoint) {
+        this(configuration, checkpointPeriod(checkpoint));
+        restore(checkpoint);
+    }
+
+    /**
+     * Return to the state held in a checkpoint taken from a controller with the
+     * same characteristics (e.g. from this one, before a clock whose response was
+     * discarded). Only what the checkpoint holds is restored. Everything else is
+     * kept, including the period, whatever monitor, telemetry, scheduler and
+     * planner were set, and what the forecaster and failure detector have learnt
+     * from the readings seen since the checkpoint was taken.
+     *
+     * @param checkpoint A checkpoint produced by {@link #getCheckpoint()}.
+     */
+    public void restore(byte[] checkpoint) {
+        ByteBuffer in = this.checkpoint;
+        int pumps = this.numberOfPumps;
+        if (checkpoint.length != checkpointSize(pumps)) {
+            throw new IllegalArgumentException("invalid checkpoint");
+        }
+        // Read through the checkpoint buffer, so that nothing is allocated, and
+        // put it back if the checkpoint turns out to be invalid.
+        System.arraycopy(checkpoint, 0, in.array(), 0, checkpoint.length);
+        if (in.getInt(0) != CHECKPOINT_MAGIC) {
+            writeCheckpoint();
+            throw new IllegalArgumentException("invalid checkpoint");
+        } else if (in.getShort(4) != CHECKPOINT_VERSION) {
+            short version = in.getShort(4);
+            writeCheckpoint();
+            throw new IllegalArgumentException("unsupported checkpoint version " + version);
+        } else if (in.getShort(6) != pumps) {
+            short count = in.getShort(6);
+            writeCheckpoint();
+            throw new IllegalArgumentException("checkpoint is for " + count + " pumps");
+        } else if (!isState(in.get(8)) || !isState(in.get(9)) || !isState(in.get(10))) {
+            writeCheckpoint();
+            throw new IllegalArgumentException("invalid mode in checkpoint");
+        }
+        this.mode = STATES[in.get(8)];
+        this.prevRescueMode = STATES[in.get(9)];
+        this.prevDegradedMode = STATES[in.get(10)];
+        this.openValve = (in.get(11) & 1) != 0;
+        this.waterLevel = in.getDouble(16);
+        this.rescueWaterEstimate = in.getDouble(24);
+        this.steamLevel = in.getDouble(32);
+        this.levelEstimator.restore(in.getDouble(40), in.getDouble(48));
+        for (int i = 0; i < pumps; i++) {
+            byte flags = in.get(CHECKPOINT_HEADER + i);
+            this.onOffPumps[i] = (flags & 1) != 0;
+            this.pumpFailures.setFlags(i, flags >> 1);
+            this.middlePoints[i] = in.getDouble(CHECKPOINT_HEADER + pumps + (i * 8));
+        }
+        writeCheckpoint();
+    }
+
+    /**
+     * Construct a copy of another controller, which carries on from exactly the
+     * same state. The copy shares nothing mutable with the original, so the two
+     * can be clocked independently (e.g. on different threads).
+     *
+     * @param other The controller to copy.
+     */
+    public MySteamBoilerController(MySteamBoilerController other) {
+        this.configuration = other.configuration;
+        this.period = other.period;
+        this.periodSeconds = other.periodSeconds;
+        this.capacity = other.capacity;
+        this.minimalLimitLevel = other.minimalLimitLevel;
+        this.maximalLimitLevel = other.maximalLimitLevel;
+        this.minimalNormalLevel = other.minimalNormalLevel;
+        this.maximalNormalLevel = other.maximalNormalLevel;
+        this.maximalSteamRate = other.maximalSteamRate;
+        this.numberOfPumps = other.numberOfPumps;
+        this.pumpCapacities = other.pumpCapacities;
+        this.normalMidPoint = other.normalMidPoint;
+        this.limitMargin = other.limitMargin;
+        this.mode = other.mode;
+        this.prevRescueMode = other.prevRescueMode;
+        this.prevDegradedMode = other.prevDegradedMode;
+        this.pumpStateMessages = other.pumpStateMessages.clone();
+        this.pumpControlStateMessages = other.pumpControlStateMessages.clone();
+        this.pumpStateClocks = other.pumpStateClocks.clone();
+        this.pumpControlStateClocks = other.pumpControlStateClocks.clone();
+        this.clocks = other.clocks;
+        this.messagesComplete = other.messagesComplete;
+        this.pumpMismatches = other.pumpMismatches.clone();
+        this.pumpMismatchCount = other.pumpMismatchCount;
+        this.reportedInflow = other.reportedInflow;
+        this.confirmedInflowVariance = other.confirmedInflowVariance;
+        this.openPump = other.openPump;
+        this.closePump = other.closePump;
+        this.pumpFailureDetection = other.pumpFailureDetection;
+        this.pumpControlFailureDetection = other.pumpControlFailureDetection;
+        this.pumpRepairedAcknowledgement = other.pumpRepairedAcknowledgement;
+        this.pumpControlRepairedAcknowledgement = other.pumpControlRepairedAcknowledgement;
+        this.openValve = other.openValve;
+        this.waterLevel = other.waterLevel;
+        this.rescueWaterEstimate = other.rescueWaterEstimate;
+        this.steamLevel = other.steamLevel;
+        this.pumpFailures = new PumpFailures(other.pumpFailures);
+        this.pumpSelector = other.pumpSelector == null ? null
+                : new PumpSelector(this.pumpCapacities, SELECTOR_CACHE);
+        this.requiredInflow = other.requiredInflow;
+        this.levelDetector = new LevelAnomalyDetector(other.levelDetector);
+        this.levelAnomaly = other.levelAnomaly;
+        this.steamForecaster = new SteamForecaster(other.steamForecaster);
+        this.levelEstimator = new LevelEstimator(other.levelEstimator);
+        this.onOffPumps = other.onOffPumps.clone();
+        this.chosenPumps = new boolean[other.numberOfPumps];
+        this.pumpToggles = other.pumpToggles;
+        this.middlePoints = other.middlePoints.clone();
+        this.checkpoint = ByteBuffer.allocate(other.checkpoint.capacity());
+        writeCheckpoint();
+    }
+
+    /**
+     * Initialises lists used in program, along with the messages for each pump.
      */
     @MemoryAnnotations.Initialisation
     public void pumpListInitialisation() {
-        for (int i = 0; i < this.configuration.getNumberOfPumps(); i++) {
-            this.onOffPumps.add(false);
+        int n = this.numberOfPumps;
+        this.onOffPumps = new boolean[n];
+        this.chosenPumps = new boolean[n];
+        this.middlePoints = new double[n];
+        Arrays.fill(this.middlePoints, Double.NaN);
+        this.openPump = new Message[n];
+        this.closePump = new Message[n];
+        this.pumpFailureDetection = new Message[n];
+        this.pumpControlFailureDetection = new Message[n];
+        this.pumpRepairedAcknowledgement = new Message[n];
+        this.pumpControlRepairedAcknowledgement = new Message[n];
+        for (int i = 0; i < n; i++) {
+            this.openPump[i] = new Message(MessageKind.OPEN_PUMP_n, i);
+            this.closePump[i] = new Message(MessageKind.CLOSE_PUMP_n, i);
+            this.pumpFailureDetection[i] = new Message(MessageKind.PUMP_FAILURE_DETECTION_n, i);
+            this.pumpControlFailureDetection[i] = new Message(
+                    MessageKind.PUMP_CONTROL_FAILURE_DETECTION_n, i);
+            this.pumpRepairedAcknowledgement[i] = new Message(
+                    MessageKind.PUMP_REPAIRED_ACKNOWLEDGEMENT_n, i);
+            this.pumpControlRepairedAcknowledgement[i] = new Message(
+                    MessageKind.PUMP_CONTROL_REPAIRED_ACKNOWLEDGEMENT_n, i);
         }
-        for (int i = 0; i < this.configuration.getNumberOfPumps(); i++) {
-            this.middlePoints.add(null);
+    }
+
+    /**
+     * Get the size of a checkpoint for a given number of pumps.
+     *
+     * @param pumps number of pumps
+     * @return size of the checkpoint in bytes
+     */
+    private static int checkpointSize(int pumps) {
+        return CHECKPOINT_HEADER + (pumps * 9);
+    }
+
+    /**
+     * Check whether a byte read from a checkpoint is the position of a mode.
+     *
+     * @param position The byte read.
+     * @return true if it can be looked up in {@link #STATES}
+     */
+    private static boolean isState(byte position) {
+        return position >= 0 && position < STATES.length;
+    }
+
+    /**
+     * Get the period stored in a checkpoint, so that the controller restored from
+     * it can be constructed with that period. A checkpoint too short to hold one
+     * is given the default, and is rejected once the controller is constructed.
+     *
+     * @param checkpoint The checkpoint.
+     * @return the period (in ms)
+     */
+    private static int checkpointPeriod(byte[] checkpoint) {
+        if (checkpoint.length < CHECKPOINT_HEADER) {
+            return DEFAULT_PERIOD;
         }
+        int period = ByteBuffer.wrap(checkpoint).getInt(12);
+        return period > 0 ? period : DEFAULT_PERIOD;
+    }
+
+    /**
+     * Write the current state into the checkpoint buffer. The layout is fixed for
+     * a given number of pumps, and begins with a magic number and version. Modes
+     * are stored by their position in {@link State}.
+     */
+    private void writeCheckpoint() {
+        ByteBuffer out = this.checkpoint;
+        int pumps = this.numberOfPumps;
+        out.putInt(0, CHECKPOINT_MAGIC);
+        out.putShort(4, CHECKPOINT_VERSION);
+        out.putShort(6, (short) pumps);
+        out.put(8, (byte) this.mode.ordinal());
+        out.put(9, (byte) this.prevRescueMode.ordinal());
+        out.put(10, (byte) this.prevDegradedMode.ordinal());
+        out.put(11, (byte) (this.openValve ? 1 : 0));
+        out.putInt(12, this.period);
+        out.putDouble(16, this.waterLevel);
+        out.putDouble(24, this.rescueWaterEstimate);
+        out.putDouble(32, this.steamLevel);
+        out.putDouble(40, this.levelEstimator.getLevel());
+        out.putDouble(48, this.levelEstimator.getVariance());
+        for (int i = 0; i < pumps; i++) {
+            out.put(CHECKPOINT_HEADER + i,
+                    (byte) ((this.onOffPumps[i] ? 1 : 0) | (this.pumpFailures.getFlags(i) << 1)));
+            out.putDouble(CHECKPOINT_HEADER + pumps + (i * 8), this.middlePoints[i]);
+        }
+    }
+
+    /**
+     * Get a copy of the checkpoint written at the end of the last clock, from
+     * which a controller can be restored.
+     *
+     * @return the checkpoint
+     */
+    public byte[] getCheckpoint() {
+        return this.checkpoint.array().clone();
+    }
+
+    /**
+     * Copy the checkpoint written at the end of the last clock into an existing
+     * array, which must be the same length as {@link #getCheckpoint()} returns.
+     *
+     * @param into The array to copy into.
+     */
+    public void getCheckpoint(byte[] into) {
+        byte[] array = this.checkpoint.array();
+        if (into.length != array.length) {
+            throw new IllegalArgumentException("checkpoint is " + array.length + " bytes");
+        }
+        System.arraycopy(array, 0, into, 0, array.length);
+    }
+
+    /**
+     * Get the time between clocks, which whatever drives the controller must
+     * follow.
+     *
+     * @return the period (in ms)
+     */
+    public int getPeriod() {
+        return this.period;
+    }
+
+    /**
+     * Get the position of a mode in the order used by checkpoints and telemetry.
+     *
+     * @param name The name of the mode (e.g. "RESCUE").
+     * @return the position of the mode
+     */
+    public static int modeIndex(String name) {
+        return State.valueOf(name).ordinal();
     }
 
     /**
@@ -97,7 +615,8 @@ public class MySteamBoilerController implements SteamBoilerController {
     }
 
     /**
-     * Process a clock signal which occurs every 5 seconds. This requires reading
+     * Process a clock signal which occurs once every period (by default, every 5
+     * seconds). This requires reading
      * the set of incoming messages from the physical units and producing a set of
      * output messages which are sent back to them.
      *
@@ -107,45 +626,145 @@ public class MySteamBoilerController implements SteamBoilerController {
      */
     @Override
     public void clock(@NonNull Mailbox incoming1, @NonNull Mailbox outgoing1) {
+        TickMonitor m = this.monitor;
+        if (m == null) {
+            step(incoming1, outgoing1);
+            writeCheckpoint();
+            capture();
+            return;
+        }
+        State before = this.mode;
+        long start = System.nanoTime();
+        step(incoming1, outgoing1);
+        writeCheckpoint();
+        capture();
+        m.record(before, this.mode, System.nanoTime() - start, incoming1);
+    }
+
+    /**
+     * Set a monitor to record the time taken by every clock.
+     *
+     * @param monitor The monitor to use, or null to stop monitoring.
+     */
+    public void setMonitor(@Nullable TickMonitor monitor) {
+        this.monitor = monitor;
+    }
+
+    /**
+     * Set telemetry to capture the inputs and decisions of every clock.
+     *
+     * @param telemetry The telemetry to use, or null to stop capturing.
+     */
+    public void setTelemetry(@Nullable Telemetry telemetry) {
+        this.telemetry = telemetry;
+    }
+
+    /**
+     * Set a scheduler to choose the number of pumps by simulating candidate
+     * schedules, rather than from the estimated level after the next clock. The
+     * estimate is still made, so it is recorded as before. The scheduler must
+     * have the same characteristics and period as this controller, and is not
+     * carried over to copies of it.
+     *
+     * @param scheduler The scheduler to use, or null to go back to the estimate.
+     */
+    public void setScheduler(@Nullable ModelPredictiveScheduler scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Set a planner to hold the pumps as they are unless changing them is worth
+     * it, and to keep pumps which are already running in preference to others.
+     * The planner is not carried over to copies of this controller.
+     *
+     * @param planner The planner to use, or null to choose afresh every clock.
+     */
+    public void setPlanner(@Nullable PumpPlanner planner) {
+        this.planner = planner;
+    }
+
+    /**
+     * Get the number of times any pump has been switched on or off.
+     *
+     * @return number of pump toggles
+     */
+    public long getPumpToggles() {
+        return this.pumpToggles;
+    }
+
+    /**
+     * Get the average rate at which pumps have been switched on or off.
+     *
+     * @return toggles per hour of clocks processed, or zero if there were none
+     */
+    public double getTogglesPerHour() {
+        if (this.clocks == 0) {
+            return 0;
+        }
+        return this.pumpToggles * 3600 / (this.clocks * this.periodSeconds);
+    }
+
+    /**
+     * Capture the clock which has just finished, if telemetry is set.
+     */
+    private void capture() {
+        Telemetry t = this.telemetry;
+        if (t != null) {
+            Message level = this.levelMessage;
+            Message steam = this.steamMessage;
+            t.record(level == null ? Double.NaN : level.getDoubleParameter(),
+                    steam == null ? Double.NaN : steam.getDoubleParameter(), this.mode,
+                    this.rescueWaterEstimate, this.pumpStateMessages,
+                    this.pumpControlStateMessages, this.onOffPumps);
+        }
+    }
+
+    /**
+     * Process the incoming messages for one clock signal according to the current
+     * mode.
+     *
+     * @param incoming1 The set of incoming messages from the physical units.
+     * @param outgoing1 Messages generated are written here.
+     */
+    private void step(@NonNull Mailbox incoming1, @NonNull Mailbox outgoing1) {
         this.incoming = incoming1;
         this.outgoing = outgoing1;
         // Extract expected messages
-        this.levelMessage = extractOnlyMatch(MessageKind.LEVEL_v, incoming1);
-        this.steamMessage = extractOnlyMatch(MessageKind.STEAM_v, incoming1);
-        this.pumpStateMessages = extractAllMatches(MessageKind.PUMP_STATE_n_b, incoming1);
-        this.pumpControlStateMessages = extractAllMatches(MessageKind.PUMP_CONTROL_STATE_n_b,
-                incoming1);
-        if (transmissionFailure(this.pumpStateMessages, this.pumpControlStateMessages)) {
+        readMessages(incoming1);
+        if (transmissionFailure()) {
             // Level and steam messages required, so emergency stop.
             this.mode = State.EMERGENCY_STOP;
         }
+        checkLevelAnomaly();
+        forecastSteam();
+        estimateLevel();
 
         if (this.mode == State.WAITING) {
-            outgoing1.send(new Message(MessageKind.MODE_m, Mailbox.Mode.INITIALISATION));
-            if (incoming1.contains(new Message(MessageKind.STEAM_BOILER_WAITING))) {
+            outgoing1.send(MODE_INITIALISATION);
+            if (incoming1.contains(STEAM_BOILER_WAITING)) {
                 if (this.steamMessage.getDoubleParameter() != 0) { // steam measuring device is defective
                     this.mode = State.EMERGENCY_STOP;
-                    this.outgoing.send(new Message(MessageKind.MODE_m, Mailbox.Mode.EMERGENCY_STOP));
+                    this.outgoing.send(MODE_EMERGENCY_STOP);
                     return;
                 }
                 if (waterLevelFailure()) {
-                    this.outgoing.send(new Message(MessageKind.LEVEL_FAILURE_DETECTION));
-                    this.outgoing.send(new Message(MessageKind.MODE_m, Mailbox.Mode.EMERGENCY_STOP));
+                    this.outgoing.send(LEVEL_FAILURE_DETECTION);
+                    this.outgoing.send(MODE_EMERGENCY_STOP);
                     this.mode = State.EMERGENCY_STOP;
                     return;
                 }
                 this.mode = State.READY;
                 this.waterLevel = this.levelMessage.getDoubleParameter();
                 double level = this.levelMessage.getDoubleParameter();
-                if (level > this.configuration.getMinimalNormalLevel()
-                        && level < this.configuration.getMaximalNormalLevel()) {
-                    this.outgoing.send(new Message(MessageKind.PROGRAM_READY));
+                if (level > this.minimalNormalLevel
+                        && level < this.maximalNormalLevel) {
+                    this.outgoing.send(PROGRAM_READY);
                 }
             }
         } else if (this.mode == State.READY) {
-            if (this.incoming.contains(new Message(MessageKind.PHYSICAL_UNITS_READY))) {
+            if (this.incoming.contains(PHYSICAL_UNITS_READY)) {
                 this.mode = State.NORMAL;
-                this.outgoing.send(new Message(MessageKind.MODE_m, Mailbox.Mode.NORMAL));
+                this.outgoing.send(MODE_NORMAL);
             } else {
                 initializationMode();
             }
@@ -161,6 +780,91 @@ public class MySteamBoilerController implements SteamBoilerController {
 
     }
 
+    /**
+     * Feed the level reading to the anomaly detector. This is only done in normal
+     * mode with a working steam sensor, the valve closed and every pump doing as it
+     * was told, since otherwise the predicted level cannot be trusted (and a pump
+     * failure is left to the pump checks). The detector starts again whenever it
+     * is not used, such as after the level sensor has been repaired.
+     */
+    private void checkLevelAnomaly() {
+        if (this.mode != State.NORMAL || this.openValve || this.levelMessage == null
+                || this.steamMessage == null || steamFailure()) {
+            this.levelDetector.reset();
+            this.levelAnomaly = false;
+            return;
+        }
+        if (this.pumpMismatchCount > 0) {
+            this.levelDetector.reset();
+            this.levelAnomaly = false;
+            return;
+        }
+        this.levelAnomaly = this.levelDetector.update(this.levelMessage.getDoubleParameter(),
+                this.reportedInflow, this.steamMessage.getDoubleParameter());
+    }
+
+    /**
+     * Feed the steam reading to the forecaster. The forecaster starts again
+     * whenever the reading is missing or cannot be trusted, so that a failed
+     * sensor does not leave a stale trend behind.
+     */
+    private void forecastSteam() {
+        if (this.steamMessage == null || steamFailure()) {
+            this.steamForecaster.reset();
+        } else {
+            this.steamForecaster.add(this.steamMessage.getDoubleParameter());
+        }
+    }
+
+    /**
+     * Update the estimated level for this clock. The level is predicted from the
+     * pumps and steam whilst the boiler is running with the valve closed, and the
+     * reading is then combined with it unless the level sensor has failed. The
+     * inflow starts from the pumps as reported, and is only corrected for those
+     * pumps which are stuck or did not do as they were told.
+     */
+    private void estimateLevel() {
+        if (this.mode == State.EMERGENCY_STOP || this.levelMessage == null
+                || this.steamMessage == null) {
+            return;
+        }
+        if (this.mode != State.WAITING && !this.openValve) {
+            double inflow = this.reportedInflow;
+            double inflowVariance = this.confirmedInflowVariance;
+            for (int i = this.pumpFailures.nextStuck(0); i >= 0; i = this.pumpFailures
+                    .nextStuck(i + 1)) {
+                // Pump is known to be stuck, so flow is known to within 5%
+                double c = this.pumpCapacities[i];
+                boolean on = this.pumpStateMessages[i].getBooleanParameter();
+                inflow += (this.pumpFailures.isStuckOpen(i) ? c : 0) - (on ? c : 0);
+            }
+            for (int i = PumpFailures.nextSetBit(this.pumpMismatches, 0); i >= 0; i = PumpFailures
+                    .nextSetBit(this.pumpMismatches, i + 1)) {
+                double c = this.pumpCapacities[i];
+                boolean on = this.pumpStateMessages[i].getBooleanParameter();
+                if (this.pumpFailures.isStuck(i) || (on == this.onOffPumps[i]
+                        && this.pumpFailures.isControllerFailed(i))) {
+                    // Pump is stuck or did as it was told, so flow is known to within 5%
+                    continue;
+                }
+                // Could have been on for any part of the clock
+                inflow += (c / 2) - (on ? c : 0);
+                inflowVariance += ((c / 2) * (c / 2)) - ((c / 20) * (c / 20));
+            }
+            double w = this.maximalSteamRate;
+            if (steamFailure()) {
+                this.levelEstimator.predict(inflow, inflowVariance, w / 2, (w / 2) * (w / 2));
+            } else {
+                this.levelEstimator.predict(inflow, inflowVariance,
+                        this.steamMessage.getDoubleParameter(), (w / 20) * (w / 20));
+            }
+        }
+        if (this.mode != State.RESCUE && !waterLevelFailure()
+                && this.levelMessage.getDoubleParameter() != 0) {
+            this.levelEstimator.measure(this.levelMessage.getDoubleParameter());
+        }
+    }
+
     /**
      * Initialization mode is when you are getting the boiler ready to run, by
      * filling it up with water.
@@ -169,14 +873,14 @@ public class MySteamBoilerController implements SteamBoilerController {
         int noOfPumpsOn;
         if (this.steamMessage.getDoubleParameter() != 0) { // steam measuring device is defective
             this.mode = State.EMERGENCY_STOP;
-            this.outgoing.send(new Message(MessageKind.MODE_m, Mailbox.Mode.EMERGENCY_STOP));
+            this.outgoing.send(MODE_EMERGENCY_STOP);
             return;
         }
 
         // check for water level detection failure
         if (waterLevelFailure()) {
-            this.outgoing.send(new Message(MessageKind.LEVEL_FAILURE_DETECTION));
-            this.outgoing.send(new Message(MessageKind.MODE_m, Mailbox.Mode.EMERGENCY_STOP));
+            this.outgoing.send(LEVEL_FAILURE_DETECTION);
+            this.outgoing.send(MODE_EMERGENCY_STOP);
             this.mode = State.EMERGENCY_STOP;
             return;
         }
@@ -185,22 +889,21 @@ public class MySteamBoilerController implements SteamBoilerController {
         this.steamLevel = this.steamMessage.getDoubleParameter();
 
         // checks if water level is ready to go to normal
-        if (this.levelMessage.getDoubleParameter() > this.configuration.getMinimalNormalLevel()
-                && this.levelMessage.getDoubleParameter() < this.configuration.getMaximalNormalLevel()) {
+        if (this.levelMessage.getDoubleParameter() > this.minimalNormalLevel
+                && this.levelMessage.getDoubleParameter() < this.maximalNormalLevel) {
 
             turnOnPumps(-1);
-            this.outgoing.send(new Message(MessageKind.PROGRAM_READY));
+            this.outgoing.send(PROGRAM_READY);
             return;
         }
-        if (this.levelMessage.getDoubleParameter() > this.configuration.getMaximalNormalLevel()) {
+        if (this.levelMessage.getDoubleParameter() > this.maximalNormalLevel) {
             // empty
-            this.outgoing.send(new Message(MessageKind.VALVE));
+            this.outgoing.send(VALVE);
             this.openValve = true;
-        } else if (this.levelMessage.getDoubleParameter() < this.configuration
-                .getMinimalNormalLevel()) { // fill
+        } else if (this.levelMessage.getDoubleParameter() < this.minimalNormalLevel) { // fill
 
             if (this.openValve) { // if valve is open, shuts valve
-                this.outgoing.send(new Message(MessageKind.VALVE));
+                this.outgoing.send(VALVE);
                 this.openValve = false;
             }
             noOfPumpsOn = estimatePumps(this.steamMessage.getDoubleParameter(),
@@ -214,17 +917,16 @@ public class MySteamBoilerController implements SteamBoilerController {
      * Normal mode checks for failures and runs the pumps
      */
     public void normalMode() {
-        this.brokenPumpNo = -1;
         if (howManyBrokenUnits()) {
             this.mode = State.EMERGENCY_STOP;
-            this.outgoing.send(new Message(MessageKind.MODE_m, Mailbox.Mode.EMERGENCY_STOP));
+            this.outgoing.send(MODE_EMERGENCY_STOP);
             emergencyStopMode();
             return;
         }
         if (steamFailure()) { // if steam failure go to degraded mode
             this.mode = State.DEGRADED;
-            this.outgoing.send(new Message(MessageKind.MODE_m, Mailbox.Mode.DEGRADED));
-            this.outgoing.send(new Message(MessageKind.STEAM_FAILURE_DETECTION));
+            this.outgoing.send(MODE_DEGRADED);
+            this.outgoing.send(STEAM_FAILURE_DETECTION);
             this.waterLevel = this.levelMessage.getDoubleParameter();
             degradedMode();
             return;
@@ -233,8 +935,8 @@ public class MySteamBoilerController implements SteamBoilerController {
         // check for water-level detection failure
         if (waterLevelFailure() || this.levelMessage.getDoubleParameter() == 0) {
             // failure, goes to rescue mode
-            this.outgoing.send(new Message(MessageKind.LEVEL_FAILURE_DETECTION));
-            this.outgoing.send(new Message(MessageKind.MODE_m, Mailbox.Mode.RESCUE));
+            this.outgoing.send(LEVEL_FAILURE_DETECTION);
+            this.outgoing.send(MODE_RESCUE);
             this.mode = State.RESCUE;
             this.prevRescueMode = State.NORMAL;
             this.steamLevel = this.steamMessage.getDoubleParameter();
@@ -242,46 +944,35 @@ public class MySteamBoilerController implements SteamBoilerController {
             return;
         }
         if (nearMaxMin() || overMax()) { // checks if water is near or over the max
-            this.outgoing.send(new Message(MessageKind.MODE_m, Mailbox.Mode.EMERGENCY_STOP));
+            this.outgoing.send(MODE_EMERGENCY_STOP);
             this.mode = State.EMERGENCY_STOP;
             emergencyStopMode();
             return;
         }
-        int no = pumpFailure();
-        if (no != -1) { // check for any pump failure
-            this.brokenPumpNo = no;
+        if (detectPumpFailures()) { // check for any pump or controller failures
             this.mode = State.DEGRADED;
             this.prevDegradedMode = State.NORMAL;
-            this.outgoing.send(new Message(MessageKind.MODE_m, Mailbox.Mode.DEGRADED));
-            this.outgoing.send(new Message(MessageKind.PUMP_FAILURE_DETECTION_n, no));
-            degradedMode();
-            return;
-        }
-        no = pumpControllerFailure();
-        if (no != -1) { // check for any controller failure
-            this.mode = State.DEGRADED;
-            this.prevDegradedMode = State.NORMAL;
-            this.outgoing.send(new Message(MessageKind.MODE_m, Mailbox.Mode.DEGRADED));
-            this.outgoing.send(new Message(MessageKind.PUMP_CONTROL_FAILURE_DETECTION_n, no));
+            this.outgoing.send(MODE_DEGRADED);
+            reportPumpFailures();
             degradedMode();
             return;
         }
 
         // all error messages checked. Can run normal mode as per usual.
-        this.outgoing.send(new Message(MessageKind.MODE_m, Mailbox.Mode.NORMAL));
+        this.outgoing.send(MODE_NORMAL);
         this.waterLevel = this.levelMessage.getDoubleParameter();
         this.steamLevel = this.steamMessage.getDoubleParameter();
         int noOfPumps = estimatePumps(this.steamMessage.getDoubleParameter(),
                 this.levelMessage.getDoubleParameter());
         turnOnPumps(noOfPumps); // pump water in
 
-        if (this.levelMessage.getDoubleParameter() < this.configuration.getMinimalNormalLevel()) {
+        if (this.levelMessage.getDoubleParameter() < this.minimalNormalLevel) {
 
             noOfPumps = estimatePumps(this.steamMessage.getDoubleParameter(),
                     this.levelMessage.getDoubleParameter());
             turnOnPumps(noOfPumps);
         }
-        if (this.levelMessage.getDoubleParameter() > this.configuration.getMaximalNormalLevel()) {
+        if (this.levelMessage.getDoubleParameter() > this.maximalNormalLevel) {
             // if it goes above max normal level
             noOfPumps = estimatePumps(this.steamMessage.getDoubleParameter(),
                     this.levelMessage.getDoubleParameter());
@@ -298,8 +989,8 @@ public class MySteamBoilerController implements SteamBoilerController {
 
         // if failure of water-level measuring unit got to rescueMode()
         if (waterLevelFailure()) {
-            this.outgoing.send(new Message(MessageKind.LEVEL_FAILURE_DETECTION));
-            this.outgoing.send(new Message(MessageKind.MODE_m, Mailbox.Mode.RESCUE));
+            this.outgoing.send(LEVEL_FAILURE_DETECTION);
+            this.outgoing.send(MODE_RESCUE);
             this.mode = State.RESCUE;
             this.prevRescueMode = State.DEGRADED;
             rescueMode();
@@ -307,43 +998,61 @@ public class MySteamBoilerController implements SteamBoilerController {
         }
         // if water level risks reaching M1 or M2 go to emergencyStopMode()
         if (nearMaxMin()) {
-            this.outgoing.send(new Message(MessageKind.MODE_m, Mailbox.Mode.EMERGENCY_STOP));
+            this.outgoing.send(MODE_EMERGENCY_STOP);
             this.mode = State.EMERGENCY_STOP;
             emergencyStopMode();
             return;
         }
 
+        // check for any further pumps failing, and whether any are left
+        if (detectPumpFailures()) {
+            reportPumpFailures();
+        }
+        if (this.pumpFailures.countStuck() == this.numberOfPumps) {
+            this.outgoing.send(MODE_EMERGENCY_STOP);
+            this.mode = State.EMERGENCY_STOP;
+            emergencyStopMode();
+            return;
+        }
+
+        boolean repaired = false;
         for (int i = 0; i < this.incoming.size(); i++) { // check for fixed messages
             Message msg = this.incoming.read(i);
             if (msg.getKind().equals(MessageKind.PUMP_REPAIRED_n)) {
                 int pumpNo = msg.getIntegerParameter();
-                this.outgoing.send(new Message(MessageKind.PUMP_REPAIRED_ACKNOWLEDGEMENT_n, pumpNo));
-                this.mode = this.prevDegradedMode;
+                if (pumpNo >= 0 && pumpNo < this.numberOfPumps) {
+                    this.outgoing.send(this.pumpRepairedAcknowledgement[pumpNo]);
+                    this.pumpFailures.repairPump(pumpNo);
+                }
+                repaired = true;
             }
             if (msg.getKind().equals(MessageKind.PUMP_CONTROL_REPAIRED_n)) {
                 int pumpNo = msg.getIntegerParameter();
-                this.outgoing
-                        .send(new Message(MessageKind.PUMP_CONTROL_REPAIRED_ACKNOWLEDGEMENT_n, pumpNo));
-                this.mode = this.prevDegradedMode;
-
+                if (pumpNo >= 0 && pumpNo < this.numberOfPumps) {
+                    this.outgoing.send(this.pumpControlRepairedAcknowledgement[pumpNo]);
+                    this.pumpFailures.repairController(pumpNo);
+                }
+                repaired = true;
             }
             if (msg.getKind().equals(MessageKind.STEAM_REPAIRED)) {
-                this.outgoing.send(new Message(MessageKind.STEAM_REPAIRED_ACKNOWLEDGEMENT));
-                this.mode = this.prevDegradedMode;
+                this.outgoing.send(STEAM_REPAIRED_ACKNOWLEDGEMENT);
+                repaired = true;
             }
         }
+        // only leave once every failed unit has been repaired
+        if (repaired && this.pumpFailures.isEmpty() && !steamFailure()) {
+            this.mode = this.prevDegradedMode;
+        }
 
         if (this.mode.equals(State.NORMAL)) {
-            this.brokenPumpNo = -1;
-            this.outgoing.send(new Message(MessageKind.MODE_m, Mailbox.Mode.NORMAL));
+            this.outgoing.send(MODE_NORMAL);
             return;
         } else if (this.mode.equals(State.READY)) {
-            this.brokenPumpNo = -1;
-            this.outgoing.send(new Message(MessageKind.MODE_m, Mailbox.Mode.INITIALISATION));
+            this.outgoing.send(MODE_INITIALISATION);
             return;
         } else { // pump water in
             this.waterLevel = this.levelMessage.getDoubleParameter();
-            this.outgoing.send(new Message(MessageKind.MODE_m, Mailbox.Mode.DEGRADED));
+            this.outgoing.send(MODE_DEGRADED);
             this.mode = State.DEGRADED;
             int noOfPumps = estimatePumps(this.steamLevel, this.waterLevel);
             turnOnPumps(noOfPumps);
@@ -357,33 +1066,32 @@ public class MySteamBoilerController implements SteamBoilerController {
      * to keep the water level between maxNormal and minNormal using estimation.
      */
     public void rescueMode() {
-        // if water level risks reaching M1 or M2 go to emergencyStopMode()
-        if (nearMaxRescue() || this.waterLevel <= 0) {
-            this.outgoing.send(new Message(MessageKind.MODE_m, Mailbox.Mode.EMERGENCY_STOP));
-            this.mode = State.EMERGENCY_STOP;
+        this.waterLevel = this.levelEstimator.getLevel();
+        // if water level risks reaching M1 or M2, or the level cannot be estimated
+        // without steam readings, go to emergencyStopMode()
+        if (nearMaxRescue() || this.waterLevel <= 0 || steamFailure()) {
             emergencyStopMode();
+            return;
         }
 
         // checks to see if water level has been repaired.
         if (extractOnlyMatch(MessageKind.LEVEL_REPAIRED, this.incoming) != null) {
-            this.outgoing.send(new Message(MessageKind.LEVEL_REPAIRED_ACKNOWLEDGEMENT));
-            System.out.println(this.prevRescueMode);
+            this.outgoing.send(LEVEL_REPAIRED_ACKNOWLEDGEMENT);
             this.mode = this.prevRescueMode;
             if (this.mode.equals(State.NORMAL)) {
-                this.outgoing.send(new Message(MessageKind.MODE_m, Mailbox.Mode.NORMAL));
+                this.outgoing.send(MODE_NORMAL);
                 this.waterLevel = this.levelMessage.getDoubleParameter();
                 return;
             }
 
-            this.outgoing.send(new Message(MessageKind.MODE_m, Mailbox.Mode.DEGRADED));
+            this.outgoing.send(MODE_DEGRADED);
             this.waterLevel = this.levelMessage.getDoubleParameter();
             return;
 
         }
 
-        this.outgoing.send(new Message(MessageKind.MODE_m, Mailbox.Mode.RESCUE));
+        this.outgoing.send(MODE_RESCUE);
         int noOfPumps = estimatePumps(this.steamMessage.getDoubleParameter(), this.waterLevel);
-        this.waterLevel = this.rescueWaterEstimate;
         turnOnPumps(noOfPumps);
 
         // if transmissionFailure go to emergencyStopMode()
@@ -394,40 +1102,27 @@ public class MySteamBoilerController implements SteamBoilerController {
      * Emergency stop mode stops the program from running.
      */
     public void emergencyStopMode() {
-        this.outgoing.send(new Message(MessageKind.MODE_m, Mailbox.Mode.EMERGENCY_STOP));
+        this.outgoing.send(MODE_EMERGENCY_STOP);
         this.mode = State.EMERGENCY_STOP;
     }
 
     /**
-     * If more than 1 broken physical unit, go to emergency stop mode.
+     * If more than one kind of physical unit is broken, go to emergency stop mode.
+     * The pumps and their controllers count as a single kind of unit, however
+     * many of them have failed.
      *
-     * @return true is more than one physical unit broken, false if not
+     * @return true is more than one kind of physical unit broken, false if not
      */
     public boolean howManyBrokenUnits() {
         int count = 0;
         if (steamFailure()) {
             count++;
-            System.out.println(count);
         }
-        if (pumpControllerFailure() != -1) {
+        if (!this.pumpFailures.isEmpty() || this.pumpMismatchCount > 0) {
             count++;
-            System.out.println(count);
-        }
-
-        if (this.onOffPumps.size() > 0) {
-            for (int i = 0; i < this.pumpStateMessages.length; i++) {
-                if (this.pumpStateMessages[i].getBooleanParameter() != this.onOffPumps.get(i)) {
-                    count++;
-                }
-                if (i != this.pumpStateMessages.length
-                        && (this.onOffPumps.get(i) == false && this.onOffPumps.get(i++) == true)) {
-                    count++;
-                }
-            }
         }
 
         if (count >= 2) {
-            System.out.println(count);
             return true;
         } else {
             return false;
@@ -435,79 +1130,189 @@ public class MySteamBoilerController implements SteamBoilerController {
     }
 
     /**
-     * Estimate how many pumps to turn on
+     * Estimate how many pumps to turn on. The steam rate used is forecast over the
+     * next clock from recent readings where there are any, and the given steam
+     * is only used when there are none (such as after the steam sensor has
+     * failed). If a planner is set, then it makes the choice from the middle
+     * points, and if a scheduler is set, then it makes the choice instead. Neither
+     * is used if the level is above the normal range.
      *
      * @param steam steam message for equation
      * @param water water message for equation
      * @return no of pumps to turn on
      */
     public int estimatePumps(double steam, double water) {
-        if (this.levelMessage.getDoubleParameter() > this.configuration.getMaximalNormalLevel()) {
+        if (water > this.maximalNormalLevel) {
             return -1;
         }
-        double midPoint = ((this.configuration.getMaximalNormalLevel()
-                - this.configuration.getMinimalNormalLevel()) / 2)
-                + this.configuration.getMinimalNormalLevel();
+        double midPoint = this.normalMidPoint;
         double l = water;
+        double w = this.maximalSteamRate;
         double s = steam;
-        double w = this.configuration.getMaximualSteamRate();
+        if (!this.steamForecaster.isEmpty()) {
+            // Average rate over the next clock, which lies halfway through it
+            s = Math.max(0, Math.min(w, this.steamForecaster.forecast(this.periodSeconds / 2)));
+        }
+        double t = this.periodSeconds;
+        // The flow which would put the middle point at the middle of the normal range
+        this.requiredInflow = Math.max(0, ((s + w) / 2) + ((midPoint - l) / t));
         double c = 0;
         double n = 0;
-        for (int pumpNo = 0; pumpNo < this.configuration.getNumberOfPumps(); pumpNo++) {
+        for (int pumpNo = 0; pumpNo < this.numberOfPumps; pumpNo++) {
             n = pumpNo + 1;
-            c = this.configuration.getPumpCapacity(pumpNo);
-            double lmax = l + (5 * c * n) - (5 * s);
-            double lmin = l + (5 * c * n) - (5 * w);
+            c = this.pumpCapacities[pumpNo];
+            double lmax = l + (t * c * n) - (t * s);
+            double lmin = l + (t * c * n) - (t * w);
             double middlePoint = ((lmax - lmin) / 2) + lmin;
-            this.middlePoints.set(pumpNo, middlePoint);
+            this.middlePoints[pumpNo] = middlePoint;
         }
         double closestDistance = 10000;
         int pumpNo = 5;
-        for (int i = 0; i < this.middlePoints.size(); i++) {
-            double m = this.middlePoints.get(i);
+        for (int i = 0; i < this.numberOfPumps; i++) {
+            double m = this.middlePoints[i];
             double distance = Math.abs(midPoint - m);
             if (distance < closestDistance) {
                 closestDistance = distance;
                 pumpNo = i;
-                this.rescueWaterEstimate = this.middlePoints.get(i);
+                this.rescueWaterEstimate = m;
+            }
+        }
+        PumpPlanner planner = this.planner;
+        if (planner != null) {
+            int open = this.pumpFailures.countStuckOpen();
+            for (int i = 0; i < this.numberOfPumps; i++) {
+                if (this.onOffPumps[i]) {
+                    open++;
+                }
             }
+            pumpNo = planner.choose(this.middlePoints, midPoint, normalLimit(), open - 1);
+            this.rescueWaterEstimate = this.middlePoints[pumpNo];
+        }
+        ModelPredictiveScheduler p = this.scheduler;
+        if (p != null) {
+            pumpNo = p.schedule(water, steam, this.steamForecaster, this.pumpFailures,
+                    this.onOffPumps) - 1;
+            this.rescueWaterEstimate = p.getPredictedLevel(0);
+            this.requiredInflow = p.getChosenFlow();
         }
         return pumpNo;
     }
 
     /**
-     * Turns on number of pumps, turns off the rest of the pipes
+     * Turns on number of pumps, turns off the rest of the pipes. Stuck pumps are
+     * never turned on, and those stuck open count towards the number. Where the
+     * pumps have different capacities, the pumps whose combined capacity best
+     * matches the required inflow are turned on instead of the first ones. If a
+     * planner is set, pumps which are already running are preferred, and every
+     * pump switched is counted either way.
      *
      * @param numberofPumps no of pumps to turn on
      */
     public void turnOnPumps(int numberofPumps) {
-        if (this.brokenPumpNo > -1) {
-            if (stuck) {
-                numberofPumps--;
+        PumpSelector selector = this.pumpSelector;
+        PumpPlanner p = this.planner;
+        boolean[] chosen = this.chosenPumps;
+        if (selector != null && numberofPumps >= 0) {
+            selector.select(this.pumpFailures, this.requiredInflow, chosen);
+            if (p != null) {
+                keepRunningPumps(p, chosen);
             }
-            if (numberofPumps == this.configuration.getNumberOfPumps()) {
-                numberofPumps--;
+        } else if (p != null) {
+            chooseRunningPumps(numberofPumps, chosen);
+        } else {
+            int count = numberofPumps - this.pumpFailures.countStuckOpen();
+            for (int i = 0; i < this.numberOfPumps; i++) {
+                if (this.pumpFailures.isStuck(i)) { // keep closed
+                    chosen[i] = false;
+                } else if (count >= 0) { // open
+                    chosen[i] = true;
+                    count--;
+                } else { // close
+                    chosen[i] = false;
+                }
             }
-            this.outgoing.send(new Message(MessageKind.CLOSE_PUMP_n, this.brokenPumpNo));
-            this.onOffPumps.set(this.brokenPumpNo, false);
-        }
-
-        int count = numberofPumps;
-        for (int i = 0; i < this.configuration.getNumberOfPumps(); i++) {
-            if (count >= 0 && i != this.brokenPumpNo) { // open
-                this.outgoing.send(new Message(MessageKind.OPEN_PUMP_n, i));
-                this.onOffPumps.set(i, true);
-                count--;
-            } else if (i != this.brokenPumpNo) { // close
-                this.outgoing.send(new Message(MessageKind.CLOSE_PUMP_n, i));
-                this.onOffPumps.set(i, false);
+        }
+        for (int i = 0; i < this.numberOfPumps; i++) {
+            if (chosen[i] != this.onOffPumps[i]) {
+                this.onOffPumps[i] = chosen[i];
+                this.pumpToggles++;
             }
+            this.outgoing.send(chosen[i] ? this.openPump[i] : this.closePump[i]);
+        }
+    }
 
-            if (i == this.configuration.getNumberOfPumps()) {
-                return;
+    /**
+     * Get the distance from the middle of the normal range to either edge, beyond
+     * which the planner chooses afresh.
+     *
+     * @return half the width of the normal range
+     */
+    private double normalLimit() {
+        return (this.maximalNormalLevel - this.minimalNormalLevel) / 2;
+    }
+
+    /**
+     * Choose a number of pumps, keeping those which are already running before
+     * turning on any others. Stuck pumps are never chosen, and those stuck open
+     * count towards the number.
+     *
+     * @param numberofPumps no of pumps to turn on, less one
+     * @param chosen        set to whether each pump is chosen
+     */
+    private void chooseRunningPumps(int numberofPumps, boolean[] chosen) {
+        int wanted = numberofPumps + 1 - this.pumpFailures.countStuckOpen();
+        for (int i = 0; i < this.numberOfPumps; i++) {
+            chosen[i] = wanted > 0 && this.onOffPumps[i] && !this.pumpFailures.isStuck(i);
+            if (chosen[i]) {
+                wanted--;
+            }
+        }
+        for (int i = 0; i < this.numberOfPumps && wanted > 0; i++) {
+            if (!chosen[i] && !this.pumpFailures.isStuck(i)) {
+                chosen[i] = true;
+                wanted--;
             }
         }
+    }
 
+    /**
+     * Go back to the pumps which are already running (apart from any now stuck),
+     * instead of those chosen, if the planner prefers to keep them.
+     *
+     * @param p      the planner
+     * @param chosen the pumps chosen, which are replaced if the running pumps
+     *               are kept
+     */
+    private void keepRunningPumps(PumpPlanner p, boolean[] chosen) {
+        double target = this.requiredInflow;
+        for (int i = this.pumpFailures.nextStuck(0); i >= 0; i = this.pumpFailures
+                .nextStuck(i + 1)) {
+            if (this.pumpFailures.isStuckOpen(i)) {
+                target -= this.pumpCapacities[i];
+            }
+        }
+        double running = 0;
+        double best = 0;
+        int switches = 0;
+        for (int i = 0; i < this.numberOfPumps; i++) {
+            boolean on = this.onOffPumps[i] && !this.pumpFailures.isStuck(i);
+            if (on) {
+                running += this.pumpCapacities[i];
+            }
+            if (chosen[i]) {
+                best += this.pumpCapacities[i];
+            }
+            if (on != chosen[i]) {
+                switches++;
+            }
+        }
+        double t = this.periodSeconds;
+        if (p.keep(Math.abs(running - target) * t, Math.abs(best - target) * t, switches,
+                normalLimit())) {
+            for (int i = 0; i < this.numberOfPumps; i++) {
+                chosen[i] = this.onOffPumps[i] && !this.pumpFailures.isStuck(i);
+            }
+        }
     }
 
     /**
@@ -516,15 +1321,11 @@ public class MySteamBoilerController implements SteamBoilerController {
      * @return true if failed, false if not
      */
     public boolean waterLevelFailure() {
-        if (this.levelMessage.getDoubleParameter() < 0) {
-            return true;
-        } else if (this.levelMessage.getDoubleParameter() >= this.configuration.getCapacity()) {
+        if (this.levelAnomaly) {
             return true;
-        } else if ((this.mode != State.READY && this.mode != State.WAITING)
-                && (this.levelMessage.getDoubleParameter() > (this.waterLevel * 2))) {
+        } else if (this.levelMessage.getDoubleParameter() < 0) {
             return true;
-        } else if ((this.mode != State.READY && this.mode != State.WAITING)
-                && (this.levelMessage.getDoubleParameter() < (this.waterLevel - (this.waterLevel / 2)))) {
+        } else if (this.levelMessage.getDoubleParameter() >= this.capacity) {
             return true;
         } else {
             return false;
@@ -532,44 +1333,50 @@ public class MySteamBoilerController implements SteamBoilerController {
     }
 
     /**
-     * Sees if any of the pumps are failing
+     * Check every pump which is not already stuck for a failure. A pump is stuck
+     * if its state differs from what it was last told, and otherwise its
+     * controller has failed if the two disagree. Only pumps which disagreed on
+     * this clock can have failed, so no others are visited. Failures are recorded
+     * straight away, but only reported by {@link #reportPumpFailures()}.
      *
-     * @return true if a pump has failed, false if no pumps have failed
+     * @return true if any pump or controller has newly failed, false if not
      */
-    public int pumpFailure() {
-        if (this.onOffPumps.size() > 0) {
-            for (int i = 0; i < this.pumpStateMessages.length; i++) {
-                if (this.pumpStateMessages[i].getBooleanParameter() != this.onOffPumps.get(i)) {
-                    this.brokenPumpNo = i;
-                    this.stuck = this.pumpStateMessages[i].getBooleanParameter();
-                    return i;
-                }
-                if (i != this.pumpStateMessages.length
-                        && (this.onOffPumps.get(i) == false && this.onOffPumps.get(i++) == true)) {
-                    this.brokenPumpNo = i;
-                    this.stuck = this.pumpStateMessages[i].getBooleanParameter();
-                    return i;
-                }
+    public boolean detectPumpFailures() {
+        this.pumpFailures.clearDetected();
+        boolean detected = false;
+        for (int i = PumpFailures.nextSetBit(this.pumpMismatches, 0); i >= 0; i = PumpFailures
+                .nextSetBit(this.pumpMismatches, i + 1)) {
+            if (this.pumpFailures.isStuck(i)) {
+                continue;
+            }
+            boolean on = this.pumpStateMessages[i].getBooleanParameter();
+            if (on != this.onOffPumps[i]) {
+                this.pumpFailures.markStuck(i, on);
+                detected = true;
+            } else if (!this.pumpFailures.isControllerFailed(i)
+                    && on != this.pumpControlStateMessages[i].getBooleanParameter()) {
+                this.pumpFailures.markControllerFailed(i);
+                detected = true;
             }
         }
-        return -1;
+        return detected;
     }
 
     /**
-     * Checks if any pump controllers are failing
-     *
-     * @return no of controller that is broken
+     * Send a failure detection for every pump or controller which failed on this
+     * clock, all of which disagreed on this clock.
      */
-    public int pumpControllerFailure() {
-        if (this.onOffPumps.size() > 0) {
-            for (int i = 0; i < this.pumpControlStateMessages.length; i++) {
-                if (this.pumpControlStateMessages[i].getBooleanParameter() != this.pumpStateMessages[i]
-                        .getBooleanParameter()) {
-                    return i;
-                }
+    private void reportPumpFailures() {
+        for (int i = PumpFailures.nextSetBit(this.pumpMismatches, 0); i >= 0; i = PumpFailures
+                .nextSetBit(this.pumpMismatches, i + 1)) {
+            if (!this.pumpFailures.isDetected(i)) {
+                continue;
+            } else if (this.pumpFailures.isStuck(i)) {
+                this.outgoing.send(this.pumpFailureDetection[i]);
+            } else {
+                this.outgoing.send(this.pumpControlFailureDetection[i]);
             }
         }
-        return -1;
     }
 
     /**
@@ -579,13 +1386,12 @@ public class MySteamBoilerController implements SteamBoilerController {
      */
     public boolean nearMaxMin() {
         double water = this.levelMessage.getDoubleParameter();
-        double no = (this.configuration.getMaximalLimitLevel()
-                - this.configuration.getMaximalNormalLevel()) / 4;
-        if (water > this.configuration.getMaximalLimitLevel()
-                || water > this.configuration.getMaximalLimitLevel() - no) {
+        double no = this.limitMargin;
+        if (water > this.maximalLimitLevel
+                || water > this.maximalLimitLevel - no) {
             return true;
-        } else if (water < this.configuration.getMinimalLimitLevel()
-                || water < this.configuration.getMinimalLimitLevel() + no) {
+        } else if (water < this.minimalLimitLevel
+                || water < this.minimalLimitLevel + no) {
 
             return true;
         }
@@ -598,7 +1404,7 @@ public class MySteamBoilerController implements SteamBoilerController {
      * @return true if over, false if not
      */
     public boolean overMax() {
-        if (this.levelMessage.getDoubleParameter() > this.configuration.getMaximalLimitLevel()) {
+        if (this.levelMessage.getDoubleParameter() > this.maximalLimitLevel) {
             return true;
         }
         return false;
@@ -614,26 +1420,30 @@ public class MySteamBoilerController implements SteamBoilerController {
         if (steam < 0) {
             return true;
         }
-        if (steam > this.configuration.getMaximualSteamRate()) {
+        if (steam > this.maximalSteamRate) {
             return true;
         }
         return false;
     }
 
     /**
-     * Check to see if water level is near either of the limits in rescue mode.
+     * Check to see if water level is near either of the limits in rescue mode. The
+     * margin kept from the limits grows with the uncertainty of the estimated
+     * level, so it is small just after the level sensor fails and widens for as
+     * long as the boiler runs without it.
      *
      * @return true if near a limit, false if not
      */
     public boolean nearMaxRescue() {
         double water = this.waterLevel;
-        double no = (this.configuration.getMaximalLimitLevel()
-                - this.configuration.getMaximalNormalLevel()) / 2;
-        if (water > this.configuration.getMaximalLimitLevel()
-                || water > this.configuration.getMaximalLimitLevel() - no) {
+        double no = this.limitMargin + (RESCUE_DEVIATIONS * this.levelEstimator.getDeviation());
+        if (Double.isNaN(water)) {
             return true;
-        } else if (water < this.configuration.getMinimalLimitLevel()
-                || water < this.configuration.getMinimalLimitLevel() + no) {
+        } else if (water > this.maximalLimitLevel
+                || water > this.maximalLimitLevel - no) {
+            return true;
+        } else if (water < this.minimalLimitLevel
+                || water < this.minimalLimitLevel + no) {
 
             return true;
         }
@@ -641,41 +1451,106 @@ public class MySteamBoilerController implements SteamBoilerController {
     }
 
     /**
-     * Check whether there was a transmission failure. This is indicated in several
-     * ways. Firstly, when one of the required messages is missing. Secondly, when
-     * the values returned in the messages are nonsensical.
+     * Read the incoming messages for this clock in a single pass. The level and
+     * steam readings are kept if each arrives exactly once, and every pump state
+     * message is put straight into the slot for its pump. As soon as both
+     * messages for a pump have arrived, the pump is compared with what it was told
+     * and with its controller, so that later checks only need to visit the pumps
+     * which disagreed.
      *
-     * @param pumpStates        Extracted PUMP_STATE_n_b messages.
-     * @param pumpControlStates Extracted PUMP_CONTROL_STATE_n_b messages.
-     * @return true or false if transmission failure
+     * @param incoming1 The set of incoming messages from the physical units.
      */
-    private boolean transmissionFailure(Message[] pumpStates, Message[] pumpControlStates) {
-        // Check level readings
-        boolean w = false;
-        boolean s = false;
-        for (int i = 0; i < this.incoming.size(); i++) {
-            Message msg = this.incoming.read(i);
-            if (msg.getKind().equals(MessageKind.LEVEL_v)) {
-                w = true;
+    private void readMessages(Mailbox incoming1) {
+        int clock = ++this.clocks;
+        int n = this.numberOfPumps;
+        Message level = null;
+        Message steam = null;
+        int levels = 0;
+        int steams = 0;
+        int pumpStates = 0;
+        int pumpControlStates = 0;
+        boolean complete = true;
+        Arrays.fill(this.pumpMismatches, 0);
+        this.pumpMismatchCount = 0;
+        this.reportedInflow = 0;
+        for (int i = 0; i != incoming1.size(); ++i) {
+            Message msg = incoming1.read(i);
+            MessageKind kind = msg.getKind();
+            if (kind == MessageKind.LEVEL_v) {
+                level = msg;
+                levels++;
+            } else if (kind == MessageKind.STEAM_v) {
+                steam = msg;
+                steams++;
+            } else if (kind == MessageKind.PUMP_STATE_n_b
+                    || kind == MessageKind.PUMP_CONTROL_STATE_n_b) {
+                int pumpNo = msg.getIntegerParameter();
+                boolean state = kind == MessageKind.PUMP_STATE_n_b;
+                int[] stamps = state ? this.pumpStateClocks : this.pumpControlStateClocks;
+                if (pumpNo < 0 || pumpNo >= n || stamps[pumpNo] == clock) {
+                    // Nonsense pump number, or more than one message for a pump
+                    complete = false;
+                    continue;
+                }
+                stamps[pumpNo] = clock;
+                if (state) {
+                    this.pumpStateMessages[pumpNo] = msg;
+                    pumpStates++;
+                } else {
+                    this.pumpControlStateMessages[pumpNo] = msg;
+                    pumpControlStates++;
+                }
+                int[] others = state ? this.pumpControlStateClocks : this.pumpStateClocks;
+                if (others[pumpNo] == clock) {
+                    comparePump(pumpNo);
+                }
             }
-            if (msg.getKind().equals(MessageKind.STEAM_v)) {
-                s = true;
+        }
+        this.levelMessage = levels == 1 ? level : null;
+        this.steamMessage = steams == 1 ? steam : null;
+        complete &= levels == 1 && steams == 1 && pumpStates == n && pumpControlStates == n;
+        if (!complete) {
+            // Forget any slots not filled on this clock, rather than leave them stale
+            for (int i = 0; i < n; i++) {
+                if (this.pumpStateClocks[i] != clock) {
+                    this.pumpStateMessages[i] = null;
+                }
+                if (this.pumpControlStateClocks[i] != clock) {
+                    this.pumpControlStateMessages[i] = null;
+                }
             }
         }
+        this.messagesComplete = complete;
+    }
 
-        if (!w || !s) {
-            return true;
+    /**
+     * Compare a pump, both of whose messages have arrived on this clock, with
+     * what it was told and with its controller.
+     *
+     * @param pumpNo The pump.
+     */
+    private void comparePump(int pumpNo) {
+        boolean on = this.pumpStateMessages[pumpNo].getBooleanParameter();
+        if (on) {
+            this.reportedInflow += this.pumpCapacities[pumpNo];
         }
-
-        if (pumpStates.length != this.configuration.getNumberOfPumps()) {
-            // Nonsense pump state readings
-            return true;
-        } else if (pumpControlStates.length != this.configuration.getNumberOfPumps()) {
-            // Nonsense pump control state readings
-            return true;
+        if (on != this.onOffPumps[pumpNo]
+                || on != this.pumpControlStateMessages[pumpNo].getBooleanParameter()) {
+            this.pumpMismatches[pumpNo >>> 6] |= 1L << pumpNo;
+            this.pumpMismatchCount++;
         }
-        // Done
-        return false;
+    }
+
+    /**
+     * Check whether there was a transmission failure. This is indicated in several
+     * ways. Firstly, when one of the required messages is missing. Secondly, when
+     * the values returned in the messages are nonsensical, such as a reading
+     * which arrives more than once or a pump which does not exist.
+     *
+     * @return true or false if transmission failure
+     */
+    private boolean transmissionFailure() {
+        return !this.messagesComplete;
     }
 
     /**
@@ -702,32 +1577,4 @@ public class MySteamBoilerController implements SteamBoilerController {
         }
         return match;
     }
-
-    /**
-     * Find and extract all messages of a given kind.
-     *
-     * @param kind     The kind of message to look for.
-     * @param incoming The mailbox to search through.
-     * @return The array of matches, which can empty if there were none.
-     */
-    private static Message[] extractAllMatches(MessageKind kind, Mailbox incoming) {
-        int count = 0;
-        // Count the number of matches
-        for (int i = 0; i != incoming.size(); ++i) {
-            Message ith = incoming.read(i);
-            if (ith.getKind() == kind) {
-                count = count + 1;
-            }
-        }
-        // Now, construct resulting array
-        Message[] matches = new Message[count];
-        int index = 0;
-        for (int i = 0; i != incoming.size(); ++i) {
-            Message ith = incoming.read(i);
-            if (ith.getKind() == kind) {
-                matches[index++] = ith;
-            }
-        }
-        return matches;
-    }
 }
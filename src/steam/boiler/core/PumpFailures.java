@@ -0,0 +1,295 @@
+package steam.boiler.core;
+
+/**
+ * Records which pumps and pump controllers have failed. Each pump can be stuck
+ * open, stuck closed, or have a failed controller (or a failed pump along with
+ * its controller), and each kind of failure is held in its own bitset with one
+ * bit per pump. A stuck pump cannot be used, whereas a pump whose controller has
+ * failed still works but cannot be checked against it. A further bitset holds
+ * the failures detected on the current clock, so they can be reported once
+ * every pump has been checked. Bitsets are arrays of words, so any number of
+ * pumps can be tracked without allocating once constructed.
+ *
+ * @author eliza
+ *
+ */
+public class PumpFailures {
+    private final long[] stuckOpen;
+    private final long[] stuckClosed;
+    private final long[] controllerFailed;
+    private final long[] detected;
+
+    /**
+     * Construct a record with no failures.
+     *
+     * @param pumps The number of pumps.
+     */
+    public PumpFailures(int pumps) {
+        int words = (pumps + 63) >>> 6;
+        this.stuckOpen = new long[words];
+        this.stuckClosed = new long[words];
+        this.controllerFailed = new long[words];
+        this.detected = new long[words];
+    }
+
+    /**
+     * Construct a copy of another record.
+     *
+     * @param other The record to copy.
+     */
+    public PumpFailures(PumpFailures other) {
+        this.stuckOpen = other.stuckOpen.clone();
+        this.stuckClosed = other.stuckClosed.clone();
+        this.controllerFailed = other.controllerFailed.clone();
+        this.detected = other.detected.clone();
+    }
+
+    private static boolean get(long[] bits, int pumpNo) {
+        return (bits[pumpNo >>> 6] & (1L << pumpNo)) != 0;
+    }
+
+    private static void set(long[] bits, int pumpNo, boolean value) {
+        if (value) {
+            bits[pumpNo >>> 6] |= 1L << pumpNo;
+        } else {
+            bits[pumpNo >>> 6] &= ~(1L << pumpNo);
+        }
+    }
+
+    /**
+     * Check whether a pump has been found stuck open.
+     *
+     * @param pumpNo The pump.
+     * @return true if the pump is stuck open
+     */
+    public boolean isStuckOpen(int pumpNo) {
+        return get(this.stuckOpen, pumpNo);
+    }
+
+    /**
+     * Check whether a pump has been found stuck closed.
+     *
+     * @param pumpNo The pump.
+     * @return true if the pump is stuck closed
+     */
+    public boolean isStuckClosed(int pumpNo) {
+        return get(this.stuckClosed, pumpNo);
+    }
+
+    /**
+     * Check whether a pump's controller has failed, in which case the pump can
+     * still be used but not checked against it.
+     *
+     * @param pumpNo The pump.
+     * @return true if the pump's controller has failed
+     */
+    public boolean isControllerFailed(int pumpNo) {
+        return get(this.controllerFailed, pumpNo);
+    }
+
+    /**
+     * Check whether a pump is stuck, and so cannot be used.
+     *
+     * @param pumpNo The pump.
+     * @return true if the pump is stuck open or closed
+     */
+    public boolean isStuck(int pumpNo) {
+        return ((this.stuckOpen[pumpNo >>> 6] | this.stuckClosed[pumpNo >>> 6])
+                & (1L << pumpNo)) != 0;
+    }
+
+    /**
+     * Find the next stuck pump, so that only stuck pumps need be visited.
+     *
+     * @param from The pump to start from.
+     * @return the first stuck pump at or after from, or -1 if there are none
+     */
+    public int nextStuck(int from) {
+        int w = from >>> 6;
+        if (w >= this.stuckOpen.length) {
+            return -1;
+        }
+        long bits = (this.stuckOpen[w] | this.stuckClosed[w]) & (-1L << from);
+        while (bits == 0) {
+            if (++w == this.stuckOpen.length) {
+                return -1;
+            }
+            bits = this.stuckOpen[w] | this.stuckClosed[w];
+        }
+        return (w << 6) + Long.numberOfTrailingZeros(bits);
+    }
+
+    /**
+     * Check whether the pumps which are stuck are exactly those in a bitset.
+     *
+     * @param bits A bitset with one bit per pump.
+     * @return true if the same pumps are stuck
+     */
+    public boolean isStuckExactly(long[] bits) {
+        for (int w = 0; w < this.stuckOpen.length; w++) {
+            if ((this.stuckOpen[w] | this.stuckClosed[w]) != bits[w]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Copy the pumps which are stuck into a bitset.
+     *
+     * @param bits A bitset with one bit per pump, which is overwritten.
+     */
+    public void copyStuck(long[] bits) {
+        for (int w = 0; w < this.stuckOpen.length; w++) {
+            bits[w] = this.stuckOpen[w] | this.stuckClosed[w];
+        }
+    }
+
+    /**
+     * Find the next set bit in a bitset held as an array of words.
+     *
+     * @param bits The bitset.
+     * @param from The bit to start from.
+     * @return the first set bit at or after from, or -1 if there are none
+     */
+    static int nextSetBit(long[] bits, int from) {
+        int w = from >>> 6;
+        if (w >= bits.length) {
+            return -1;
+        }
+        long word = bits[w] & (-1L << from);
+        while (word == 0) {
+            if (++w == bits.length) {
+                return -1;
+            }
+            word = bits[w];
+        }
+        return (w << 6) + Long.numberOfTrailingZeros(word);
+    }
+
+    /**
+     * Check whether a pump's failure was detected on the current clock.
+     *
+     * @param pumpNo The pump.
+     * @return true if newly detected
+     */
+    public boolean isDetected(int pumpNo) {
+        return get(this.detected, pumpNo);
+    }
+
+    /**
+     * Record that a pump is stuck, as detected on the current clock.
+     *
+     * @param pumpNo The pump.
+     * @param open   true if stuck open, false if stuck closed.
+     */
+    public void markStuck(int pumpNo, boolean open) {
+        set(open ? this.stuckOpen : this.stuckClosed, pumpNo, true);
+        set(this.detected, pumpNo, true);
+    }
+
+    /**
+     * Record that a pump's controller has failed, as detected on the current
+     * clock.
+     *
+     * @param pumpNo The pump.
+     */
+    public void markControllerFailed(int pumpNo) {
+        set(this.controllerFailed, pumpNo, true);
+        set(this.detected, pumpNo, true);
+    }
+
+    /**
+     * Record that a pump has been repaired, which leaves its controller as it
+     * was.
+     *
+     * @param pumpNo The pump.
+     */
+    public void repairPump(int pumpNo) {
+        set(this.stuckOpen, pumpNo, false);
+        set(this.stuckClosed, pumpNo, false);
+    }
+
+    /**
+     * Record that a pump's controller has been repaired, which leaves the pump as
+     * it was.
+     *
+     * @param pumpNo The pump.
+     */
+    public void repairController(int pumpNo) {
+        set(this.controllerFailed, pumpNo, false);
+    }
+
+    /**
+     * Forget the failures detected on the previous clock, ready for the next.
+     */
+    public void clearDetected() {
+        for (int w = 0; w < this.detected.length; w++) {
+            this.detected[w] = 0;
+        }
+    }
+
+    /**
+     * Check whether every pump is in service.
+     *
+     * @return true if there are no failures
+     */
+    public boolean isEmpty() {
+        for (int w = 0; w < this.stuckOpen.length; w++) {
+            if ((this.stuckOpen[w] | this.stuckClosed[w] | this.controllerFailed[w]) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Count the pumps which are stuck, and so cannot be used.
+     *
+     * @return number of stuck pumps
+     */
+    public int countStuck() {
+        int n = 0;
+        for (int w = 0; w < this.stuckOpen.length; w++) {
+            n += Long.bitCount(this.stuckOpen[w] | this.stuckClosed[w]);
+        }
+        return n;
+    }
+
+    /**
+     * Count the pumps which are stuck open, and so still pumping water in.
+     *
+     * @return number of pumps stuck open
+     */
+    public int countStuckOpen() {
+        int n = 0;
+        for (int w = 0; w < this.stuckOpen.length; w++) {
+            n += Long.bitCount(this.stuckOpen[w]);
+        }
+        return n;
+    }
+
+    /**
+     * Encode the failures of a pump as flags, for use in checkpoints.
+     *
+     * @param pumpNo The pump.
+     * @return the flags
+     */
+    public int getFlags(int pumpNo) {
+        return (isStuckOpen(pumpNo) ? 1 : 0) | (isStuckClosed(pumpNo) ? 2 : 0)
+                | (isControllerFailed(pumpNo) ? 4 : 0);
+    }
+
+    /**
+     * Restore the failures of a pump from flags produced by
+     * {@link #getFlags(int)}.
+     *
+     * @param pumpNo The pump.
+     * @param flags  The flags.
+     */
+    public void setFlags(int pumpNo, int flags) {
+        set(this.stuckOpen, pumpNo, (flags & 1) != 0);
+        set(this.stuckClosed, pumpNo, (flags & 2) != 0);
+        set(this.controllerFailed, pumpNo, (flags & 4) != 0);
+    }
+}
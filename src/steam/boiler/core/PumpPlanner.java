@@ -0,0 +1,113 @@
+package steam.boiler.core;
+
+/**
+ * Decides whether to change which pumps are on, so that they are not switched
+ * on and off on every clock as the best number of pumps flips between two
+ * neighbours. Pumps are left as they are whilst the level they lead to stays
+ * within a band (the hysteresis) either side of the target. Otherwise the
+ * choice is made as usual, except that every pump switched adds a cost to it,
+ * measured in litres away from the target. Both are given in litres, so they
+ * are compared directly with the level. Neither applies once the level the
+ * pumps lead to is further from the target than a given limit (such as the
+ * edge of the normal range), so that holding the pumps can never let the level
+ * drift out of it.
+ *
+ * @author eliza
+ *
+ */
+public class PumpPlanner {
+    private final double hysteresis;
+    private final double switchCost;
+
+    /**
+     * Construct a planner.
+     *
+     * @param hysteresis Distance (in litres) from the target within which the
+     *                   pumps are left as they are.
+     * @param switchCost Cost (in litres from the target) of switching one pump.
+     */
+    public PumpPlanner(double hysteresis, double switchCost) {
+        if (hysteresis < 0 || switchCost < 0) {
+            throw new IllegalArgumentException("hysteresis and switch cost must not be negative");
+        }
+        this.hysteresis = hysteresis;
+        this.switchCost = switchCost;
+    }
+
+    /**
+     * Get the distance from the target within which the pumps are left as they
+     * are.
+     *
+     * @return the hysteresis (in litres)
+     */
+    public double getHysteresis() {
+        return this.hysteresis;
+    }
+
+    /**
+     * Get the cost of switching one pump.
+     *
+     * @return the cost (in litres from the target)
+     */
+    public double getSwitchCost() {
+        return this.switchCost;
+    }
+
+    /**
+     * Choose the number of pumps from the level predicted for each number.
+     *
+     * @param predicted The level predicted with one pump at index zero, two at
+     *                  index one, and so on.
+     * @param target    The level aimed for.
+     * @param limit     Distance (in litres) from the target beyond which the
+     *                  number is chosen afresh.
+     * @param current   The index for the number of pumps on now, or -1 if none
+     *                  are.
+     * @return the index for the number of pumps to have on
+     */
+    public int choose(double[] predicted, double target, double limit, int current) {
+        double switchCost = this.switchCost;
+        if (current >= 0 && current < predicted.length) {
+            double error = Math.abs(predicted[current] - target);
+            if (error <= Math.min(this.hysteresis, limit)) {
+                return current;
+            }
+            if (error > limit) {
+                switchCost = 0;
+            }
+        }
+        int best = -1;
+        double bestCost = Double.POSITIVE_INFINITY;
+        for (int i = 0; i < predicted.length; i++) {
+            double cost = Math.abs(predicted[i] - target) + (switchCost * Math.abs(i - current));
+            // Ties go to the number nearest the current one
+            if (cost < bestCost
+                    || (cost == bestCost && Math.abs(i - current) < Math.abs(best - current))) {
+                bestCost = cost;
+                best = i;
+            }
+        }
+        return Math.max(best, 0);
+    }
+
+    /**
+     * Check whether to keep the pumps which are on, rather than switch to a
+     * better set.
+     *
+     * @param currentError Distance (in litres) from the target with the pumps
+     *                     which are on.
+     * @param bestError    Distance (in litres) from the target with the better
+     *                     set.
+     * @param switches     Number of pumps which would be switched.
+     * @param limit        Distance (in litres) from the target beyond which the
+     *                     pumps which are on are never kept.
+     * @return true if the pumps which are on should be kept
+     */
+    public boolean keep(double currentError, double bestError, int switches, double limit) {
+        if (currentError > limit) {
+            return false;
+        }
+        return currentError <= this.hysteresis
+                || currentError <= bestError + (this.switchCost * switches);
+    }
+}
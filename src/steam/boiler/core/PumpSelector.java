@@ -0,0 +1,212 @@
+package steam.boiler.core;
+
+import java.util.Arrays;
+
+/**
+ * Chooses which pumps to turn on when they have different capacities, by
+ * finding the set of working pumps whose combined capacity is closest to the
+ * flow wanted. The sums reachable by each set are found with the usual dynamic
+ * program for subset sums, where capacities are counted in small units so that
+ * the table of sums stays within a fixed size. For each reachable sum the table
+ * records the last pump added to reach it, from which the set is read back, and
+ * for every sum the nearest which is reachable.
+ *
+ * <p>
+ * A table only depends on which pumps are stuck, so tables are kept in a small
+ * cache keyed by the stuck pumps, with the least recently used evicted. Building
+ * a table takes time in proportion to the number of pumps times the number of
+ * sums, but only happens when the stuck pumps change to a set not in the cache.
+ * Otherwise a choice takes constant time to find, plus the time to read back
+ * the pumps in it. Every table is allocated on construction, so choosing pumps
+ * allocates nothing.
+ * </p>
+ *
+ * @author eliza
+ *
+ */
+public class PumpSelector {
+    /**
+     * Largest number of sums in a table.
+     */
+    private static final int MAX_SUMS = 1 << 16;
+
+    /**
+     * Number of units in the smallest pump capacity, unless this would make the
+     * table too large.
+     */
+    private static final int UNITS_PER_PUMP = 16;
+
+    private final double[] pumpCapacities;
+    private final double unit;
+    private final int[] weights;
+    private final int total;
+    private final Table[] cache;
+    private long uses = 0;
+    private int builds = 0;
+
+    /**
+     * The reachable sums for one set of stuck pumps.
+     */
+    private static final class Table {
+        final long[] stuck;
+        /**
+         * Last pump added to reach each sum, the number of pumps for the empty
+         * sum, or -1 if the sum cannot be reached.
+         */
+        final int[] via;
+        final int[] nearest;
+        long used = 0;
+        boolean valid = false;
+
+        Table(int pumps, int sums) {
+            this.stuck = new long[(pumps + 63) >>> 6];
+            this.via = new int[sums];
+            this.nearest = new int[sums];
+        }
+    }
+
+    /**
+     * Construct a selector.
+     *
+     * @param pumpCapacities The capacity of each pump.
+     * @param cacheSize      Number of tables to keep.
+     */
+    public PumpSelector(double[] pumpCapacities, int cacheSize) {
+        this.pumpCapacities = pumpCapacities;
+        double smallest = Double.POSITIVE_INFINITY;
+        double sum = 0;
+        for (double c : pumpCapacities) {
+            if (c > 0) {
+                smallest = Math.min(smallest, c);
+                sum += c;
+            }
+        }
+        this.unit = sum == 0 ? 1
+                : Math.max(smallest / UNITS_PER_PUMP, sum / (MAX_SUMS - 1));
+        this.weights = new int[pumpCapacities.length];
+        int t = 0;
+        for (int i = 0; i < pumpCapacities.length; i++) {
+            this.weights[i] = (int) Math.round(pumpCapacities[i] / this.unit);
+            t += this.weights[i];
+        }
+        this.total = t;
+        this.cache = new Table[cacheSize];
+        for (int i = 0; i < cacheSize; i++) {
+            this.cache[i] = new Table(pumpCapacities.length, t + 1);
+        }
+    }
+
+    /**
+     * Check whether the pumps have different capacities, which is the only case
+     * where the choice of pumps matters.
+     *
+     * @param pumpCapacities The capacity of each pump.
+     * @return true if any two capacities differ
+     */
+    public static boolean isNeeded(double[] pumpCapacities) {
+        for (int i = 1; i < pumpCapacities.length; i++) {
+            if (pumpCapacities[i] != pumpCapacities[0]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Get the number of tables built, which is the number of times the stuck
+     * pumps were not found in the cache.
+     *
+     * @return number of tables built
+     */
+    public int getBuilds() {
+        return this.builds;
+    }
+
+    /**
+     * Choose the pumps to turn on. Pumps stuck open are always on, so count
+     * towards the flow, and stuck pumps are never chosen.
+     *
+     * @param failures Pumps which are out of service.
+     * @param flow     Combined flow (in litres/sec) wanted from every pump.
+     * @param open     Set to whether each pump is chosen.
+     */
+    public void select(PumpFailures failures, double flow, boolean[] open) {
+        Table table = lookup(failures);
+        double wanted = flow;
+        for (int i = failures.nextStuck(0); i >= 0; i = failures.nextStuck(i + 1)) {
+            if (failures.isStuckOpen(i)) {
+                wanted -= this.pumpCapacities[i];
+            }
+        }
+        int q = (int) Math.round(wanted / this.unit);
+        int s = table.nearest[Math.max(0, Math.min(this.total, q))];
+        Arrays.fill(open, false);
+        while (s > 0) {
+            int i = table.via[s];
+            open[i] = true;
+            s -= this.weights[i];
+        }
+    }
+
+    /**
+     * Find the table for the pumps which are currently stuck, building it in
+     * place of the least recently used if there is none.
+     */
+    private Table lookup(PumpFailures failures) {
+        Table oldest = this.cache[0];
+        for (Table t : this.cache) {
+            if (t.valid && failures.isStuckExactly(t.stuck)) {
+                t.used = ++this.uses;
+                return t;
+            }
+            if (!t.valid || (oldest.valid && t.used < oldest.used)) {
+                oldest = t;
+            }
+        }
+        failures.copyStuck(oldest.stuck);
+        build(oldest, failures);
+        oldest.valid = true;
+        oldest.used = ++this.uses;
+        this.builds++;
+        return oldest;
+    }
+
+    /**
+     * Fill in a table for the given stuck pumps.
+     */
+    private void build(Table table, PumpFailures failures) {
+        int[] via = table.via;
+        int[] nearest = table.nearest;
+        Arrays.fill(via, -1);
+        via[0] = this.weights.length;
+        for (int i = 0; i < this.weights.length; i++) {
+            int w = this.weights[i];
+            if (w == 0 || failures.isStuck(i)) {
+                continue;
+            }
+            // Downwards, so each sum is only built from sums without this pump
+            for (int s = this.total; s >= w; s--) {
+                if (via[s] < 0 && via[s - w] >= 0) {
+                    via[s] = i;
+                }
+            }
+        }
+        // The nearest reachable sum at or below each sum, then above if closer
+        int below = 0;
+        for (int s = 0; s <= this.total; s++) {
+            if (via[s] >= 0) {
+                below = s;
+            }
+            nearest[s] = below;
+        }
+        int above = -1;
+        for (int s = this.total; s >= 0; s--) {
+            if (via[s] >= 0) {
+                above = s;
+            }
+            if (above >= 0 && above - s < s - nearest[s]) {
+                nearest[s] = above;
+            }
+        }
+    }
+}
@@ -1,17 +1,51 @@
 package steam.boiler.core;
 
+import java.awt.GraphicsEnvironment;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
 import steam.boiler.simulator.SimulationCharacteristicsDialog;
 import steam.boiler.util.SteamBoilerCharacteristics;
 
 /**
  * Provides a simple way to fire up the simulation interface using a given
- * controller.
+ * controller. Passing <code>--warp [characteristics] [fault schedule]</code>
+ * opens a {@link WarpedSimulation} instead, taking the same characteristics
+ * and fault schedule as a batch run, and see {@link BatchSimulation} for the
+ * arguments accepted when running without a display.
  *
  * @author David J. Pearce
  *
  */
 public class Simulation {
 	public static void main(String[] args) {
+		// Optionally run faster than real time, using the given characteristics.
+		if (args.length > 0 && args[0].equals("--warp")) {
+			if (GraphicsEnvironment.isHeadless()) {
+				System.err.println("--warp needs a display; run without it for a batch simulation");
+				System.exit(2);
+			}
+			try {
+				SteamBoilerCharacteristics config = BatchSimulation.loadCharacteristics(
+						args.length > 1 ? args[1] : "default");
+				List<BatchSimulation.ScheduledFault> faults = args.length > 2
+						? BatchSimulation.parseSchedule(args[2], config)
+						: new ArrayList<>();
+				new WarpedSimulation(config, faults).start();
+			} catch (IOException | IllegalArgumentException e) {
+				System.err.println(e.getMessage());
+				System.err.println(
+						"usage: Simulation --warp [default|pumps=N|FILE] [TIME:FAULT[/PUMP],...]");
+				System.exit(2);
+			}
+			return;
+		}
+		// Without a display, or when given arguments, run a batch simulation instead.
+		if (args.length > 0 || GraphicsEnvironment.isHeadless()) {
+			BatchSimulation.main(args);
+			return;
+		}
 		// Begin the simulation by opening the characteristics selection dialog.
 		new SimulationCharacteristicsDialog((SteamBoilerCharacteristics cs) -> {
 			return new MySteamBoilerController(cs);
@@ -0,0 +1,149 @@
+package steam.boiler.core;
+
+import org.eclipse.jdt.annotation.NonNull;
+
+import steam.boiler.model.SteamBoilerController;
+import steam.boiler.util.Mailbox;
+import steam.boiler.util.SteamBoilerCharacteristics;
+import steam.boiler.util.UnboundedMailbox;
+
+/**
+ * One half of a primary/backup pair of controllers, which share state through a
+ * {@link StateMirror}. The primary publishes its checkpoint at the end of every
+ * clock. The backup is clocked with the same incoming messages, but sends
+ * nothing whilst it tails the published state. If the primary fails to publish
+ * anything between two consecutive clocks of the backup, then the backup takes
+ * over from the last published checkpoint on that clock. It therefore carries
+ * on in the same mode, with the same rescue estimate, as the primary had.
+ *
+ * <p>
+ * Taking over claims a new epoch in the mirror, which fences off the old
+ * primary. An active controller works out its response in a mailbox of its own,
+ * and only sends it once its checkpoint has been published under the epoch it
+ * claimed. A primary which was only late (e.g. because it was paused) rather
+ * than dead therefore finds its publish refused, sends nothing, and steps down
+ * to tail the mirror as a backup. At most one controller sends commands for any
+ * one clock.
+ * </p>
+ *
+ * @author eliza
+ *
+ */
+public class StandbyController implements SteamBoilerController {
+
+    /**
+     * The role a controller starts in.
+     */
+    public enum Role {
+        PRIMARY, BACKUP
+    }
+
+    private final SteamBoilerCharacteristics configuration;
+    private final StateMirror mirror;
+    private final byte[] state;
+
+    /**
+     * The active controller, or null whilst in standby.
+     */
+    private MySteamBoilerController controller;
+
+    /**
+     * The epoch claimed when this controller became active.
+     */
+    private long epoch = -1;
+
+    /**
+     * The version word observed on the previous clock, or negative if none has
+     * been observed yet.
+     */
+    private long lastVersion = -1;
+
+    /**
+     * Indicates whether a consistent state has been read into the state array.
+     */
+    private boolean hasState = false;
+
+    /**
+     * Construct a controller in the given role.
+     *
+     * @param configuration The boiler characteristics to be used.
+     * @param mirror        The shared state.
+     * @param role          Whether to start as primary or backup.
+     */
+    public StandbyController(SteamBoilerCharacteristics configuration, StateMirror mirror,
+            Role role) {
+        this.configuration = configuration;
+        this.mirror = mirror;
+        this.controller = role == Role.PRIMARY ? new MySteamBoilerController(configuration) : null;
+        this.state = new MySteamBoilerController(configuration).getCheckpoint();
+        if (role == Role.PRIMARY) {
+            this.epoch = mirror.claim();
+        }
+    }
+
+    /**
+     * Check whether this controller is currently the active one.
+     *
+     * @return true if active, false if in standby
+     */
+    public boolean isActive() {
+        return this.controller != null;
+    }
+
+    @Override
+    public @NonNull String getStatusMessage() {
+        return this.controller == null ? "STANDBY" : this.controller.getStatusMessage();
+    }
+
+    @Override
+    public void clock(@NonNull Mailbox incoming, @NonNull Mailbox outgoing) {
+        MySteamBoilerController c = this.controller;
+        if (c == null) {
+            long version = this.mirror.read(this.state);
+            long sequence = StateMirror.sequenceOf(version);
+            if ((sequence & 1) == 0 && sequence > 0) {
+                this.hasState = true;
+            }
+            if (version != this.lastVersion) {
+                // Primary is alive, so keep tailing it.
+                this.lastVersion = version;
+                return;
+            }
+            // Primary missed a clock, so take over from its last consistent state,
+            // unless it has published or another backup has claimed since.
+            long claimed = this.mirror.claim(version);
+            if (claimed < 0) {
+                this.lastVersion = this.mirror.getVersion();
+                return;
+            }
+            this.epoch = claimed;
+            c = this.hasState ? new MySteamBoilerController(this.configuration, this.state)
+                    : new MySteamBoilerController(this.configuration);
+            this.controller = c;
+        } else if (StateMirror.epochOf(this.mirror.getVersion()) != this.epoch) {
+            // Replaced whilst not looking, so don't even work out a response.
+            stepDown();
+            return;
+        }
+        Mailbox response = new UnboundedMailbox(100);
+        c.clock(incoming, response);
+        if (!this.mirror.publish(c.getCheckpoint(), this.epoch)) {
+            // Replaced during this clock, so the response must not be sent.
+            stepDown();
+            return;
+        }
+        for (int i = 0; i != response.size(); ++i) {
+            outgoing.send(response.read(i));
+        }
+    }
+
+    /**
+     * Go back to standby after another controller has claimed the mirror, and
+     * tail it from now on.
+     */
+    private void stepDown() {
+        this.controller = null;
+        this.epoch = -1;
+        this.lastVersion = this.mirror.getVersion();
+    }
+}
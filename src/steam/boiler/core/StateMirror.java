@@ -0,0 +1,204 @@
+package steam.boiler.core;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A region of a memory-mapped file holding the most recently published state of
+ * a controller. Several processes on one host can map the same file, with one
+ * publishing and the others reading. Consistency is ensured with a sequence
+ * number which is odd whilst a write is in progress, so a reader can detect and
+ * retry a torn read without any locking.
+ *
+ * <p>
+ * Alongside the sequence number is an epoch, which identifies the controller
+ * allowed to publish. A controller claims the next epoch when it becomes
+ * active, and can only publish whilst the epoch is still the one it claimed.
+ * The two are held in one 64-bit version word (the epoch in the upper half and
+ * the sequence number in the lower), and every change to it is a single
+ * compare-and-set. Claiming therefore fails if anything was published since
+ * the claimant last looked, and a controller which has been replaced finds out
+ * when its next publish fails, however late that is.
+ * </p>
+ *
+ * @author eliza
+ *
+ */
+public class StateMirror implements AutoCloseable {
+    /**
+     * Offset of the version word, followed by the length of the state and then
+     * the state itself.
+     */
+    private static final int VERSION = 0;
+    private static final int LENGTH = 8;
+    private static final int DATA = 16;
+
+    /**
+     * Number of attempts at a consistent read before giving up.
+     */
+    private static final int READ_ATTEMPTS = 100;
+
+    /**
+     * Mask for the sequence number in a version word.
+     */
+    private static final long SEQUENCE_MASK = 0xFFFFFFFFL;
+
+    private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class,
+            ByteOrder.BIG_ENDIAN);
+
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private byte[] scratch = new byte[0];
+
+    /**
+     * Map a file, creating it if necessary.
+     *
+     * @param file     The file to map.
+     * @param capacity The largest state (in bytes) which will be published.
+     * @throws IOException if the file could not be mapped
+     */
+    public StateMirror(Path file, int capacity) throws IOException {
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        this.buffer = this.channel.map(FileChannel.MapMode.READ_WRITE, 0, DATA + capacity);
+    }
+
+    /**
+     * Get the epoch held in a version word.
+     *
+     * @param version The version word.
+     * @return the epoch
+     */
+    public static long epochOf(long version) {
+        return version >>> 32;
+    }
+
+    /**
+     * Get the sequence number held in a version word.
+     *
+     * @param version The version word.
+     * @return the sequence number, which is zero if nothing has been published
+     *         yet, or odd whilst a write is in progress
+     */
+    public static long sequenceOf(long version) {
+        return version & SEQUENCE_MASK;
+    }
+
+    /**
+     * Get the current version word, without reading the state.
+     *
+     * @return the epoch and sequence number
+     */
+    public long getVersion() {
+        return (long) LONGS.getAcquire(this.buffer, VERSION);
+    }
+
+    /**
+     * Claim the next epoch, provided the version word has not changed since it
+     * was last observed. The sequence number is left as it is.
+     *
+     * @param expected The version word last observed.
+     * @return the epoch claimed, or -1 if the version word had changed
+     */
+    public long claim(long expected) {
+        long epoch = epochOf(expected) + 1;
+        long version = (epoch << 32) | sequenceOf(expected);
+        return LONGS.compareAndSet(this.buffer, VERSION, expected, version) ? epoch : -1;
+    }
+
+    /**
+     * Claim the next epoch, whatever the current one is. This is only for a
+     * controller starting as primary, which takes over from any other.
+     *
+     * @return the epoch claimed
+     */
+    public long claim() {
+        for (;;) {
+            long epoch = claim(getVersion());
+            if (epoch >= 0) {
+                return epoch;
+            }
+        }
+    }
+
+    /**
+     * Publish a new state, replacing the previous one, provided the given epoch
+     * is still the current one.
+     *
+     * @param state The state to publish.
+     * @param epoch The epoch claimed by the publisher.
+     * @return false if another controller has since claimed an epoch, in which
+     *         case nothing more may be published under this one
+     */
+    public boolean publish(byte[] state, long epoch) {
+        long before = getVersion();
+        // Carry on from a write which was abandoned part way (e.g. by a crash)
+        long writing = (epoch << 32) | (sequenceOf(before) | 1);
+        if (epochOf(before) != epoch
+                || !LONGS.compareAndSet(this.buffer, VERSION, before, writing)) {
+            return false;
+        }
+        VarHandle.storeStoreFence();
+        ByteBuffer out = this.buffer.duplicate();
+        out.putInt(LENGTH, state.length);
+        out.position(DATA);
+        out.put(state);
+        long sequence = (sequenceOf(writing) + 1) & SEQUENCE_MASK;
+        // Zero means nothing has been published, so skip it on wrapping around
+        long after = (epoch << 32) | (sequence == 0 ? 2 : sequence);
+        // Fails if the epoch was claimed whilst writing, leaving the write
+        // abandoned for the new owner to carry on from.
+        return LONGS.compareAndSet(this.buffer, VERSION, writing, after);
+    }
+
+    /**
+     * Read the latest published state. The given array is only updated if a
+     * consistent state was read.
+     *
+     * @param into Array to copy the state into, which must be exactly the size of
+     *             the published state.
+     * @return the version word of the state. Its sequence number is zero if
+     *         nothing has been published yet, or odd if no consistent state
+     *         could be read (e.g. because the publisher stopped part way through
+     *         a write).
+     */
+    public long read(byte[] into) {
+        if (this.scratch.length != into.length) {
+            this.scratch = new byte[into.length];
+        }
+        long before = 0;
+        for (int i = 0; i != READ_ATTEMPTS; ++i) {
+            before = getVersion();
+            if ((before & 1) != 0) {
+                Thread.onSpinWait();
+                continue;
+            } else if (sequenceOf(before) == 0) {
+                return before;
+            }
+            ByteBuffer in = this.buffer.duplicate();
+            if (in.getInt(LENGTH) != into.length) {
+                throw new IllegalStateException("published state has the wrong length");
+            }
+            in.position(DATA);
+            in.get(this.scratch);
+            VarHandle.loadLoadFence();
+            if (before == getVersion()) {
+                System.arraycopy(this.scratch, 0, into, 0, into.length);
+                return before;
+            }
+        }
+        return before | 1;
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.channel.close();
+    }
+}
@@ -0,0 +1,201 @@
+package steam.boiler.core;
+
+/**
+ * Forecasts the steam rate a short time ahead from a window of recent readings.
+ * The readings are kept in a ring, along with running sums from which a least
+ * squares line through the window is found. The forecast follows that line, and
+ * its bounds are a number of standard deviations of the readings about the line
+ * either side of it. Adding a reading and forecasting both take constant time.
+ * The running sums are recalculated from the ring each time it wraps around, so
+ * that rounding errors cannot build up over a long run.
+ *
+ * @author eliza
+ *
+ */
+public class SteamForecaster {
+    private final double period;
+    private final double deviations;
+    private final double[] readings;
+
+    /**
+     * Position of the next reading in the ring, and the number of readings held.
+     */
+    private int head = 0;
+    private int count = 0;
+
+    /**
+     * Running sums of the readings, their squares, and the readings weighted by
+     * their position in the window (where the oldest is at zero).
+     */
+    private double sum = 0;
+    private double sumSquares = 0;
+    private double sumWeighted = 0;
+
+    /**
+     * Construct a forecaster.
+     *
+     * @param period     Time (in seconds) between readings.
+     * @param window     Number of readings to keep.
+     * @param deviations Number of standard deviations between the forecast and
+     *                   each of its bounds.
+     */
+    public SteamForecaster(double period, int window, double deviations) {
+        this.period = period;
+        this.deviations = deviations;
+        this.readings = new double[window];
+    }
+
+    /**
+     * Construct a copy of another forecaster, in the same state.
+     *
+     * @param other The forecaster to copy.
+     */
+    public SteamForecaster(SteamForecaster other) {
+        this.period = other.period;
+        this.deviations = other.deviations;
+        this.readings = other.readings.clone();
+        this.head = other.head;
+        this.count = other.count;
+        this.sum = other.sum;
+        this.sumSquares = other.sumSquares;
+        this.sumWeighted = other.sumWeighted;
+    }
+
+    /**
+     * Add a steam reading, dropping the oldest if the window is full.
+     *
+     * @param steam The steam reading.
+     */
+    public void add(double steam) {
+        int n = this.readings.length;
+        if (this.count < n) {
+            this.sumWeighted += this.count * steam;
+            this.count++;
+        } else {
+            double oldest = this.readings[this.head];
+            // Every remaining reading moves down one position
+            this.sumWeighted += ((n - 1) * steam) - (this.sum - oldest);
+            this.sum -= oldest;
+            this.sumSquares -= oldest * oldest;
+        }
+        this.sum += steam;
+        this.sumSquares += steam * steam;
+        this.readings[this.head] = steam;
+        this.head++;
+        if (this.head == n) {
+            this.head = 0;
+            if (this.count == n) {
+                recalculate();
+            }
+        }
+    }
+
+    /**
+     * Recalculate the running sums from the ring, which has just wrapped around
+     * so the oldest reading is at the start.
+     */
+    private void recalculate() {
+        double s = 0;
+        double q = 0;
+        double w = 0;
+        for (int i = 0; i < this.readings.length; i++) {
+            double r = this.readings[i];
+            s += r;
+            q += r * r;
+            w += i * r;
+        }
+        this.sum = s;
+        this.sumSquares = q;
+        this.sumWeighted = w;
+    }
+
+    /**
+     * Check whether there are no readings to forecast from.
+     *
+     * @return true if there are no readings
+     */
+    public boolean isEmpty() {
+        return this.count == 0;
+    }
+
+    /**
+     * Get the slope of the line through the window.
+     *
+     * @return the change in steam rate per second
+     */
+    public double getTrend() {
+        int k = this.count;
+        if (k < 2) {
+            return 0;
+        }
+        double x = k * (k - 1) / 2.0;
+        double xx = (k - 1) * k * ((2.0 * k) - 1) / 6.0;
+        return ((k * this.sumWeighted) - (x * this.sum)) / ((k * xx) - (x * x)) / this.period;
+    }
+
+    /**
+     * Forecast the steam rate a given time after the latest reading.
+     *
+     * @param horizon Time (in seconds) after the latest reading.
+     * @return the forecast, or NaN if there are no readings
+     */
+    public double forecast(double horizon) {
+        int k = this.count;
+        if (k == 0) {
+            return Double.NaN;
+        }
+        double mean = this.sum / k;
+        // The line passes through the mean at the middle of the window
+        return mean + (getTrend() * ((((k - 1) / 2.0) * this.period) + horizon));
+    }
+
+    /**
+     * Get the lowest steam rate expected at a given time after the latest reading.
+     *
+     * @param horizon Time (in seconds) after the latest reading.
+     * @return the lower bound, or NaN if there are no readings
+     */
+    public double getLowerBound(double horizon) {
+        return forecast(horizon) - (this.deviations * getDeviation());
+    }
+
+    /**
+     * Get the highest steam rate expected at a given time after the latest
+     * reading.
+     *
+     * @param horizon Time (in seconds) after the latest reading.
+     * @return the upper bound, or NaN if there are no readings
+     */
+    public double getUpperBound(double horizon) {
+        return forecast(horizon) + (this.deviations * getDeviation());
+    }
+
+    /**
+     * Get the standard deviation of the readings about the line through the
+     * window.
+     *
+     * @return the standard deviation
+     */
+    public double getDeviation() {
+        int k = this.count;
+        if (k < 3) {
+            return 0;
+        }
+        double slope = getTrend() * this.period;
+        double x = k * (k - 1) / 2.0;
+        double intercept = (this.sum - (slope * x)) / k;
+        double residuals = this.sumSquares - (intercept * this.sum) - (slope * this.sumWeighted);
+        return Math.sqrt(Math.max(0, residuals) / (k - 2));
+    }
+
+    /**
+     * Forget all readings, such as when the steam sensor has failed.
+     */
+    public void reset() {
+        this.head = 0;
+        this.count = 0;
+        this.sum = 0;
+        this.sumSquares = 0;
+        this.sumWeighted = 0;
+    }
+}
@@ -0,0 +1,396 @@
+package steam.boiler.core;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import steam.boiler.util.Mailbox.Message;
+
+/**
+ * Captures the inputs and decisions of every clock into an off-heap ring of
+ * fixed-size records, which a background thread flushes to a memory-mapped
+ * time-series file. The controller's thread only writes into the ring and then
+ * advances a counter, so capturing a clock neither allocates nor locks. If the
+ * writer falls so far behind that records are overwritten before being
+ * flushed, they are counted as dropped rather than written torn.
+ *
+ * <p>
+ * The file begins with a header giving the record size, the number of pumps
+ * and the number of records written so far. The count is only advanced once
+ * the records it covers are in place, so a {@link Reader} can follow the file
+ * whilst it is still being written.
+ * </p>
+ *
+ * @author eliza
+ *
+ */
+public class Telemetry implements AutoCloseable {
+    /**
+     * Identifies a telemetry file, and the version of its layout.
+     */
+    private static final int MAGIC = 0x53425446;
+    private static final int VERSION = 1;
+
+    /**
+     * Offsets in the file header, which is followed by the records.
+     */
+    private static final int HEADER_MAGIC = 0;
+    private static final int HEADER_VERSION = 4;
+    private static final int HEADER_RECORD_SIZE = 8;
+    private static final int HEADER_PUMPS = 12;
+    private static final int HEADER_COUNT = 16;
+    private static final int HEADER_DROPPED = 24;
+    private static final int HEADER = 64;
+
+    /**
+     * Offsets within a record. The fixed part is followed by one byte per pump,
+     * holding its flags.
+     */
+    private static final int TICK = 0;
+    private static final int LEVEL = 8;
+    private static final int STEAM = 16;
+    private static final int RESCUE_ESTIMATE = 24;
+    private static final int MODE = 32;
+    private static final int COMMANDED = 36;
+    private static final int PUMPS = 40;
+
+    /**
+     * Flags for each pump.
+     */
+    public static final int PUMP_ON = 1;
+    public static final int PUMP_CONTROL_ON = 2;
+    public static final int PUMP_COMMANDED = 4;
+
+    private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class,
+            ByteOrder.BIG_ENDIAN);
+
+    private final int pumps;
+    private final int recordSize;
+    private final int capacity;
+    private final ByteBuffer ring;
+
+    /**
+     * Number of records written into the ring, which is only advanced by the
+     * controller's thread.
+     */
+    private final AtomicLong head = new AtomicLong();
+
+    private final FileChannel channel;
+    private final MappedByteBuffer file;
+    private final long fileCapacity;
+    private final Thread writer;
+    private volatile boolean running = true;
+
+    /**
+     * Whether the telemetry has been closed, so that closing again does nothing.
+     */
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    /**
+     * Number of records flushed or dropped, which is only accessed by the writer.
+     */
+    private long tail = 0;
+    private long written = 0;
+    private long dropped = 0;
+
+    /**
+     * Create a telemetry file, replacing any existing file.
+     *
+     * @param path          The file to write.
+     * @param pumps         The number of pumps in the boiler.
+     * @param capacity      The number of records held in the ring.
+     * @param fileCapacity  The number of records the file can hold, after which
+     *                      further records are dropped.
+     * @param flushInterval Time (in ms) between flushes of the ring to the file.
+     * @throws IOException if the file could not be mapped
+     */
+    public Telemetry(Path path, int pumps, int capacity, long fileCapacity, long flushInterval)
+            throws IOException {
+        this.pumps = pumps;
+        this.recordSize = recordSize(pumps);
+        this.capacity = capacity;
+        this.ring = ByteBuffer.allocateDirect(capacity * this.recordSize);
+        this.fileCapacity = fileCapacity;
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        this.file = this.channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                HEADER + (fileCapacity * this.recordSize));
+        this.file.putInt(HEADER_MAGIC, MAGIC);
+        this.file.putInt(HEADER_VERSION, VERSION);
+        this.file.putInt(HEADER_RECORD_SIZE, this.recordSize);
+        this.file.putInt(HEADER_PUMPS, pumps);
+        this.writer = new Thread(() -> {
+            while (this.running) {
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(flushInterval));
+                flush();
+            }
+        }, "telemetry");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * Get the size of a record for a given number of pumps, which is rounded up
+     * so that records stay aligned.
+     *
+     * @param pumps number of pumps
+     * @return size of a record in bytes
+     */
+    private static int recordSize(int pumps) {
+        return (PUMPS + pumps + 7) & ~7;
+    }
+
+    /**
+     * Capture a single clock. This must only be called from one thread.
+     *
+     * @param level             The level reading, or NaN if there was none.
+     * @param steam             The steam reading, or NaN if there was none.
+     * @param mode              The mode at the end of the clock.
+     * @param rescueEstimate    The estimated level used in rescue mode.
+     * @param pumpStates        PUMP_STATE_n_b messages received, indexed by pump
+     *                          number, with null for any not received.
+     * @param pumpControlStates PUMP_CONTROL_STATE_n_b messages received, indexed
+     *                          by pump number, with null for any not received.
+     * @param commanded         Whether each pump was commanded open.
+     */
+    public void record(double level, double steam, Enum<?> mode, double rescueEstimate,
+            Message[] pumpStates, Message[] pumpControlStates,
+            boolean[] commanded) {
+        long tick = this.head.get();
+        int at = (int) (tick % this.capacity) * this.recordSize;
+        ByteBuffer r = this.ring;
+        r.putLong(at + TICK, tick);
+        r.putDouble(at + LEVEL, level);
+        r.putDouble(at + STEAM, steam);
+        r.putDouble(at + RESCUE_ESTIMATE, rescueEstimate);
+        r.putInt(at + MODE, mode.ordinal());
+        int count = 0;
+        for (int i = 0; i < this.pumps; i++) {
+            int flags = 0;
+            Message state = i < pumpStates.length ? pumpStates[i] : null;
+            if (state != null && state.getBooleanParameter()) {
+                flags |= PUMP_ON;
+            }
+            Message control = i < pumpControlStates.length ? pumpControlStates[i] : null;
+            if (control != null && control.getBooleanParameter()) {
+                flags |= PUMP_CONTROL_ON;
+            }
+            if (commanded[i]) {
+                flags |= PUMP_COMMANDED;
+                count++;
+            }
+            r.put(at + PUMPS + i, (byte) flags);
+        }
+        r.putInt(at + COMMANDED, count);
+        // Publishes the record to the writer
+        this.head.lazySet(tick + 1);
+    }
+
+    /**
+     * Copy any new records from the ring into the file, then advance the count in
+     * the file header.
+     */
+    private synchronized void flush() {
+        long end = this.head.get();
+        if (end - this.tail > this.capacity) {
+            // Overwritten before they could be flushed
+            this.dropped += end - this.tail - this.capacity;
+            this.tail = end - this.capacity;
+        }
+        for (; this.tail < end; this.tail++) {
+            if (this.written == this.fileCapacity) {
+                this.dropped += end - this.tail;
+                this.tail = end;
+                break;
+            }
+            int at = (int) (this.tail % this.capacity) * this.recordSize;
+            ByteBuffer record = this.ring.duplicate();
+            record.limit(at + this.recordSize).position(at);
+            ByteBuffer out = this.file.duplicate();
+            out.position(HEADER + (int) (this.written * this.recordSize));
+            out.put(record);
+            VarHandle.loadLoadFence();
+            if (this.head.get() - this.tail >= this.capacity) {
+                // Overwritten whilst being copied, so discard it
+                this.dropped++;
+                continue;
+            }
+            this.written++;
+        }
+        LONGS.setRelease(this.file, HEADER_DROPPED, this.dropped);
+        LONGS.setRelease(this.file, HEADER_COUNT, this.written);
+    }
+
+    /**
+     * Get the number of records which were never written to the file.
+     *
+     * @return number of dropped records
+     */
+    public synchronized long getDropped() {
+        return this.dropped;
+    }
+
+    /**
+     * Stop the writer, flush any remaining records and close the file. Closing
+     * telemetry which is already closed does nothing.
+     */
+    @Override
+    public void close() throws IOException {
+        if (!this.closed.compareAndSet(false, true)) {
+            return;
+        }
+        this.running = false;
+        LockSupport.unpark(this.writer);
+        try {
+            this.writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+        this.file.force();
+        this.channel.close();
+    }
+
+    /**
+     * Reads a telemetry file, which may still be being written by another
+     * process.
+     */
+    public static class Reader implements AutoCloseable {
+        private final FileChannel channel;
+        private final MappedByteBuffer file;
+        private final int recordSize;
+        private final int pumps;
+
+        /**
+         * Open a telemetry file for reading.
+         *
+         * @param path The file to read.
+         * @throws IOException if the file could not be mapped, or is not a
+         *                     telemetry file
+         */
+        public Reader(Path path) throws IOException {
+            this.channel = FileChannel.open(path, StandardOpenOption.READ);
+            this.file = this.channel.map(FileChannel.MapMode.READ_ONLY, 0, this.channel.size());
+            if (this.file.getInt(HEADER_MAGIC) != MAGIC) {
+                throw new IOException("not a telemetry file");
+            } else if (this.file.getInt(HEADER_VERSION) != VERSION) {
+                throw new IOException("unsupported telemetry version " + this.file.getInt(HEADER_VERSION));
+            }
+            this.recordSize = this.file.getInt(HEADER_RECORD_SIZE);
+            this.pumps = this.file.getInt(HEADER_PUMPS);
+        }
+
+        public int getPumps() {
+            return this.pumps;
+        }
+
+        /**
+         * Get the number of records which have been completely written.
+         *
+         * @return number of records
+         */
+        public long getCount() {
+            return (long) LONGS.getAcquire(this.file, HEADER_COUNT);
+        }
+
+        /**
+         * Get the number of records dropped by the writer so far.
+         *
+         * @return number of dropped records
+         */
+        public long getDropped() {
+            return (long) LONGS.getAcquire(this.file, HEADER_DROPPED);
+        }
+
+        private int offset(long i) {
+            return HEADER + (int) (i * this.recordSize);
+        }
+
+        /**
+         * Get the tick at which a record was captured.
+         *
+         * @param i Index of the record.
+         * @return the tick
+         */
+        public long getTick(long i) {
+            return this.file.getLong(offset(i) + TICK);
+        }
+
+        public double getLevel(long i) {
+            return this.file.getDouble(offset(i) + LEVEL);
+        }
+
+        public double getSteam(long i) {
+            return this.file.getDouble(offset(i) + STEAM);
+        }
+
+        public double getRescueEstimate(long i) {
+            return this.file.getDouble(offset(i) + RESCUE_ESTIMATE);
+        }
+
+        /**
+         * Get the mode at the end of the clock, by its position in the controller's
+         * list of modes.
+         *
+         * @param i Index of the record.
+         * @return the mode
+         */
+        public int getMode(long i) {
+            return this.file.getInt(offset(i) + MODE);
+        }
+
+        public int getCommanded(long i) {
+            return this.file.getInt(offset(i) + COMMANDED);
+        }
+
+        /**
+         * Get the flags of a pump, made up of {@link Telemetry#PUMP_ON},
+         * {@link Telemetry#PUMP_CONTROL_ON} and {@link Telemetry#PUMP_COMMANDED}.
+         *
+         * @param i      Index of the record.
+         * @param pumpNo The pump.
+         * @return the flags
+         */
+        public int getPumpFlags(long i, int pumpNo) {
+            return this.file.get(offset(i) + PUMPS + pumpNo);
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.channel.close();
+        }
+
+        /**
+         * Print a telemetry file as CSV.
+         *
+         * @param args The file to read.
+         * @throws IOException if the file could not be read
+         */
+        public static void main(String[] args) throws IOException {
+            try (Reader in = new Reader(Path.of(args[0]))) {
+                System.out.println("tick,mode,level,steam,rescue_estimate,commanded,pumps");
+                long count = in.getCount();
+                for (long i = 0; i < count; i++) {
+                    StringBuilder pumps = new StringBuilder();
+                    for (int p = 0; p < in.getPumps(); p++) {
+                        pumps.append(in.getPumpFlags(i, p));
+                    }
+                    System.out.println(in.getTick(i) + "," + in.getMode(i) + "," + in.getLevel(i)
+                            + "," + in.getSteam(i) + "," + in.getRescueEstimate(i) + ","
+                            + in.getCommanded(i) + "," + pumps);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,419 @@
+package steam.boiler.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * A compressed encoding for recorded telemetry, in the style of Facebook's
+ * Gorilla time-series database. Times are stored as the difference between
+ * successive deltas, which is almost always zero since the controller is
+ * clocked at a fixed rate. Readings are stored as the XOR of each value with the
+ * previous one, which for slowly changing values has long runs of leading and
+ * trailing zeros that need not be stored. The mode and pump flags are only
+ * stored when they change, with the pump flags run-length encoded since
+ * neighbouring pumps are usually in the same state.
+ *
+ * <p>
+ * An encoding begins with the number of pumps and the number of records,
+ * followed by the records as a stream of bits.
+ * </p>
+ *
+ * @author eliza
+ *
+ */
+public class TelemetryCodec {
+    /**
+     * Size of the header before the bit stream.
+     */
+    private static final int HEADER = 12;
+
+    /**
+     * Number of bits used to store a mode, and a pump's flags.
+     */
+    private static final int MODE_BITS = 4;
+    private static final int FLAG_BITS = 3;
+
+    /**
+     * Appends records to an encoding.
+     */
+    public static class Encoder {
+        private final int pumps;
+        private byte[] bytes = new byte[1024];
+        private long bits = HEADER * 8;
+        private long count = 0;
+
+        private long time;
+        private long delta;
+        private final DoubleState level = new DoubleState();
+        private final DoubleState steam = new DoubleState();
+        private final DoubleState rescueEstimate = new DoubleState();
+        private int mode;
+        private final byte[] flags;
+
+        /**
+         * Construct an encoder for a boiler with a given number of pumps.
+         *
+         * @param pumps The number of pumps.
+         */
+        public Encoder(int pumps) {
+            this.pumps = pumps;
+            this.flags = new byte[pumps];
+        }
+
+        /**
+         * Append a record.
+         *
+         * @param time           The time (e.g. in ms) of the record.
+         * @param level          The level reading.
+         * @param steam          The steam reading.
+         * @param rescueEstimate The estimated level used in rescue mode.
+         * @param mode           The mode, by its position in the controller's modes.
+         * @param pumpFlags      The flags of each pump, as in {@link Telemetry}.
+         */
+        public void append(long time, double level, double steam, double rescueEstimate, int mode,
+                byte[] pumpFlags) {
+            if (this.count == 0) {
+                write(time, 64);
+                this.delta = 0;
+            } else {
+                long d = time - this.time;
+                writeDeltaOfDelta(d - this.delta);
+                this.delta = d;
+            }
+            this.time = time;
+            writeDouble(this.level, level);
+            writeDouble(this.steam, steam);
+            writeDouble(this.rescueEstimate, rescueEstimate);
+            if (this.count != 0 && mode == this.mode) {
+                write(0, 1);
+            } else {
+                write(1, 1);
+                write(mode, MODE_BITS);
+                this.mode = mode;
+            }
+            if (this.count != 0 && Arrays.equals(pumpFlags, this.flags)) {
+                write(0, 1);
+            } else {
+                write(1, 1);
+                writeRuns(pumpFlags);
+                System.arraycopy(pumpFlags, 0, this.flags, 0, this.pumps);
+            }
+            this.count++;
+        }
+
+        private void writeDeltaOfDelta(long dod) {
+            if (dod == 0) {
+                write(0, 1);
+            } else if (dod >= -64 && dod <= 63) {
+                write(0b10, 2);
+                write(dod, 7);
+            } else if (dod >= -256 && dod <= 255) {
+                write(0b110, 3);
+                write(dod, 9);
+            } else if (dod >= -2048 && dod <= 2047) {
+                write(0b1110, 4);
+                write(dod, 12);
+            } else {
+                write(0b1111, 4);
+                write(dod, 64);
+            }
+        }
+
+        private void writeDouble(DoubleState state, double value) {
+            long v = Double.doubleToRawLongBits(value);
+            if (this.count == 0) {
+                write(v, 64);
+                state.bits = v;
+                return;
+            }
+            long xor = v ^ state.bits;
+            state.bits = v;
+            if (xor == 0) {
+                write(0, 1);
+                return;
+            }
+            int leading = Math.min(Long.numberOfLeadingZeros(xor), 31);
+            int trailing = Long.numberOfTrailingZeros(xor);
+            if (state.meaningful != 0 && leading >= state.leading && trailing >= state.trailing) {
+                // Fits within the previous window
+                write(0b10, 2);
+                write(xor >>> state.trailing, state.meaningful);
+            } else {
+                int meaningful = 64 - leading - trailing;
+                write(0b11, 2);
+                write(leading, 5);
+                // A length of 64 is stored as zero
+                write(meaningful & 63, 6);
+                write(xor >>> trailing, meaningful);
+                state.leading = leading;
+                state.trailing = trailing;
+                state.meaningful = meaningful;
+            }
+        }
+
+        /**
+         * Write the pump flags as runs, each a value followed by its length.
+         */
+        private void writeRuns(byte[] pumpFlags) {
+            int i = 0;
+            while (i < this.pumps) {
+                int j = i + 1;
+                while (j < this.pumps && pumpFlags[j] == pumpFlags[i]) {
+                    j++;
+                }
+                write(pumpFlags[i], FLAG_BITS);
+                writeLength(j - i);
+                i = j;
+            }
+        }
+
+        /**
+         * Write a positive length using Elias gamma coding, so short runs take few
+         * bits.
+         */
+        private void writeLength(int length) {
+            int n = 31 - Integer.numberOfLeadingZeros(length);
+            write(0, n);
+            write(length, n + 1);
+        }
+
+        /**
+         * Write the low bits of a value, most significant first.
+         */
+        private void write(long value, int n) {
+            for (int i = n - 1; i >= 0; i--) {
+                int index = (int) (this.bits >>> 3);
+                if (index == this.bytes.length) {
+                    this.bytes = Arrays.copyOf(this.bytes, this.bytes.length * 2);
+                }
+                if (((value >>> i) & 1) != 0) {
+                    this.bytes[index] |= (byte) (0x80 >>> (this.bits & 7));
+                }
+                this.bits++;
+            }
+        }
+
+        public long getCount() {
+            return this.count;
+        }
+
+        /**
+         * Get the size of the encoding so far.
+         *
+         * @return size in bytes
+         */
+        public int size() {
+            return (int) ((this.bits + 7) >>> 3);
+        }
+
+        /**
+         * Get the encoding of every record appended so far.
+         *
+         * @return the encoding
+         */
+        public byte[] toByteArray() {
+            byte[] r = Arrays.copyOf(this.bytes, size());
+            ByteBuffer.wrap(r).putInt(0, this.pumps).putLong(4, this.count);
+            return r;
+        }
+    }
+
+    /**
+     * The state needed to encode or decode successive doubles.
+     */
+    private static final class DoubleState {
+        long bits;
+        int leading;
+        int trailing;
+        int meaningful;
+    }
+
+    /**
+     * Iterates forwards through the records of an encoding.
+     */
+    public static class Decoder {
+        private final byte[] bytes;
+        private final int pumps;
+        private final long count;
+        private long bits = HEADER * 8;
+        private long index = 0;
+
+        private long time;
+        private long delta;
+        private final DoubleState level = new DoubleState();
+        private final DoubleState steam = new DoubleState();
+        private final DoubleState rescueEstimate = new DoubleState();
+        private int mode;
+        private final byte[] flags;
+
+        /**
+         * Construct a decoder positioned before the first record.
+         *
+         * @param bytes An encoding produced by {@link Encoder#toByteArray()}.
+         */
+        public Decoder(byte[] bytes) {
+            this.bytes = bytes;
+            ByteBuffer header = ByteBuffer.wrap(bytes);
+            this.pumps = header.getInt(0);
+            this.count = header.getLong(4);
+            this.flags = new byte[this.pumps];
+        }
+
+        public int getPumps() {
+            return this.pumps;
+        }
+
+        public long getCount() {
+            return this.count;
+        }
+
+        /**
+         * Move to the next record.
+         *
+         * @return false if there are no more records
+         */
+        public boolean next() {
+            if (this.index == this.count) {
+                return false;
+            }
+            if (this.index == 0) {
+                this.time = read(64);
+            } else {
+                this.delta += readDeltaOfDelta();
+                this.time += this.delta;
+            }
+            readDouble(this.level);
+            readDouble(this.steam);
+            readDouble(this.rescueEstimate);
+            if (read(1) != 0) {
+                this.mode = (int) read(MODE_BITS);
+            }
+            if (read(1) != 0) {
+                readRuns();
+            }
+            this.index++;
+            return true;
+        }
+
+        private long readDeltaOfDelta() {
+            if (read(1) == 0) {
+                return 0;
+            } else if (read(1) == 0) {
+                return signed(read(7), 7);
+            } else if (read(1) == 0) {
+                return signed(read(9), 9);
+            } else if (read(1) == 0) {
+                return signed(read(12), 12);
+            }
+            return read(64);
+        }
+
+        /**
+         * Interpret the low bits of a value as two's complement.
+         */
+        private static long signed(long value, int n) {
+            return (value << (64 - n)) >> (64 - n);
+        }
+
+        private void readDouble(DoubleState state) {
+            if (this.index == 0) {
+                state.bits = read(64);
+                return;
+            } else if (read(1) == 0) {
+                return;
+            }
+            if (read(1) != 0) {
+                state.leading = (int) read(5);
+                int meaningful = (int) read(6);
+                state.meaningful = meaningful == 0 ? 64 : meaningful;
+                state.trailing = 64 - state.leading - state.meaningful;
+            }
+            state.bits ^= read(state.meaningful) << state.trailing;
+        }
+
+        private void readRuns() {
+            int i = 0;
+            while (i < this.pumps) {
+                byte value = (byte) read(FLAG_BITS);
+                int n = 0;
+                while (read(1) == 0) {
+                    n++;
+                }
+                int length = (int) ((1L << n) | read(n));
+                Arrays.fill(this.flags, i, i + length, value);
+                i += length;
+            }
+        }
+
+        private long read(int n) {
+            long value = 0;
+            for (int i = 0; i < n; i++) {
+                int b = this.bytes[(int) (this.bits >>> 3)] >>> (7 - (this.bits & 7));
+                value = (value << 1) | (b & 1);
+                this.bits++;
+            }
+            return value;
+        }
+
+        public long getTime() {
+            return this.time;
+        }
+
+        public double getLevel() {
+            return Double.longBitsToDouble(this.level.bits);
+        }
+
+        public double getSteam() {
+            return Double.longBitsToDouble(this.steam.bits);
+        }
+
+        public double getRescueEstimate() {
+            return Double.longBitsToDouble(this.rescueEstimate.bits);
+        }
+
+        public int getMode() {
+            return this.mode;
+        }
+
+        public int getPumpFlags(int pumpNo) {
+            return this.flags[pumpNo];
+        }
+    }
+
+    /**
+     * Encode every record in a telemetry file, using the tick as the time.
+     *
+     * @param in The telemetry to encode.
+     * @return the encoding
+     */
+    public static byte[] encode(Telemetry.Reader in) {
+        Encoder out = new Encoder(in.getPumps());
+        byte[] flags = new byte[in.getPumps()];
+        long count = in.getCount();
+        for (long i = 0; i < count; i++) {
+            for (int p = 0; p < flags.length; p++) {
+                flags[p] = (byte) in.getPumpFlags(i, p);
+            }
+            out.append(in.getTick(i), in.getLevel(i), in.getSteam(i), in.getRescueEstimate(i),
+                    in.getMode(i), flags);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Compress a telemetry file.
+     *
+     * @param args The telemetry file to read, and the file to write.
+     * @throws IOException if either file could not be accessed
+     */
+    public static void main(String[] args) throws IOException {
+        try (Telemetry.Reader in = new Telemetry.Reader(Path.of(args[0]))) {
+            byte[] encoded = encode(in);
+            Files.write(Path.of(args[1]), encoded);
+            System.out.println(in.getCount() + " records in " + encoded.length + " bytes");
+        }
+    }
+}
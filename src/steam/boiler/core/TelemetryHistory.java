@@ -0,0 +1,386 @@
+package steam.boiler.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Recorded telemetry for a single boiler, which can be queried without decoding
+ * all of it. Records are compressed with {@link TelemetryCodec} in blocks of a
+ * fixed number of records, and each block keeps a summary: its first and last
+ * time, the range and total of its level readings, which modes occur in it, and
+ * which modes are entered in it. The first times form a sparse index, so a
+ * query over a time range only looks at the blocks covering it, and the
+ * summaries let whole blocks be skipped (or, for level statistics, used in place
+ * of their records) without decoding.
+ *
+ * <p>
+ * Modes are given by their position in the controller's modes, as returned by
+ * {@link MySteamBoilerController#modeIndex(String)}.
+ * </p>
+ *
+ * @author eliza
+ *
+ */
+public class TelemetryHistory {
+    private final int pumps;
+    private final int blockSize;
+
+    /**
+     * Encoded blocks, along with the encoder for the block being filled.
+     */
+    private final List<byte[]> blocks = new ArrayList<>();
+    private TelemetryCodec.Encoder current;
+
+    /**
+     * Summary of each block, including the one being filled.
+     */
+    private long[] firstTime = new long[16];
+    private long[] lastTime = new long[16];
+    private int[] levelCount = new int[16];
+    private double[] levelMin = new double[16];
+    private double[] levelMax = new double[16];
+    private double[] levelSum = new double[16];
+    private int[] modes = new int[16];
+    private int[] entered = new int[16];
+
+    private long count = 0;
+    private int lastMode = -1;
+
+    /**
+     * A single decoded record.
+     */
+    public static final class Record {
+        public final long time;
+        public final double level;
+        public final double steam;
+        public final double rescueEstimate;
+        public final int mode;
+
+        Record(TelemetryCodec.Decoder d) {
+            this.time = d.getTime();
+            this.level = d.getLevel();
+            this.steam = d.getSteam();
+            this.rescueEstimate = d.getRescueEstimate();
+            this.mode = d.getMode();
+        }
+
+        @Override
+        public String toString() {
+            return this.time + ": mode " + this.mode + ", level " + this.level + ", steam "
+                    + this.steam;
+        }
+    }
+
+    /**
+     * Statistics of the level readings over a period.
+     */
+    public static final class LevelStats {
+        public final long from;
+        public final long to;
+        int count = 0;
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        double sum = 0;
+
+        LevelStats(long from, long to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        void add(int n, double lo, double hi, double total) {
+            this.count += n;
+            this.min = Math.min(this.min, lo);
+            this.max = Math.max(this.max, hi);
+            this.sum += total;
+        }
+
+        /**
+         * Get the number of level readings in the period.
+         *
+         * @return number of readings
+         */
+        public int getCount() {
+            return this.count;
+        }
+
+        public double getMin() {
+            return this.min;
+        }
+
+        public double getMax() {
+            return this.max;
+        }
+
+        /**
+         * Get the mean level over the period.
+         *
+         * @return the mean, or NaN if there were no readings
+         */
+        public double getAverage() {
+            return this.count == 0 ? Double.NaN : this.sum / this.count;
+        }
+    }
+
+    /**
+     * A change of mode, along with the records leading up to it.
+     */
+    public static final class Transition {
+        public final Record record;
+        public final List<Record> preceding;
+
+        Transition(Record record, List<Record> preceding) {
+            this.record = record;
+            this.preceding = preceding;
+        }
+    }
+
+    /**
+     * Construct an empty history.
+     *
+     * @param pumps     The number of pumps in the boiler.
+     * @param blockSize The number of records in each block.
+     */
+    public TelemetryHistory(int pumps, int blockSize) {
+        this.pumps = pumps;
+        this.blockSize = blockSize;
+        this.current = new TelemetryCodec.Encoder(pumps);
+    }
+
+    /**
+     * Construct a history from every record in a telemetry file, using the tick
+     * as the time.
+     *
+     * @param in        The telemetry to read.
+     * @param blockSize The number of records in each block.
+     * @return the history
+     */
+    public static TelemetryHistory of(Telemetry.Reader in, int blockSize) {
+        TelemetryHistory history = new TelemetryHistory(in.getPumps(), blockSize);
+        byte[] flags = new byte[in.getPumps()];
+        long count = in.getCount();
+        for (long i = 0; i < count; i++) {
+            for (int p = 0; p < flags.length; p++) {
+                flags[p] = (byte) in.getPumpFlags(i, p);
+            }
+            history.append(in.getTick(i), in.getLevel(i), in.getSteam(i), in.getRescueEstimate(i),
+                    in.getMode(i), flags);
+        }
+        return history;
+    }
+
+    /**
+     * Append a record, which must be later than every record so far.
+     *
+     * @param time           The time of the record.
+     * @param level          The level reading, or NaN if there was none.
+     * @param steam          The steam reading.
+     * @param rescueEstimate The estimated level used in rescue mode.
+     * @param mode           The mode.
+     * @param pumpFlags      The flags of each pump, as in {@link Telemetry}.
+     */
+    public void append(long time, double level, double steam, double rescueEstimate, int mode,
+            byte[] pumpFlags) {
+        int b = this.blocks.size();
+        if (this.current.getCount() == 0) {
+            if (b == this.firstTime.length) {
+                grow();
+            }
+            this.firstTime[b] = time;
+            this.levelMin[b] = Double.POSITIVE_INFINITY;
+            this.levelMax[b] = Double.NEGATIVE_INFINITY;
+        }
+        this.current.append(time, level, steam, rescueEstimate, mode, pumpFlags);
+        this.lastTime[b] = time;
+        if (!Double.isNaN(level)) {
+            this.levelCount[b]++;
+            this.levelMin[b] = Math.min(this.levelMin[b], level);
+            this.levelMax[b] = Math.max(this.levelMax[b], level);
+            this.levelSum[b] += level;
+        }
+        this.modes[b] |= 1 << mode;
+        if (mode != this.lastMode) {
+            this.entered[b] |= 1 << mode;
+            this.lastMode = mode;
+        }
+        this.count++;
+        if (this.current.getCount() == this.blockSize) {
+            this.blocks.add(this.current.toByteArray());
+            this.current = new TelemetryCodec.Encoder(this.pumps);
+        }
+    }
+
+    private void grow() {
+        int n = this.firstTime.length * 2;
+        this.firstTime = Arrays.copyOf(this.firstTime, n);
+        this.lastTime = Arrays.copyOf(this.lastTime, n);
+        this.levelCount = Arrays.copyOf(this.levelCount, n);
+        this.levelMin = Arrays.copyOf(this.levelMin, n);
+        this.levelMax = Arrays.copyOf(this.levelMax, n);
+        this.levelSum = Arrays.copyOf(this.levelSum, n);
+        this.modes = Arrays.copyOf(this.modes, n);
+        this.entered = Arrays.copyOf(this.entered, n);
+    }
+
+    public long getCount() {
+        return this.count;
+    }
+
+    /**
+     * Get the number of blocks, including a partly filled one.
+     *
+     * @return number of blocks
+     */
+    public int getBlockCount() {
+        return this.blocks.size() + (this.current.getCount() > 0 ? 1 : 0);
+    }
+
+    /**
+     * Get the total size of the encoded blocks.
+     *
+     * @return size in bytes
+     */
+    public long size() {
+        long size = this.current.size();
+        for (byte[] block : this.blocks) {
+            size += block.length;
+        }
+        return size;
+    }
+
+    /**
+     * Find the first block which could hold records at or after a given time,
+     * using a binary search of the first times.
+     */
+    private int firstBlock(long time) {
+        int lo = 0;
+        int hi = getBlockCount() - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (this.firstTime[mid] <= time) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return lo;
+    }
+
+    private TelemetryCodec.Decoder decode(int block) {
+        if (block < this.blocks.size()) {
+            return new TelemetryCodec.Decoder(this.blocks.get(block));
+        }
+        return new TelemetryCodec.Decoder(this.current.toByteArray());
+    }
+
+    /**
+     * Find the times of every record in a given mode within a time range.
+     *
+     * @param mode The mode.
+     * @param from The start of the range (inclusive).
+     * @param to   The end of the range (exclusive).
+     * @return the times in ascending order
+     */
+    public long[] timesInMode(int mode, long from, long to) {
+        long[] times = new long[16];
+        int n = 0;
+        for (int b = firstBlock(from); b < getBlockCount() && this.firstTime[b] < to; b++) {
+            if ((this.modes[b] & (1 << mode)) == 0 || this.lastTime[b] < from) {
+                continue;
+            }
+            TelemetryCodec.Decoder d = decode(b);
+            while (d.next()) {
+                long t = d.getTime();
+                if (t >= from && t < to && d.getMode() == mode) {
+                    if (n == times.length) {
+                        times = Arrays.copyOf(times, n * 2);
+                    }
+                    times[n++] = t;
+                }
+            }
+        }
+        return Arrays.copyOf(times, n);
+    }
+
+    /**
+     * Calculate level statistics for each period within a time range. Blocks
+     * which lie entirely within a single period are summarised without being
+     * decoded.
+     *
+     * @param from   The start of the range (inclusive).
+     * @param to     The end of the range (exclusive).
+     * @param period The length of each period, where the last may be shorter.
+     * @return the statistics of each period in order
+     */
+    public LevelStats[] levelStats(long from, long to, long period) {
+        LevelStats[] stats = new LevelStats[(int) ((to - from + period - 1) / period)];
+        for (int i = 0; i < stats.length; i++) {
+            long start = from + (i * period);
+            stats[i] = new LevelStats(start, Math.min(start + period, to));
+        }
+        for (int b = firstBlock(from); b < getBlockCount() && this.firstTime[b] < to; b++) {
+            if (this.lastTime[b] < from) {
+                continue;
+            }
+            long first = this.firstTime[b];
+            long last = this.lastTime[b];
+            if (first >= from && last < to && (first - from) / period == (last - from) / period) {
+                if (this.levelCount[b] > 0) {
+                    stats[(int) ((first - from) / period)].add(this.levelCount[b], this.levelMin[b],
+                            this.levelMax[b], this.levelSum[b]);
+                }
+                continue;
+            }
+            TelemetryCodec.Decoder d = decode(b);
+            while (d.next()) {
+                long t = d.getTime();
+                double level = d.getLevel();
+                if (t >= from && t < to && !Double.isNaN(level)) {
+                    stats[(int) ((t - from) / period)].add(1, level, level, level);
+                }
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * Find every transition into a given mode, along with the records leading up
+     * to it. Only blocks in which the mode is entered are decoded, along with the
+     * block before when the preceding records start there.
+     *
+     * @param mode      The mode.
+     * @param preceding The number of preceding records to include.
+     * @return the transitions in order
+     */
+    public List<Transition> transitionsInto(int mode, int preceding) {
+        List<Transition> transitions = new ArrayList<>();
+        for (int b = 0; b < getBlockCount(); b++) {
+            if ((this.entered[b] & (1 << mode)) == 0) {
+                continue;
+            }
+            // Decode enough earlier blocks to cover the preceding records, and at least one so
+            // that a mode carried over from the previous block is not mistaken for a transition.
+            int start = b;
+            while (start > 0
+                    && (start == b || (long) (b - start) * this.blockSize < preceding)) {
+                start--;
+            }
+            ArrayList<Record> window = new ArrayList<>();
+            int previous = -1;
+            for (int i = start; i <= b; i++) {
+                TelemetryCodec.Decoder d = decode(i);
+                while (d.next()) {
+                    Record r = new Record(d);
+                    if (i == b && r.mode == mode && previous != mode) {
+                        int from = Math.max(0, window.size() - preceding);
+                        transitions.add(new Transition(r,
+                                new ArrayList<>(window.subList(from, window.size()))));
+                    }
+                    previous = r.mode;
+                    window.add(r);
+                }
+            }
+        }
+        return transitions;
+    }
+}
@@ -0,0 +1,272 @@
+package steam.boiler.core;
+
+import org.eclipse.jdt.annotation.Nullable;
+
+import steam.boiler.util.Mailbox;
+import steam.boiler.util.MemoryAnnotations;
+import steam.boiler.util.Mailbox.Message;
+import steam.boiler.util.UnboundedMailbox;
+
+/**
+ * Records how long each clock of a controller takes, as evidence that it always
+ * responds well within its cycle. The worst case is tracked for each mode a
+ * clock starts in, and for each path through the modes (i.e. each pair of start
+ * and end mode, such as normal cascading into degraded). Clocks which take more
+ * than a given fraction of the budget are flagged, and the slowest clocks are
+ * kept along with their incoming messages so they can be replayed later. The
+ * storage for each mode is allocated when the first clock is recorded, since
+ * only then is the enum of modes known, and everything else up front. Recording
+ * any later clock therefore allocates nothing.
+ *
+ * @author eliza
+ *
+ */
+public class TickMonitor {
+    private final long budget;
+    private final long threshold;
+
+    /**
+     * The enum of modes, and the number of constants in it, or null and zero
+     * until the first clock is recorded.
+     */
+    private @Nullable Class<?> modeType;
+    private int modes = 0;
+
+    private String[] modeNames = new String[0];
+    private long[] maxPerMode = new long[0];
+    private long[] maxPerPath = new long[0];
+    private long[] countPerPath = new long[0];
+
+    private long ticks = 0;
+    private long flagged = 0;
+    private boolean lastFlagged = false;
+
+    /**
+     * The slowest clocks seen so far, ordered from slowest to fastest.
+     */
+    private final long[] slowestTimes;
+    private final long[] slowestTicks;
+    private final int[] slowestPaths;
+    private final Message[][] slowestInputs;
+    private final int[] slowestInputSizes;
+    private int slowestCount = 0;
+
+    /**
+     * Construct a monitor.
+     *
+     * @param budget      The time (in ns) available for each clock.
+     * @param fraction    The fraction of the budget above which a clock is
+     *                    flagged.
+     * @param slowest     The number of slowest clocks to keep.
+     * @param maxMessages The maximum number of incoming messages kept for each of
+     *                    the slowest clocks.
+     */
+    public TickMonitor(long budget, double fraction, int slowest, int maxMessages) {
+        this.budget = budget;
+        this.threshold = (long) (budget * fraction);
+        this.slowestTimes = new long[slowest];
+        this.slowestTicks = new long[slowest];
+        this.slowestPaths = new int[slowest];
+        this.slowestInputs = new Message[slowest][maxMessages];
+        this.slowestInputSizes = new int[slowest];
+    }
+
+    /**
+     * Record a single clock.
+     *
+     * @param from     The mode at the start of the clock.
+     * @param to       The mode at the end of the clock.
+     * @param time     The time (in ns) the clock took.
+     * @param incoming The messages processed by the clock.
+     * @throws IllegalArgumentException if the modes are not from the same enum
+     *                                  as those of earlier clocks
+     */
+    public void record(Enum<?> from, Enum<?> to, long time, Mailbox incoming) {
+        if (from.getDeclaringClass() != this.modeType
+                || to.getDeclaringClass() != this.modeType) {
+            allocateModes(from, to);
+        }
+        int f = from.ordinal();
+        int t = to.ordinal();
+        this.modeNames[f] = from.name();
+        this.modeNames[t] = to.name();
+        int path = (f * this.modes) + t;
+        this.maxPerMode[f] = Math.max(this.maxPerMode[f], time);
+        this.maxPerPath[path] = Math.max(this.maxPerPath[path], time);
+        this.countPerPath[path]++;
+        this.lastFlagged = time > this.threshold;
+        if (this.lastFlagged) {
+            this.flagged++;
+        }
+        recordSlowest(time, path, incoming);
+        this.ticks++;
+    }
+
+    /**
+     * Size the storage for each mode from the enum of modes of the first clock
+     * recorded.
+     *
+     * @param from The mode at the start of the clock.
+     * @param to   The mode at the end of the clock.
+     * @throws IllegalArgumentException if the modes are from different enums,
+     *                                  or storage was already allocated for
+     *                                  another enum
+     */
+    @MemoryAnnotations.Initialisation
+    private void allocateModes(Enum<?> from, Enum<?> to) {
+        Class<?> type = from.getDeclaringClass();
+        if (this.modeType != null || to.getDeclaringClass() != type) {
+            throw new IllegalArgumentException("modes must all be from one enum");
+        }
+        int n = type.getEnumConstants().length;
+        this.modeType = type;
+        this.modes = n;
+        this.modeNames = new String[n];
+        this.maxPerMode = new long[n];
+        this.maxPerPath = new long[n * n];
+        this.countPerPath = new long[n * n];
+    }
+
+    /**
+     * Insert a clock into the slowest list, if it is slow enough. The entry which
+     * drops off the end has its message array reused.
+     */
+    private void recordSlowest(long time, int path, Mailbox incoming) {
+        int n = this.slowestTimes.length;
+        if (n == 0 || (this.slowestCount == n && time <= this.slowestTimes[n - 1])) {
+            return;
+        }
+        int i = Math.min(this.slowestCount, n - 1);
+        Message[] messages = this.slowestInputs[i];
+        while (i > 0 && this.slowestTimes[i - 1] < time) {
+            this.slowestTimes[i] = this.slowestTimes[i - 1];
+            this.slowestTicks[i] = this.slowestTicks[i - 1];
+            this.slowestPaths[i] = this.slowestPaths[i - 1];
+            this.slowestInputs[i] = this.slowestInputs[i - 1];
+            this.slowestInputSizes[i] = this.slowestInputSizes[i - 1];
+            i--;
+        }
+        int size = Math.min(incoming.size(), messages.length);
+        for (int j = 0; j < size; j++) {
+            messages[j] = incoming.read(j);
+        }
+        this.slowestTimes[i] = time;
+        this.slowestTicks[i] = this.ticks;
+        this.slowestPaths[i] = path;
+        this.slowestInputs[i] = messages;
+        this.slowestInputSizes[i] = size;
+        this.slowestCount = Math.min(this.slowestCount + 1, n);
+    }
+
+    /**
+     * Get the time available for each clock.
+     *
+     * @return the budget (in ns)
+     */
+    public long getBudget() {
+        return this.budget;
+    }
+
+    /**
+     * Get the number of clocks recorded.
+     *
+     * @return number of clocks
+     */
+    public long getTicks() {
+        return this.ticks;
+    }
+
+    /**
+     * Get the number of clocks which took longer than the given fraction of the
+     * budget.
+     *
+     * @return number of flagged clocks
+     */
+    public long getFlagged() {
+        return this.flagged;
+    }
+
+    /**
+     * Check whether the most recent clock was flagged.
+     *
+     * @return true if it took longer than the given fraction of the budget
+     */
+    public boolean isLastFlagged() {
+        return this.lastFlagged;
+    }
+
+    /**
+     * Get the longest time taken by any clock starting in a given mode.
+     *
+     * @param mode Name of the mode.
+     * @return the worst case time (in ns), or zero if none recorded
+     */
+    public long getMaximum(String mode) {
+        for (int i = 0; i < this.modes; i++) {
+            if (mode.equals(this.modeNames[i])) {
+                return this.maxPerMode[i];
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Get the number of slowest clocks currently kept.
+     *
+     * @return number of slow clocks
+     */
+    public int getSlowestCount() {
+        return this.slowestCount;
+    }
+
+    /**
+     * Get the time taken by one of the slowest clocks.
+     *
+     * @param i Index of the clock, where zero is the slowest.
+     * @return the time taken (in ns)
+     */
+    public long getSlowestTime(int i) {
+        return this.slowestTimes[i];
+    }
+
+    /**
+     * Get the incoming messages of one of the slowest clocks, so that it can be
+     * replayed against a controller in the same state.
+     *
+     * @param i Index of the clock, where zero is the slowest.
+     * @return a mailbox containing the incoming messages
+     */
+    public Mailbox getSlowestInput(int i) {
+        Mailbox mailbox = new UnboundedMailbox(this.slowestInputSizes[i]);
+        for (int j = 0; j < this.slowestInputSizes[i]; j++) {
+            mailbox.send(this.slowestInputs[i][j]);
+        }
+        return mailbox;
+    }
+
+    private String pathName(int path) {
+        return this.modeNames[path / this.modes] + " -> " + this.modeNames[path % this.modes];
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder r = new StringBuilder();
+        r.append(this.ticks + " ticks, " + this.flagged + " above " + this.threshold + "ns\n");
+        for (int i = 0; i < this.modes; i++) {
+            if (this.maxPerMode[i] > 0) {
+                r.append(this.modeNames[i] + ": max " + this.maxPerMode[i] + "ns\n");
+            }
+        }
+        for (int p = 0; p < this.maxPerPath.length; p++) {
+            if (this.countPerPath[p] > 0) {
+                r.append(pathName(p) + ": max " + this.maxPerPath[p] + "ns over "
+                        + this.countPerPath[p] + " ticks\n");
+            }
+        }
+        for (int i = 0; i < this.slowestCount; i++) {
+            r.append("#" + this.slowestTicks[i] + " " + pathName(this.slowestPaths[i]) + ": "
+                    + this.slowestTimes[i] + "ns\n");
+        }
+        return r.toString();
+    }
+}
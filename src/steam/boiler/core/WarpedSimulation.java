@@ -0,0 +1,204 @@
+package steam.boiler.core;
+
+import java.awt.BorderLayout;
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Graphics;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.swing.JComboBox;
+import javax.swing.JFrame;
+import javax.swing.JPanel;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+
+import steam.boiler.util.SteamBoilerCharacteristics;
+
+/**
+ * An interactive simulation which can run faster than real time. The physical
+ * units and controller are clocked on a dedicated thread at a selectable
+ * multiple of real time, whilst the window is repainted at a fixed frame rate
+ * from whatever the latest tick produced. Any ticks completed between two
+ * frames are therefore never drawn. Faults can be scheduled in the same way as
+ * for a {@link BatchSimulation}, so that a recovery in degraded or rescue mode
+ * can be watched as it happens.
+ *
+ * @author eliza
+ *
+ */
+public class WarpedSimulation {
+    /**
+     * Time (in ms) between repaints of the window.
+     */
+    public static final int FRAME_BUDGET = 40;
+
+    /**
+     * The selectable warp factors, where zero means as fast as possible.
+     */
+    private static final int[] WARPS = { 1, 10, 100, 0 };
+    private static final String[] WARP_NAMES = { "1x", "10x", "100x", "max" };
+
+    /**
+     * The observable state of the system after a tick. Frames are immutable, so
+     * can be handed from the simulation thread to the UI thread without locking.
+     */
+    private static final class Frame {
+        final long time;
+        final String mode;
+        final double level;
+        final double steam;
+        final boolean[] pumps;
+
+        Frame(BatchSimulation s) {
+            this.time = s.getTime();
+            this.mode = s.isEmergencyStop() ? "EMERGENCY_STOP" : s.getStatusMessage();
+            this.level = s.getLevel();
+            this.steam = s.getSteamReading();
+            this.pumps = new boolean[s.getConfiguration().getNumberOfPumps()];
+            for (int i = 0; i != this.pumps.length; ++i) {
+                this.pumps[i] = s.getPumpState(i);
+            }
+        }
+    }
+
+    private final BatchSimulation simulation;
+    private final SteamBoilerCharacteristics configuration;
+    private volatile Frame latest;
+    private volatile int warp = 1;
+
+    /**
+     * Construct a warped simulation of a fresh boiler.
+     *
+     * @param configuration The boiler characteristics to use.
+     */
+    public WarpedSimulation(SteamBoilerCharacteristics configuration) {
+        this(configuration, new ArrayList<>());
+    }
+
+    /**
+     * Construct a warped simulation of a fresh boiler, into which faults are
+     * injected as it runs.
+     *
+     * @param configuration The boiler characteristics to use.
+     * @param faults        Faults to inject, ordered by time (see
+     *                      {@link BatchSimulation#parseSchedule}).
+     */
+    public WarpedSimulation(SteamBoilerCharacteristics configuration,
+            List<BatchSimulation.ScheduledFault> faults) {
+        this.configuration = configuration;
+        this.simulation = new BatchSimulation(configuration, faults);
+        this.latest = new Frame(this.simulation);
+    }
+
+    /**
+     * Set the warp factor.
+     *
+     * @param factor Multiple of real time to run at, or zero for as fast as
+     *               possible.
+     */
+    public void setWarp(int factor) {
+        this.warp = factor;
+    }
+
+    /**
+     * Start the simulation thread and open the window.
+     */
+    public void start() {
+        Thread thread = new Thread(this::simulate, "simulation");
+        thread.setDaemon(true);
+        thread.start();
+        SwingUtilities.invokeLater(this::open);
+    }
+
+    /**
+     * Clock the system until it emergency stops. Each tick is given a deadline
+     * relative to the previous one, so that time spent in the tick itself does not
+     * accumulate as drift.
+     */
+    private void simulate() {
+        long deadline = System.nanoTime();
+        while (!this.simulation.isEmergencyStop()) {
+            this.simulation.tick();
+            this.latest = new Frame(this.simulation);
+            int factor = this.warp;
+            if (factor > 0) {
+                deadline += this.simulation.getPeriod() * 1000000L / factor;
+                long delay = deadline - System.nanoTime();
+                if (delay > 0) {
+                    try {
+                        Thread.sleep(delay / 1000000L, (int) (delay % 1000000L));
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                } else if (delay < -this.simulation.getPeriod() * 1000000L) {
+                    // Too far behind (e.g. after switching from max), so don't try to catch up.
+                    deadline = System.nanoTime();
+                }
+            } else {
+                deadline = System.nanoTime();
+            }
+        }
+    }
+
+    private void open() {
+        JFrame window = new JFrame("Steam Boiler");
+        JPanel view = new JPanel() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected void paintComponent(Graphics g) {
+                super.paintComponent(g);
+                draw(g, getWidth(), getHeight());
+            }
+        };
+        view.setPreferredSize(new Dimension(400, 500));
+        JComboBox<String> warps = new JComboBox<>(WARP_NAMES);
+        warps.addActionListener(e -> setWarp(WARPS[warps.getSelectedIndex()]));
+        window.add(warps, BorderLayout.NORTH);
+        window.add(view, BorderLayout.CENTER);
+        window.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+        window.pack();
+        window.setVisible(true);
+        new Timer(FRAME_BUDGET, e -> view.repaint()).start();
+    }
+
+    /**
+     * Draw the most recent frame, showing the water level against the normal and
+     * limit levels, along with the mode, steam reading and pump states.
+     */
+    private void draw(Graphics g, int width, int height) {
+        Frame frame = this.latest;
+        SteamBoilerCharacteristics c = this.configuration;
+        int top = 60;
+        int bottom = height - 20;
+        int left = 40;
+        int right = width / 2;
+        double scale = (bottom - top) / c.getCapacity();
+        int water = bottom - (int) (frame.level * scale);
+        g.setColor(Color.BLUE);
+        g.fillRect(left, water, right - left, bottom - water);
+        g.setColor(Color.BLACK);
+        g.drawRect(left, top, right - left, bottom - top);
+        g.setColor(Color.RED);
+        g.drawLine(left, bottom - (int) (c.getMinimalLimitLevel() * scale), right,
+                bottom - (int) (c.getMinimalLimitLevel() * scale));
+        g.drawLine(left, bottom - (int) (c.getMaximalLimitLevel() * scale), right,
+                bottom - (int) (c.getMaximalLimitLevel() * scale));
+        g.setColor(Color.GREEN.darker());
+        g.drawLine(left, bottom - (int) (c.getMinimalNormalLevel() * scale), right,
+                bottom - (int) (c.getMinimalNormalLevel() * scale));
+        g.drawLine(left, bottom - (int) (c.getMaximalNormalLevel() * scale), right,
+                bottom - (int) (c.getMaximalNormalLevel() * scale));
+        g.setColor(Color.BLACK);
+        int x = right + 20;
+        g.drawString("time " + (frame.time / 1000) + "s", x, top);
+        g.drawString("mode " + frame.mode, x, top + 20);
+        g.drawString(String.format("level %.1f", frame.level), x, top + 40);
+        g.drawString(String.format("steam %.1f", frame.steam), x, top + 60);
+        for (int i = 0; i != frame.pumps.length; ++i) {
+            g.setColor(frame.pumps[i] ? Color.GREEN : Color.GRAY);
+            g.fillOval(x + (i % 8) * 18, top + 80 + (i / 8) * 18, 14, 14);
+        }
+    }
+}
@@ -0,0 +1,275 @@
+package steam.boiler.core;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.jdt.annotation.Nullable;
+
+import steam.boiler.model.SteamBoilerController;
+import steam.boiler.util.Mailbox;
+import steam.boiler.util.Mailbox.Message;
+import steam.boiler.util.Mailbox.MessageKind;
+import steam.boiler.util.SteamBoilerCharacteristics;
+import steam.boiler.util.UnboundedMailbox;
+
+/**
+ * Runs a controller under a watchdog, so that a clock which overruns its budget
+ * (e.g. because of a garbage collection pause) still produces a response. Each
+ * clock is run on a separate thread. If it has not finished within the budget,
+ * or it fails, then a safe response is sent instead: the pump commands from the
+ * last clock which did finish, along with the current mode. After a given
+ * number of consecutive overruns an emergency stop is sent instead.
+ *
+ * <p>
+ * The result of a late clock is discarded, and the controller is then restored
+ * from the checkpoint taken before that clock. Its state therefore matches the
+ * commands which were actually sent. The controller is restored in place, so
+ * it keeps whatever was set on it (e.g. a monitor or scheduler), along with
+ * anything held outside its checkpoint.
+ * </p>
+ *
+ * <p>
+ * Everything used on each clock is allocated on construction, and the clock is
+ * handed to the watchdog thread and back by parking, so the watchdog does not
+ * itself cause the pauses it is guarding against. The watchdog thread runs
+ * until the watchdog is closed.
+ * </p>
+ *
+ * @author eliza
+ *
+ */
+public class WatchdogController implements SteamBoilerController, AutoCloseable {
+    private static final Message MODE_INITIALISATION = new Message(MessageKind.MODE_m,
+            Mailbox.Mode.INITIALISATION);
+    private static final Message MODE_EMERGENCY_STOP = new Message(MessageKind.MODE_m,
+            Mailbox.Mode.EMERGENCY_STOP);
+
+    private final MySteamBoilerController controller;
+    private final long budget;
+    private final int maxOverruns;
+    private final Thread worker;
+
+    /**
+     * Thread waiting for the current clock, which the worker wakes once it has
+     * finished.
+     */
+    private volatile @Nullable Thread caller;
+
+    /**
+     * Set to hand a clock to the worker, which clears it on starting the clock.
+     */
+    private volatile boolean requested = false;
+
+    /**
+     * Whether the last clock handed to the worker has finished.
+     */
+    private volatile boolean finished = true;
+
+    /**
+     * Set to stop the worker once it is not running a clock.
+     */
+    private volatile boolean closed = false;
+
+    /**
+     * Incoming mailbox of the clock handed to the worker, and the mailbox it
+     * responds in.
+     */
+    private @Nullable Mailbox incoming;
+    private final UnboundedMailbox response = new UnboundedMailbox(100);
+
+    /**
+     * Exception thrown by the last clock, or null if it returned normally.
+     */
+    private volatile @Nullable Throwable failure;
+
+    /**
+     * Checkpoint taken before each clock, and whether the controller must be
+     * restored from it because that clock's result was discarded.
+     */
+    private final byte[] before;
+    private boolean restore = false;
+
+    /**
+     * Response of the last clock which finished in time, from which the safe
+     * response is built.
+     */
+    private Message lastMode = MODE_INITIALISATION;
+    private final Message[] lastPumpCommands;
+    private int lastPumpCount = 0;
+
+    private int overruns = 0;
+    private boolean stopped = false;
+
+    /**
+     * Construct a watchdog around a controller.
+     *
+     * @param controller    The controller to run.
+     * @param configuration The boiler characteristics it was constructed with.
+     * @param budget        Time (in ms) allowed for each clock.
+     * @param maxOverruns   Number of consecutive overruns after which to
+     *                      emergency stop.
+     */
+    public WatchdogController(MySteamBoilerController controller,
+            SteamBoilerCharacteristics configuration, long budget, int maxOverruns) {
+        this.controller = controller;
+        this.budget = TimeUnit.MILLISECONDS.toNanos(budget);
+        this.maxOverruns = maxOverruns;
+        this.before = controller.getCheckpoint();
+        // At most one command is sent to each pump on a clock
+        this.lastPumpCommands = new Message[configuration.getNumberOfPumps()];
+        this.worker = new Thread(this::work, "watchdog");
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    @Override
+    public @NonNull String getStatusMessage() {
+        return this.stopped ? "EMERGENCY_STOP" : this.controller.getStatusMessage();
+    }
+
+    /**
+     * Get the number of consecutive clocks which have overrun.
+     *
+     * @return number of overruns
+     */
+    public int getOverruns() {
+        return this.overruns;
+    }
+
+    @Override
+    public void clock(@NonNull Mailbox incoming, @NonNull Mailbox outgoing) {
+        if (this.stopped) {
+            outgoing.send(MODE_EMERGENCY_STOP);
+            return;
+        }
+        if (!this.finished) {
+            // A late clock is still running, so this one cannot even start.
+            overrun(outgoing);
+            return;
+        }
+        MySteamBoilerController c = this.controller;
+        if (this.restore) {
+            c.restore(this.before);
+            this.restore = false;
+        }
+        c.getCheckpoint(this.before);
+        this.response.clear();
+        this.incoming = incoming;
+        this.failure = null;
+        this.caller = Thread.currentThread();
+        this.finished = false;
+        this.requested = true;
+        LockSupport.unpark(this.worker);
+        long deadline = System.nanoTime() + this.budget;
+        while (!this.finished) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0 || Thread.currentThread().isInterrupted()) {
+                this.restore = true;
+                overrun(outgoing);
+                return;
+            }
+            LockSupport.parkNanos(this, remaining);
+        }
+        if (this.failure != null) {
+            // Whatever the controller got as far as doing is just as suspect
+            this.restore = true;
+            overrun(outgoing);
+            return;
+        }
+        this.overruns = 0;
+        remember(this.response);
+        for (int i = 0; i != this.response.size(); ++i) {
+            outgoing.send(this.response.read(i));
+        }
+    }
+
+    /**
+     * Run clocks on the watchdog thread as they are handed over.
+     */
+    private void work() {
+        for (;;) {
+            while (!this.requested) {
+                if (this.closed) {
+                    return;
+                }
+                LockSupport.park(this);
+            }
+            this.requested = false;
+            Mailbox in = this.incoming;
+            try {
+                if (in != null) {
+                    this.controller.clock(in, this.response);
+                }
+            } catch (RuntimeException | Error e) {
+                this.failure = e;
+            }
+            this.finished = true;
+            Thread waiting = this.caller;
+            if (waiting != null) {
+                LockSupport.unpark(waiting);
+            }
+        }
+    }
+
+    /**
+     * Stop the watchdog thread and wait for it to finish. A late clock which is
+     * still running is interrupted, and waited for if it carries on regardless.
+     * Nothing can be clocked once closed, so every later clock is answered with
+     * an emergency stop.
+     */
+    @Override
+    public void close() {
+        this.stopped = true;
+        this.closed = true;
+        this.worker.interrupt();
+        try {
+            this.worker.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Send the safe response for a clock which did not finish in time.
+     */
+    private void overrun(Mailbox outgoing) {
+        this.overruns++;
+        if (this.overruns >= this.maxOverruns) {
+            this.stopped = true;
+            outgoing.send(MODE_EMERGENCY_STOP);
+            return;
+        }
+        outgoing.send(this.lastMode);
+        for (int i = 0; i != this.lastPumpCount; ++i) {
+            outgoing.send(this.lastPumpCommands[i]);
+        }
+    }
+
+    /**
+     * Record the mode and pump commands from a clock which finished in time.
+     */
+    private void remember(Mailbox response) {
+        int count = 0;
+        for (int i = 0; i != response.size(); ++i) {
+            Message m = response.read(i);
+            if (m.getKind() == MessageKind.OPEN_PUMP_n || m.getKind() == MessageKind.CLOSE_PUMP_n) {
+                count++;
+            } else if (m.getKind() == MessageKind.MODE_m) {
+                this.lastMode = m;
+            }
+        }
+        // Keep the previous commands if none were sent (e.g. during initialisation)
+        if (count == 0) {
+            return;
+        }
+        int index = 0;
+        for (int i = 0; i != response.size() && index != this.lastPumpCommands.length; ++i) {
+            Message m = response.read(i);
+            if (m.getKind() == MessageKind.OPEN_PUMP_n || m.getKind() == MessageKind.CLOSE_PUMP_n) {
+                this.lastPumpCommands[index++] = m;
+            }
+        }
+        this.lastPumpCount = index;
+    }
+}
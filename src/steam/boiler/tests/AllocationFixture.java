@@ -0,0 +1,54 @@
+package steam.boiler.tests;
+
+import steam.boiler.util.Mailbox;
+import steam.boiler.util.Mailbox.Message;
+import steam.boiler.util.Mailbox.MessageKind;
+
+/**
+ * Allocates on purpose in each of the ways {@link AllocationVerifier} should find, so that the
+ * verifier can be checked against something other than the controller. Each allocation is in a
+ * method of its own, named after the way it is reached.
+ *
+ * @author eliza
+ *
+ */
+final class AllocationFixture {
+  /**
+   * Allocates nothing itself, but is overridden by a class which does.
+   */
+  static class Counter {
+    int count(Mailbox mailbox) {
+      return mailbox.size();
+    }
+  }
+
+  /**
+   * Only reached through virtual dispatch on {@link Counter}.
+   */
+  static final class CopyingCounter extends Counter {
+    @Override
+    int count(Mailbox mailbox) {
+      return new int[mailbox.size()].length;
+    }
+  }
+
+  private final Counter counter = new CopyingCounter();
+
+  /**
+   * Allocate directly, through an override, and through a call outside the package.
+   *
+   * @param incoming
+   *          Messages to count.
+   * @param outgoing
+   *          Where to send a message.
+   */
+  void clock(Mailbox incoming, Mailbox outgoing) {
+    outgoing.send(new Message(MessageKind.PROGRAM_READY));
+    this.counter.count(incoming);
+    external(incoming);
+  }
+
+  private static String external(Mailbox incoming) {
+    return String.valueOf(incoming.size());
+  }
+}
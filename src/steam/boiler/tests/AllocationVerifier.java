@@ -0,0 +1,598 @@
+package steam.boiler.tests;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.JarURLConnection;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.jar.JarEntry;
+
+/**
+ * Checks that a method allocates nothing on the heap, by walking the bytecode of every method
+ * reachable from it. Calls are followed into classes in the same package as the starting class.
+ * A virtual or interface call is also followed into every override in the package which it could
+ * be dispatched to. Methods annotated with <code>@MemoryAnnotations.Initialisation</code> are not
+ * followed at all. Allocations are object and array creation (including cloning an array), boxing
+ * through the <code>valueOf</code> methods, and <code>invokedynamic</code> (which is used for
+ * lambdas and string concatenation). A call to any other method outside the package is reported
+ * too, unless it is on a short list of methods known not to allocate.
+ *
+ * <p>
+ * This still leaves some gaps. Methods on the list are trusted rather than checked. Overrides
+ * outside the package (e.g. a subclass of the controller declared in a test) are never seen, and
+ * neither is anything called through reflection. Exceptions raised by the JVM itself, such as
+ * <code>NullPointerException</code>, are not counted as allocations.
+ * </p>
+ *
+ * @author eliza
+ *
+ */
+public class AllocationVerifier {
+  private static final String INITIALISATION = "Lsteam/boiler/util/MemoryAnnotations$Initialisation;";
+
+  /**
+   * Classes and methods outside the package which are called without being followed, since they
+   * are known not to allocate, given as a class or as a class and method name. Mailboxes are
+   * taken on trust, including sending to one, since the mailbox belongs to the caller, and so does
+   * any growth.
+   */
+  private static final Set<String> ALLOWED = Set.of("java/lang/Math", "java/lang/Enum.ordinal",
+      "java/lang/Enum.name", "java/lang/Enum.equals", "java/lang/Enum.getDeclaringClass",
+      "java/lang/Double.isNaN", "java/lang/Long.bitCount", "java/lang/Long.numberOfTrailingZeros",
+      "java/lang/System.nanoTime", "java/lang/System.arraycopy", "java/util/Arrays.fill",
+      "java/nio/ByteBuffer.get", "java/nio/ByteBuffer.getShort", "java/nio/ByteBuffer.getInt",
+      "java/nio/ByteBuffer.getLong", "java/nio/ByteBuffer.getDouble", "java/nio/ByteBuffer.put",
+      "java/nio/ByteBuffer.putShort", "java/nio/ByteBuffer.putInt", "java/nio/ByteBuffer.putLong",
+      "java/nio/ByteBuffer.putDouble", "java/nio/ByteBuffer.array",
+      "java/util/concurrent/atomic/AtomicLong.get",
+      "java/util/concurrent/atomic/AtomicLong.lazySet",
+      "java/util/concurrent/ForkJoinTask.reinitialize",
+      "java/util/concurrent/locks/LockSupport", "java/lang/Thread.currentThread",
+      "java/lang/Thread.isInterrupted", "steam/boiler/util/Mailbox$Message",
+      "steam/boiler/util/Mailbox.read", "steam/boiler/util/Mailbox.size",
+      "steam/boiler/util/Mailbox.contains", "steam/boiler/util/Mailbox.send",
+      "steam/boiler/util/UnboundedMailbox.read", "steam/boiler/util/UnboundedMailbox.size",
+      "steam/boiler/util/UnboundedMailbox.clear");
+
+  private static final Set<String> BOXES = Set.of("java/lang/Boolean", "java/lang/Byte",
+      "java/lang/Character", "java/lang/Short", "java/lang/Integer", "java/lang/Long",
+      "java/lang/Float", "java/lang/Double");
+
+  /**
+   * A method read from a class file.
+   */
+  private static final class MethodInfo {
+    final String name;
+    final String descriptor;
+    boolean initialisation = false;
+    byte[] code = new byte[0];
+    int[] lines = new int[0];
+
+    MethodInfo(String name, String descriptor) {
+      this.name = name;
+      this.descriptor = descriptor;
+    }
+
+    /**
+     * Find the source line of an instruction, or zero if not known.
+     */
+    int line(int pc) {
+      int line = 0;
+      for (int i = 0; i < this.lines.length; i += 2) {
+        if (this.lines[i] <= pc) {
+          line = this.lines[i + 1];
+        }
+      }
+      return line;
+    }
+  }
+
+  /**
+   * A class read from a class file, keeping only what is needed to follow calls.
+   */
+  private static final class ClassInfo {
+    Object[] constants = new Object[0];
+    String superName = "";
+    String[] interfaces = new String[0];
+    final Map<String, MethodInfo> methods = new HashMap<>();
+
+    String utf8(int index) {
+      return (String) this.constants[index];
+    }
+
+    String className(int index) {
+      return utf8((Integer) this.constants[index]);
+    }
+
+    /**
+     * Get the owner, name and descriptor of a member reference.
+     */
+    String[] member(int index) {
+      int[] ref = (int[]) this.constants[index];
+      int[] nameAndType = (int[]) this.constants[ref[1]];
+      return new String[] { className(ref[0]), utf8(nameAndType[0]), utf8(nameAndType[1]) };
+    }
+  }
+
+  private final String packagePrefix;
+  private final Map<String, ClassInfo> classes = new HashMap<>();
+  private List<String> packageClasses;
+
+  private AllocationVerifier(String packagePrefix) {
+    this.packagePrefix = packagePrefix;
+  }
+
+  /**
+   * Find every allocation reachable from a given method.
+   *
+   * @param root
+   *          The class declaring the method.
+   * @param method
+   *          The name of the method, where all overloads are checked.
+   * @return the offending call sites, each naming the method, line and what is allocated
+   */
+  public static List<String> verify(Class<?> root, String method) {
+    String name = root.getName().replace('.', '/');
+    AllocationVerifier verifier = new AllocationVerifier(
+        name.substring(0, name.lastIndexOf('/') + 1));
+    return verifier.walk(name, method);
+  }
+
+  private List<String> walk(String root, String method) {
+    List<String> sites = new ArrayList<>();
+    Set<String> visited = new HashSet<>();
+    ArrayDeque<String[]> worklist = new ArrayDeque<>();
+    for (MethodInfo m : load(root).methods.values()) {
+      if (m.name.equals(method)) {
+        worklist.add(new String[] { root, m.name, m.descriptor });
+      }
+    }
+    while (!worklist.isEmpty()) {
+      String[] next = worklist.remove();
+      String owner = next[0];
+      MethodInfo m = resolve(owner, next[1], next[2]);
+      if (m == null || m.initialisation || !visited.add(owner + "." + m.name + m.descriptor)) {
+        continue;
+      }
+      ClassInfo c = this.classes.get(owner);
+      String where = owner.substring(owner.lastIndexOf('/') + 1) + "." + m.name;
+      scan(c, m, where, sites, worklist);
+    }
+    return sites;
+  }
+
+  /**
+   * Scan the instructions of a method, recording allocations and queuing calls to follow.
+   */
+  private void scan(ClassInfo c, MethodInfo m, String where, List<String> sites,
+      ArrayDeque<String[]> worklist) {
+    byte[] code = m.code;
+    int pc = 0;
+    while (pc < code.length) {
+      int op = code[pc] & 0xff;
+      String site = where + ":" + m.line(pc) + ": ";
+      switch (op) {
+        case 0xbb: // new
+          sites.add(site + "new " + simpleName(c.className(u2(code, pc + 1))));
+          break;
+        case 0xbc: // newarray
+        case 0xbd: // anewarray
+        case 0xc5: // multianewarray
+          sites.add(site + "array creation");
+          break;
+        case 0xba: // invokedynamic
+          sites.add(site + "invokedynamic");
+          break;
+        case 0xb6: // invokevirtual
+        case 0xb7: // invokespecial
+        case 0xb8: // invokestatic
+        case 0xb9: { // invokeinterface
+          String[] target = c.member(u2(code, pc + 1));
+          if (op == 0xb8 && target[1].equals("valueOf") && BOXES.contains(target[0])) {
+            sites.add(site + "boxing " + simpleName(target[0]) + ".valueOf");
+            break;
+          } else if (target[1].equals("<init>")) {
+            // The allocation itself was recorded at the new instruction
+            break;
+          } else if (target[0].startsWith("[") && target[1].equals("clone")) {
+            sites.add(site + "array creation");
+            break;
+          }
+          if (isInPackage(target[0]) && resolve(target[0], target[1], target[2]) != null) {
+            worklist.add(target);
+          } else if (!isAllowed(target[0], target[1])) {
+            sites.add(site + "call to " + simpleName(target[0]) + "." + target[1]);
+          }
+          if (op == 0xb6 || op == 0xb9) {
+            // Follow every override in the package which could be dispatched to instead
+            for (String sub : packageClasses()) {
+              if (!sub.equals(target[0]) && isSubtype(sub, target[0])
+                  && load(sub).methods.containsKey(target[1] + target[2])) {
+                worklist.add(new String[] { sub, target[1], target[2] });
+              }
+            }
+          }
+          break;
+        }
+        default:
+      }
+      pc += length(code, pc);
+    }
+  }
+
+  private boolean isInPackage(String name) {
+    return name.startsWith(this.packagePrefix)
+        && name.indexOf('/', this.packagePrefix.length()) < 0;
+  }
+
+  /**
+   * Check whether a method outside the package is known not to allocate. The method may be
+   * named through a subclass of the class which declares it (e.g. <code>ordinal</code> through an
+   * enum), so the superclasses are checked too.
+   */
+  private boolean isAllowed(String owner, String name) {
+    String current = owner;
+    while (!current.isEmpty()) {
+      if (ALLOWED.contains(current) || ALLOWED.contains(current + "." + name)) {
+        return true;
+      }
+      ClassInfo c = find(current);
+      current = c == null ? "" : c.superName;
+    }
+    return false;
+  }
+
+  /**
+   * Find a method in a class or its superclasses within the package.
+   */
+  private MethodInfo resolve(String owner, String name, String descriptor) {
+    String current = owner;
+    while (isInPackage(current)) {
+      ClassInfo c = load(current);
+      MethodInfo m = c.methods.get(name + descriptor);
+      if (m != null) {
+        return m;
+      }
+      current = c.superName;
+    }
+    return null;
+  }
+
+  /**
+   * Check whether a class extends or implements a type, directly or indirectly. Supertypes whose
+   * class files cannot be found are taken not to lead to the type.
+   */
+  private boolean isSubtype(String name, String type) {
+    ArrayDeque<String> pending = new ArrayDeque<>();
+    Set<String> seen = new HashSet<>();
+    pending.add(name);
+    while (!pending.isEmpty()) {
+      String current = pending.remove();
+      if (current.equals(type)) {
+        return true;
+      }
+      ClassInfo c = current.isEmpty() || !seen.add(current) ? null : find(current);
+      if (c != null) {
+        pending.add(c.superName);
+        pending.addAll(Arrays.asList(c.interfaces));
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Get the name of every class in the package, from the directory or jar file it was loaded
+   * from.
+   */
+  private List<String> packageClasses() {
+    if (this.packageClasses != null) {
+      return this.packageClasses;
+    }
+    List<String> names = new ArrayList<>();
+    URL url = AllocationVerifier.class.getResource("/" + this.packagePrefix);
+    try {
+      if (url == null) {
+        throw new IOException("package not found");
+      } else if (url.getProtocol().equals("jar")) {
+        JarURLConnection connection = (JarURLConnection) url.openConnection();
+        for (JarEntry entry : Collections.list(connection.getJarFile().entries())) {
+          String name = entry.getName();
+          if (name.endsWith(".class") && isInPackage(name)) {
+            names.add(name.substring(0, name.length() - 6));
+          }
+        }
+      } else {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(Paths.get(url.toURI()),
+            "*.class")) {
+          for (Path file : files) {
+            String name = file.getFileName().toString();
+            names.add(this.packagePrefix + name.substring(0, name.length() - 6));
+          }
+        }
+      }
+    } catch (IOException | URISyntaxException e) {
+      throw new IllegalArgumentException("cannot list package: " + this.packagePrefix, e);
+    }
+    this.packageClasses = names;
+    return names;
+  }
+
+  private static String simpleName(String name) {
+    return name.substring(name.lastIndexOf('/') + 1);
+  }
+
+  // ======================================================================
+  // Class file parsing
+  // ======================================================================
+
+  private ClassInfo load(String name) {
+    ClassInfo c = find(name);
+    if (c == null) {
+      throw new IllegalArgumentException("class file not found: " + name);
+    }
+    return c;
+  }
+
+  /**
+   * Load a class file, or return null if it cannot be found (e.g. for classes in the runtime
+   * image on some platforms).
+   */
+  private ClassInfo find(String name) {
+    ClassInfo c = this.classes.get(name);
+    if (c == null && !this.classes.containsKey(name)) {
+      try (InputStream in = AllocationVerifier.class.getResourceAsStream("/" + name + ".class")) {
+        c = in == null ? null : parse(new DataInputStream(in));
+      } catch (IOException e) {
+        throw new IllegalArgumentException("cannot read class file: " + name, e);
+      }
+      this.classes.put(name, c);
+    }
+    return c;
+  }
+
+  private static ClassInfo parse(DataInputStream in) throws IOException {
+    ClassInfo c = new ClassInfo();
+    if (in.readInt() != 0xCAFEBABE) {
+      throw new IOException("not a class file");
+    }
+    in.readUnsignedShort(); // minor version
+    in.readUnsignedShort(); // major version
+    c.constants = new Object[in.readUnsignedShort()];
+    for (int i = 1; i < c.constants.length; i++) {
+      int tag = in.readUnsignedByte();
+      switch (tag) {
+        case 1: // Utf8
+          c.constants[i] = in.readUTF();
+          break;
+        case 3: // Integer
+        case 4: // Float
+          in.readInt();
+          break;
+        case 5: // Long
+        case 6: // Double
+          in.readLong();
+          i++;
+          break;
+        case 7: // Class
+          c.constants[i] = in.readUnsignedShort();
+          break;
+        case 8: // String
+        case 16: // MethodType
+        case 19: // Module
+        case 20: // Package
+          in.readUnsignedShort();
+          break;
+        case 9: // Fieldref
+        case 10: // Methodref
+        case 11: // InterfaceMethodref
+        case 12: // NameAndType
+        case 17: // Dynamic
+        case 18: // InvokeDynamic
+          c.constants[i] = new int[] { in.readUnsignedShort(), in.readUnsignedShort() };
+          break;
+        case 15: // MethodHandle
+          in.readUnsignedByte();
+          in.readUnsignedShort();
+          break;
+        default:
+          throw new IOException("unknown constant pool tag " + tag);
+      }
+    }
+    in.readUnsignedShort(); // access flags
+    in.readUnsignedShort(); // this class
+    int superIndex = in.readUnsignedShort();
+    c.superName = superIndex == 0 ? "" : c.className(superIndex);
+    c.interfaces = new String[in.readUnsignedShort()];
+    for (int i = 0; i < c.interfaces.length; i++) {
+      c.interfaces[i] = c.className(in.readUnsignedShort());
+    }
+    int fields = in.readUnsignedShort();
+    for (int i = 0; i < fields; i++) {
+      in.skipBytes(6);
+      skipAttributes(in);
+    }
+    int methods = in.readUnsignedShort();
+    for (int i = 0; i < methods; i++) {
+      in.readUnsignedShort(); // access flags
+      MethodInfo m = new MethodInfo(c.utf8(in.readUnsignedShort()), c.utf8(in.readUnsignedShort()));
+      int attributes = in.readUnsignedShort();
+      for (int j = 0; j < attributes; j++) {
+        String name = c.utf8(in.readUnsignedShort());
+        byte[] data = new byte[in.readInt()];
+        in.readFully(data);
+        if (name.equals("Code")) {
+          parseCode(c, m, data);
+        } else if (name.equals("RuntimeVisibleAnnotations")
+            || name.equals("RuntimeInvisibleAnnotations")) {
+          m.initialisation |= hasAnnotation(c, data, INITIALISATION);
+        }
+      }
+      c.methods.put(m.name + m.descriptor, m);
+    }
+    return c;
+  }
+
+  private static void skipAttributes(DataInputStream in) throws IOException {
+    int attributes = in.readUnsignedShort();
+    for (int i = 0; i < attributes; i++) {
+      in.readUnsignedShort();
+      in.skipBytes(in.readInt());
+    }
+  }
+
+  /**
+   * Extract the instructions and line number table from a Code attribute.
+   */
+  private static void parseCode(ClassInfo c, MethodInfo m, byte[] data) throws IOException {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+    in.skipBytes(4); // max stack and locals
+    m.code = new byte[in.readInt()];
+    in.readFully(m.code);
+    in.skipBytes(8 * in.readUnsignedShort()); // exception table
+    int attributes = in.readUnsignedShort();
+    for (int i = 0; i < attributes; i++) {
+      String name = c.utf8(in.readUnsignedShort());
+      int length = in.readInt();
+      if (name.equals("LineNumberTable")) {
+        m.lines = new int[2 * in.readUnsignedShort()];
+        for (int j = 0; j < m.lines.length; j++) {
+          m.lines[j] = in.readUnsignedShort();
+        }
+      } else {
+        in.skipBytes(length);
+      }
+    }
+  }
+
+  /**
+   * Check whether an annotations attribute contains an annotation of the given type. Only the
+   * top-level annotation types are compared, so element values are skipped.
+   */
+  private static boolean hasAnnotation(ClassInfo c, byte[] data, String type) throws IOException {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+    int count = in.readUnsignedShort();
+    for (int i = 0; i < count; i++) {
+      if (c.utf8(in.readUnsignedShort()).equals(type)) {
+        return true;
+      }
+      skipElementValuePairs(in);
+    }
+    return false;
+  }
+
+  private static void skipElementValuePairs(DataInputStream in) throws IOException {
+    int pairs = in.readUnsignedShort();
+    for (int i = 0; i < pairs; i++) {
+      in.readUnsignedShort();
+      skipElementValue(in);
+    }
+  }
+
+  private static void skipElementValue(DataInputStream in) throws IOException {
+    int tag = in.readUnsignedByte();
+    switch (tag) {
+      case 'e':
+        in.skipBytes(4);
+        break;
+      case '@':
+        in.readUnsignedShort();
+        skipElementValuePairs(in);
+        break;
+      case '[': {
+        int values = in.readUnsignedShort();
+        for (int i = 0; i < values; i++) {
+          skipElementValue(in);
+        }
+        break;
+      }
+      default:
+        in.skipBytes(2);
+    }
+  }
+
+  private static int u2(byte[] code, int pc) {
+    return ((code[pc] & 0xff) << 8) | (code[pc + 1] & 0xff);
+  }
+
+  private static int s4(byte[] code, int pc) {
+    return ((code[pc] & 0xff) << 24) | ((code[pc + 1] & 0xff) << 16)
+        | ((code[pc + 2] & 0xff) << 8) | (code[pc + 3] & 0xff);
+  }
+
+  /**
+   * Determine the length of the instruction at a given offset, including its operands.
+   */
+  private static int length(byte[] code, int pc) {
+    int op = code[pc] & 0xff;
+    switch (op) {
+      case 0x10: // bipush
+      case 0x12: // ldc
+      case 0x15: // iload
+      case 0x16: // lload
+      case 0x17: // fload
+      case 0x18: // dload
+      case 0x19: // aload
+      case 0x36: // istore
+      case 0x37: // lstore
+      case 0x38: // fstore
+      case 0x39: // dstore
+      case 0x3a: // astore
+      case 0xa9: // ret
+      case 0xbc: // newarray
+        return 2;
+      case 0x11: // sipush
+      case 0x13: // ldc_w
+      case 0x14: // ldc2_w
+      case 0x84: // iinc
+      case 0xa7: // goto
+      case 0xa8: // jsr
+      case 0xbb: // new
+      case 0xbd: // anewarray
+      case 0xc0: // checkcast
+      case 0xc1: // instanceof
+      case 0xc6: // ifnull
+      case 0xc7: // ifnonnull
+        return 3;
+      case 0xc5: // multianewarray
+        return 4;
+      case 0xb9: // invokeinterface
+      case 0xba: // invokedynamic
+      case 0xc8: // goto_w
+      case 0xc9: // jsr_w
+        return 5;
+      case 0xc4: // wide
+        return (code[pc + 1] & 0xff) == 0x84 ? 6 : 4;
+      case 0xaa: { // tableswitch
+        int base = (pc + 4) & ~3;
+        int low = s4(code, base + 4);
+        int high = s4(code, base + 8);
+        return base - pc + 12 + (4 * (high - low + 1));
+      }
+      case 0xab: { // lookupswitch
+        int base = (pc + 4) & ~3;
+        return base - pc + 8 + (8 * s4(code, base + 4));
+      }
+      default:
+        if ((op >= 0x99 && op <= 0xa6) || (op >= 0xb2 && op <= 0xb8)) {
+          // conditional branches, field accesses and the other invokes
+          return 3;
+        }
+        return 1;
+    }
+  }
+}
@@ -0,0 +1,168 @@
+package steam.boiler.tests;
+
+import java.util.Arrays;
+
+import steam.boiler.core.ModelPredictiveScheduler;
+import steam.boiler.core.MySteamBoilerController;
+import steam.boiler.model.PhysicalUnits;
+import steam.boiler.util.Mailbox;
+import steam.boiler.util.SteamBoilerCharacteristics;
+import steam.boiler.util.UnboundedMailbox;
+
+/**
+ * Measures how long the controller takes to process a single clock. Only the call to
+ * {@link MySteamBoilerController#clock} is timed, with the physical units simulated in between.
+ * This is run from the command line rather than as part of the test suite, since timings are only
+ * meaningful on a quiet machine.
+ *
+ * @author eliza
+ *
+ */
+public class Benchmarks {
+
+  /**
+   * Run the controller against ideal physical units and record the time taken by every clock.
+   *
+   * @param config
+   *          The boiler characteristics to use.
+   * @param ticks
+   *          The number of clocks to time.
+   * @return the time (in ns) taken by each clock, sorted in ascending order
+   */
+  public static long[] tickLatency(SteamBoilerCharacteristics config, int ticks) {
+    return tickLatency(new MySteamBoilerController(config), config, ticks);
+  }
+
+  /**
+   * Run the controller with its pumps chosen by a scheduler, and record the time taken by every
+   * clock.
+   *
+   * @param config
+   *          The boiler characteristics to use.
+   * @param ticks
+   *          The number of clocks to time.
+   * @param horizon
+   *          The number of clocks the scheduler simulates ahead.
+   * @param parallelism
+   *          The number of slices the scheduler evaluates in parallel.
+   * @return the time (in ns) taken by each clock, sorted in ascending order
+   */
+  public static long[] scheduledTickLatency(SteamBoilerCharacteristics config, int ticks,
+      int horizon, int parallelism) {
+    MySteamBoilerController controller = new MySteamBoilerController(config);
+    try (ModelPredictiveScheduler scheduler = new ModelPredictiveScheduler(config,
+        controller.getPeriod(), horizon, 4, parallelism)) {
+      controller.setScheduler(scheduler);
+      return tickLatency(controller, config, ticks);
+    }
+  }
+
+  private static long[] tickLatency(MySteamBoilerController controller,
+      SteamBoilerCharacteristics config, int ticks) {
+    final int granularity = 100; // ms
+    PhysicalUnits model = new PhysicalUnits.Template(config).construct();
+    model.setMode(PhysicalUnits.Mode.WAITING);
+    long[] times = new long[ticks];
+    for (int tick = 0; tick != ticks; ++tick) {
+      for (int elapsed = 0; elapsed < controller.getPeriod(); elapsed += granularity) {
+        model.clock(granularity);
+      }
+      // Sized for every pump, so that the mailboxes never grow whilst being timed
+      Mailbox input = new UnboundedMailbox(8 + (2 * config.getNumberOfPumps()));
+      Mailbox output = new UnboundedMailbox(8 + (2 * config.getNumberOfPumps()));
+      model.transmit(input);
+      long start = System.nanoTime();
+      controller.clock(input, output);
+      times[tick] = System.nanoTime() - start;
+      model.receive(output);
+    }
+    Arrays.sort(times);
+    return times;
+  }
+
+  /**
+   * Format the median, 99th percentile and maximum of some sorted timings.
+   *
+   * @param times
+   *          Timings (in ns) in ascending order.
+   * @return the summary
+   */
+  public static String summarise(long[] times) {
+    return "median " + times[times.length / 2] + "ns, p99 " + times[(times.length * 99) / 100]
+        + "ns, max " + times[times.length - 1] + "ns";
+  }
+
+  /**
+   * Measure the tick latency for increasingly large banks of pumps, each with the default pump
+   * capacity, to show how the cost of a clock grows with the number of pumps.
+   *
+   * @param ticks
+   *          The number of clocks to time for each bank.
+   * @param pumps
+   *          The number of pumps in each bank.
+   * @return one line per bank, giving the latency and the median time per pump
+   */
+  public static String scaling(int ticks, int... pumps) {
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    StringBuilder out = new StringBuilder();
+    for (int n : pumps) {
+      long[] times = tickLatency(config.setNumberOfPumps(n, config.getPumpCapacity(0)), ticks);
+      out.append(n).append(" pumps: ").append(summarise(times)).append(", ")
+          .append(times[times.length / 2] / n).append("ns per pump\n");
+    }
+    return out.toString();
+  }
+
+  /**
+   * Measure what forking from a snapshot saves over running a scenario's prefix from scratch. The
+   * prefix is run from scratch, then the controller is forked from a snapshot of it, and then the
+   * physical units are rebuilt from the snapshot.
+   *
+   * @param config
+   *          The boiler characteristics to use.
+   * @param time
+   *          The length of the prefix (in seconds).
+   * @param forks
+   *          The number of times to repeat each step.
+   * @return the median time of each step
+   */
+  public static String forking(SteamBoilerCharacteristics config, int time, int forks) {
+    long[] fresh = new long[forks];
+    long[] controller = new long[forks];
+    long[] model = new long[forks];
+    SimulationSnapshot snapshot = SimulationSnapshot.capture(config, time);
+    for (int i = 0; i != forks; ++i) {
+      long start = System.nanoTime();
+      SimulationSnapshot.capture(config, time);
+      fresh[i] = System.nanoTime() - start;
+      start = System.nanoTime();
+      snapshot.forkController();
+      controller[i] = System.nanoTime() - start;
+      start = System.nanoTime();
+      snapshot.replayModel();
+      model[i] = System.nanoTime() - start;
+    }
+    Arrays.sort(fresh);
+    Arrays.sort(controller);
+    Arrays.sort(model);
+    return "prefix from scratch " + fresh[forks / 2] + "ns, fork controller "
+        + controller[forks / 2] + "ns, replay physical units " + model[forks / 2] + "ns";
+  }
+
+  public static void main(String[] args) {
+    int ticks = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    // Warm up, so that the timed runs measure compiled code
+    tickLatency(config, ticks);
+    System.out.println("tick latency: " + summarise(tickLatency(config, ticks)));
+    scaling(ticks / 10, 4, 64, 256, 1024);
+    System.out.print(scaling(ticks / 10, 4, 64, 256, 1024));
+    for (int parallelism : new int[] { 1, 4 }) {
+      scheduledTickLatency(config, ticks / 10, 16, parallelism);
+      System.out.println("scheduled tick latency (" + parallelism + " slices): "
+          + summarise(scheduledTickLatency(config, ticks / 10, 16, parallelism)));
+    }
+    forking(config, 240, 100);
+    System.out.println("forking a 240s prefix: " + forking(config, 240, 100));
+  }
+}
@@ -0,0 +1,335 @@
+package steam.boiler.tests;
+
+import static steam.boiler.tests.TestUtils.MODE_emergencystop;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+import steam.boiler.core.HardwareFault;
+import steam.boiler.core.MySteamBoilerController;
+import steam.boiler.model.PhysicalUnits;
+import steam.boiler.util.Mailbox;
+import steam.boiler.util.SteamBoilerCharacteristics;
+
+/**
+ * Runs large numbers of randomly generated fault timelines against the controller. Each timeline
+ * injects one or more faults from {@link HardwareFault} at random ticks, and the campaign records
+ * every run which either emergency stops when it should have survived, or lets the water level
+ * leave the limit levels. Every timeline is derived from a single 64-bit seed, so any recorded
+ * failure can be replayed exactly by passing its seed back to {@link #run(Timeline)}.
+ *
+ * @author eliza
+ *
+ */
+public class FaultCampaign {
+  /**
+   * Amount of simulated time (in ms) between physics updates. The controller itself is only clocked
+   * every five seconds, as in {@link TestUtils#clock}.
+   */
+  public static final int GRANULARITY = 100;
+
+  /**
+   * Number of ticks before any fault is injected. This matches the 240s used throughout
+   * <code>SafetyTests</code> to bring the boiler up to normal operation.
+   */
+  public static final int WARMUP_TICKS = 48;
+
+  /**
+   * Classifies why a run was recorded.
+   */
+  public enum Verdict {
+    UNEXPECTED_EMERGENCY_STOP, LEVEL_LIMIT_VIOLATION
+  }
+
+  /**
+   * A single fault injected at a given tick.
+   */
+  public static final class Injection {
+    public final int tick;
+    public final HardwareFault fault;
+    public final int pumpNo;
+
+    public Injection(int tick, HardwareFault fault, int pumpNo) {
+      this.tick = tick;
+      this.fault = fault;
+      this.pumpNo = pumpNo;
+    }
+
+    @Override
+    public String toString() {
+      return this.fault + (this.fault.isPerPump() ? "(" + this.pumpNo + ")" : "") + "@" + this.tick;
+    }
+  }
+
+  /**
+   * A sequence of fault injections, ordered by tick, generated from a given seed.
+   */
+  public static final class Timeline {
+    public final long seed;
+    public final Injection[] injections;
+
+    public Timeline(long seed, Injection... injections) {
+      this.seed = seed;
+      this.injections = injections;
+    }
+
+    /**
+     * Generate a random timeline. The same arguments always produce the same timeline.
+     *
+     * @param seed
+     *          The seed for this timeline.
+     * @param config
+     *          The boiler characteristics, used to pick pump numbers.
+     * @param ticks
+     *          The length of the run in ticks.
+     * @param maxFaults
+     *          The maximum number of faults to inject.
+     * @return the generated timeline
+     */
+    public static Timeline generate(long seed, SteamBoilerCharacteristics config, int ticks,
+        int maxFaults) {
+      SplittableRandom random = new SplittableRandom(seed);
+      HardwareFault[] faults = HardwareFault.values();
+      Injection[] injections = new Injection[1 + random.nextInt(maxFaults)];
+      for (int i = 0; i != injections.length; ++i) {
+        int tick = WARMUP_TICKS + random.nextInt(ticks - WARMUP_TICKS);
+        HardwareFault fault = faults[random.nextInt(faults.length)];
+        int pumpNo = random.nextInt(config.getNumberOfPumps());
+        injections[i] = new Injection(tick, fault, pumpNo);
+      }
+      Arrays.sort(injections, (a, b) -> Integer.compare(a.tick, b.tick));
+      return new Timeline(seed, injections);
+    }
+
+    /**
+     * Check whether the controller is required to survive this timeline. That is the case when
+     * every fault is tolerable on its own and they all affect the same physical unit, since two
+     * broken units is itself grounds for an emergency stop.
+     *
+     * @return true if an emergency stop indicates a controller bug
+     */
+    public boolean isTolerable() {
+      for (Injection i : this.injections) {
+        Injection first = this.injections[0];
+        if (!i.fault.isTolerable() || i.fault.getComponent() != first.fault.getComponent()
+            || (i.fault.isPerPump() && i.pumpNo != first.pumpNo)) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    @Override
+    public String toString() {
+      return Long.toHexString(this.seed) + Arrays.toString(this.injections);
+    }
+  }
+
+  /**
+   * A recorded run which did not behave as expected.
+   */
+  public static final class Failure {
+    public final int run;
+    public final Timeline timeline;
+    public final Verdict verdict;
+    public final int tick;
+
+    public Failure(int run, Timeline timeline, Verdict verdict, int tick) {
+      this.run = run;
+      this.timeline = timeline;
+      this.verdict = verdict;
+      this.tick = tick;
+    }
+
+    @Override
+    public String toString() {
+      return "run " + this.run + ": " + this.verdict + " at tick " + this.tick + " "
+          + this.timeline;
+    }
+  }
+
+  private final SteamBoilerCharacteristics config;
+  private final int ticks;
+  private final int maxFaults;
+
+  /**
+   * Construct a campaign for a given configuration.
+   *
+   * @param config
+   *          The boiler characteristics to run every timeline against.
+   * @param ticks
+   *          The length of each run, in five second ticks.
+   * @param maxFaults
+   *          The maximum number of faults injected into a single run.
+   */
+  public FaultCampaign(SteamBoilerCharacteristics config, int ticks, int maxFaults) {
+    if (ticks <= WARMUP_TICKS) {
+      throw new IllegalArgumentException("run must be longer than " + WARMUP_TICKS + " ticks");
+    }
+    this.config = config;
+    this.ticks = ticks;
+    this.maxFaults = maxFaults;
+  }
+
+  /**
+   * Derive the seed of a given run from the campaign seed. This is the SplitMix64 finaliser, which
+   * spreads consecutive run numbers over the whole seed space.
+   *
+   * @param campaignSeed
+   *          The seed of the whole campaign.
+   * @param run
+   *          The run number.
+   * @return the seed for the given run
+   */
+  public static long seedOf(long campaignSeed, int run) {
+    long z = campaignSeed + (run + 1) * 0x9E3779B97F4A7C15L;
+    z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+    z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+    return z ^ (z >>> 31);
+  }
+
+  /**
+   * Generate the timeline for a given run of a campaign.
+   *
+   * @param campaignSeed
+   *          The seed of the whole campaign.
+   * @param run
+   *          The run number.
+   * @return the timeline for that run
+   */
+  public Timeline timeline(long campaignSeed, int run) {
+    return Timeline.generate(seedOf(campaignSeed, run), this.config, this.ticks, this.maxFaults);
+  }
+
+  /**
+   * Execute a number of runs in parallel across the given number of threads.
+   *
+   * @param campaignSeed
+   *          The seed from which every timeline is derived.
+   * @param runs
+   *          The number of runs to execute.
+   * @param parallelism
+   *          The number of worker threads to use.
+   * @return the failed runs, ordered by run number
+   */
+  public List<Failure> run(long campaignSeed, int runs, int parallelism) {
+    ConcurrentLinkedQueue<Failure> failures = new ConcurrentLinkedQueue<>();
+    ForkJoinPool pool = new ForkJoinPool(parallelism);
+    try {
+      pool.submit(() -> IntStream.range(0, runs).parallel().forEach(run -> {
+        Failure failure = run(run, timeline(campaignSeed, run));
+        if (failure != null) {
+          failures.add(failure);
+        }
+      })).get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("campaign interrupted", e);
+    } catch (ExecutionException e) {
+      throw new IllegalStateException("campaign failed", e.getCause());
+    } finally {
+      pool.shutdown();
+    }
+    List<Failure> result = new ArrayList<>(failures);
+    Collections.sort(result, (a, b) -> Integer.compare(a.run, b.run));
+    return result;
+  }
+
+  /**
+   * Replay a single timeline.
+   *
+   * @param timeline
+   *          The timeline to replay.
+   * @return the failure observed, or null if the run behaved as expected
+   */
+  public Failure run(Timeline timeline) {
+    return run(-1, timeline);
+  }
+
+  /**
+   * Replay a single timeline, and check whether the controller sent an emergency stop.
+   *
+   * @param timeline
+   *          The timeline to replay.
+   * @return true if the run ended in an emergency stop
+   */
+  public boolean emergencyStops(Timeline timeline) {
+    return simulate(timeline)[1] == 1;
+  }
+
+  private Failure run(int run, Timeline timeline) {
+    int[] outcome = simulate(timeline);
+    if (outcome[1] == 1) {
+      // Emergency stop is only a failure when nothing justified it.
+      return timeline.isTolerable()
+          ? new Failure(run, timeline, Verdict.UNEXPECTED_EMERGENCY_STOP, outcome[0])
+          : null;
+    } else if (outcome[1] == 2) {
+      return new Failure(run, timeline, Verdict.LEVEL_LIMIT_VIOLATION, outcome[0]);
+    }
+    return null;
+  }
+
+  /**
+   * Run a timeline until it emergency stops or the water leaves the limit levels.
+   *
+   * @return the tick at which the run ended, and 0 if it ran to the end, 1 for an emergency stop,
+   *         or 2 for a limit violation
+   */
+  private int[] simulate(Timeline timeline) {
+    MySteamBoilerController controller = new MySteamBoilerController(this.config);
+    PhysicalUnits model = new PhysicalUnits.Template(this.config).construct();
+    model.setMode(PhysicalUnits.Mode.WAITING);
+    boolean operational = false;
+    int next = 0;
+    for (int tick = 0; tick != this.ticks; ++tick) {
+      while (next < timeline.injections.length && timeline.injections[next].tick == tick) {
+        Injection injection = timeline.injections[next++];
+        injection.fault.inject(model, this.config, injection.pumpNo);
+      }
+      for (int elapsed = 0; elapsed < controller.getPeriod(); elapsed += GRANULARITY) {
+        Mailbox received = TestUtils.clock(GRANULARITY, elapsed, controller, model);
+        if (received != null && MODE_emergencystop.match(received) >= 0) {
+          return new int[] { tick, 1 };
+        }
+        // Water starts out below the limits, so only check them once operational.
+        operational |= controller.getStatusMessage().equals("NORMAL");
+        double level = model.getBoiler().getWaterLevel();
+        if (operational && (level < this.config.getMinimalLimitLevel()
+            || level > this.config.getMaximalLimitLevel())) {
+          return new int[] { tick, 2 };
+        }
+      }
+    }
+    return new int[] { this.ticks, 0 };
+  }
+
+  /**
+   * Run a campaign from the command line. The optional arguments are the campaign seed, the number
+   * of runs and the run length in ticks.
+   *
+   * @param args
+   *          Command-line arguments.
+   */
+  public static void main(String[] args) {
+    long seed = args.length > 0 ? Long.parseUnsignedLong(args[0], 16) : System.nanoTime();
+    int runs = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+    int ticks = args.length > 2 ? Integer.parseInt(args[2]) : 240;
+    FaultCampaign campaign = new FaultCampaign(SteamBoilerCharacteristics.DEFAULT, ticks, 3);
+    long start = System.currentTimeMillis();
+    List<Failure> failures = campaign.run(seed, runs, Runtime.getRuntime().availableProcessors());
+    long time = System.currentTimeMillis() - start;
+    for (Failure f : failures) {
+      System.out.println(f);
+    }
+    System.out.println("seed " + Long.toHexString(seed) + ": " + failures.size() + " failures in "
+        + runs + " runs (" + time + "ms)");
+  }
+}
@@ -0,0 +1,439 @@
+package steam.boiler.tests;
+
+import static steam.boiler.tests.TestUtils.MODE_emergencystop;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+import steam.boiler.core.HardwareFault;
+import steam.boiler.core.MySteamBoilerController;
+import steam.boiler.model.PhysicalUnits;
+import steam.boiler.tests.FaultCampaign.Injection;
+import steam.boiler.tests.FaultCampaign.Timeline;
+import steam.boiler.util.Mailbox;
+import steam.boiler.util.SteamBoilerCharacteristics;
+
+/**
+ * Deterministically runs a matrix of fault scenarios against the controller. The parameters of the
+ * matrix are the fault model used for each kind of physical component (or none at all), the mode
+ * the controller is in when the faults are injected, and the pump they are injected into. Rather
+ * than running every combination, the matrix can be reduced so that every combination of any
+ * <code>t</code> parameters is still covered (e.g. pairwise for <code>t = 2</code>).
+ *
+ * @author eliza
+ *
+ */
+public class FaultMatrix {
+  /**
+   * Strength which enumerates every combination of every parameter.
+   */
+  public static final int FULL = Integer.MAX_VALUE;
+
+  /**
+   * Controller modes in which faults can be injected. These are matched against the controller's
+   * status message.
+   */
+  public enum InjectionMode {
+    WAITING, READY, NORMAL, DEGRADED, RESCUE
+  }
+
+  /**
+   * Number of ticks to run each scenario for after its faults have been injected.
+   */
+  public static final int RUN_TICKS = 60;
+
+  /**
+   * Maximum number of ticks to wait for the controller to reach the injection mode.
+   */
+  public static final int REACH_TICKS = 120;
+
+  private static final HardwareFault.Component[] COMPONENTS = HardwareFault.Component.values();
+  private static final int MODE = COMPONENTS.length;
+  private static final int PUMP = COMPONENTS.length + 1;
+
+  private final SteamBoilerCharacteristics config;
+  /**
+   * Number of values of each parameter. For the components, value zero means no fault.
+   */
+  private final int[] sizes;
+
+  public FaultMatrix(SteamBoilerCharacteristics config) {
+    this.config = config;
+    this.sizes = new int[COMPONENTS.length + 2];
+    for (int i = 0; i != COMPONENTS.length; ++i) {
+      this.sizes[i] = HardwareFault.of(COMPONENTS[i]).length + 1;
+    }
+    this.sizes[MODE] = InjectionMode.values().length;
+    this.sizes[PUMP] = config.getNumberOfPumps();
+  }
+
+  /**
+   * A single row of the matrix.
+   */
+  public final class Scenario {
+    private final int[] row;
+
+    private Scenario(int[] row) {
+      this.row = row;
+    }
+
+    /**
+     * Get the fault injected into a given component.
+     *
+     * @param component
+     *          The component of interest.
+     * @return the fault, or null if the component is left working
+     */
+    public HardwareFault getFault(HardwareFault.Component component) {
+      int v = this.row[component.ordinal()];
+      return v == 0 ? null : HardwareFault.of(component)[v - 1];
+    }
+
+    public InjectionMode getMode() {
+      return InjectionMode.values()[this.row[MODE]];
+    }
+
+    public int getPumpNo() {
+      return this.row[PUMP];
+    }
+
+    @Override
+    public String toString() {
+      StringBuilder r = new StringBuilder();
+      for (HardwareFault.Component c : COMPONENTS) {
+        HardwareFault f = getFault(c);
+        r.append(String.format("%-34s", f == null ? "-" : f.toString()));
+      }
+      return r.append(String.format("%-9s%-3d", getMode(), getPumpNo())).toString();
+    }
+  }
+
+  /**
+   * The outcome of running a scenario.
+   */
+  public static final class Result {
+    public final Scenario scenario;
+    public final boolean passed;
+    public final boolean reached;
+    public final String trace;
+
+    public Result(Scenario scenario, boolean passed, boolean reached, String trace) {
+      this.scenario = scenario;
+      this.passed = passed;
+      this.reached = reached;
+      this.trace = trace;
+    }
+
+    @Override
+    public String toString() {
+      return this.scenario + (!this.reached ? "SKIP " : this.passed ? "PASS " : "FAIL ")
+          + this.trace;
+    }
+  }
+
+  /**
+   * Generate the scenarios of this matrix such that every combination of values for any
+   * <code>strength</code> parameters appears in at least one scenario. Scenarios are built greedily:
+   * each starts from an uncovered combination, and the remaining parameters are then chosen to
+   * cover as many further combinations as possible. The result is deterministic.
+   *
+   * @param strength
+   *          The number of parameters whose combinations must be covered, or {@link #FULL}.
+   * @return the covering set of scenarios
+   */
+  public List<Scenario> scenarios(int strength) {
+    int t = Math.min(strength, this.sizes.length);
+    Set<Long> uncovered = new LinkedHashSet<>();
+    for (int[] params : combinations(this.sizes.length, t)) {
+      addAll(params, 0, new int[this.sizes.length], uncovered);
+    }
+    List<Scenario> scenarios = new ArrayList<>();
+    while (!uncovered.isEmpty()) {
+      int[] row = decode(uncovered.iterator().next());
+      for (int p = 0; p != row.length; ++p) {
+        if (row[p] < 0) {
+          int best = 0;
+          int bestCount = -1;
+          for (int v = 0; v != this.sizes[p]; ++v) {
+            row[p] = v;
+            int count = countCovered(row, p, t, uncovered);
+            if (count > bestCount) {
+              best = v;
+              bestCount = count;
+            }
+          }
+          row[p] = best;
+        }
+      }
+      for (int[] params : combinations(row.length, t)) {
+        uncovered.remove(encode(row, params));
+      }
+      scenarios.add(new Scenario(row));
+    }
+    return scenarios;
+  }
+
+  /**
+   * Run a set of scenarios on a fork/join pool.
+   *
+   * @param scenarios
+   *          The scenarios to run.
+   * @param parallelism
+   *          The number of worker threads to use.
+   * @return the results in the same order as the scenarios
+   */
+  public List<Result> run(List<Scenario> scenarios, int parallelism) {
+    Result[] results = new Result[scenarios.size()];
+    ForkJoinPool pool = new ForkJoinPool(parallelism);
+    try {
+      pool.submit(() -> IntStream.range(0, results.length).parallel()
+          .forEach(i -> results[i] = run(scenarios.get(i)))).get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("matrix interrupted", e);
+    } catch (ExecutionException e) {
+      throw new IllegalStateException("matrix failed", e.getCause());
+    } finally {
+      pool.shutdown();
+    }
+    List<Result> r = new ArrayList<>();
+    for (Result result : results) {
+      r.add(result);
+    }
+    return r;
+  }
+
+  /**
+   * Run a single scenario. The controller is first clocked until it reaches the injection mode. To
+   * reach degraded or rescue mode, the steam or level sensor (respectively) is broken first. The
+   * scenario's faults are then injected and the system is run for {@link #RUN_TICKS} ticks. A
+   * scenario fails if the water leaves the limit levels, or if it emergency stops when every fault
+   * (including any used to reach the injection mode) should have been tolerated.
+   *
+   * @param scenario
+   *          The scenario to run.
+   * @return the outcome of the run
+   */
+  public Result run(Scenario scenario) {
+    MySteamBoilerController controller = new MySteamBoilerController(this.config);
+    PhysicalUnits model = new PhysicalUnits.Template(this.config).construct();
+    model.setMode(PhysicalUnits.Mode.WAITING);
+    StringBuilder trace = new StringBuilder();
+    List<Injection> injections = new ArrayList<>();
+    InjectionMode mode = scenario.getMode();
+    if (mode == InjectionMode.DEGRADED) {
+      injections.add(new Injection(0, HardwareFault.STEAM_STUCK_NEGATIVE, 0));
+    } else if (mode == InjectionMode.RESCUE) {
+      injections.add(new Injection(0, HardwareFault.LEVEL_STUCK_NEGATIVE, 0));
+    }
+    // Bring the controller into the injection mode
+    String target = mode.toString();
+    int tick = 0;
+    if (!injections.isEmpty()) {
+      while (tick < REACH_TICKS && !controller.getStatusMessage().equals("NORMAL")) {
+        if (clockTick(controller, model, trace)) {
+          return new Result(scenario, false, false, trace.toString());
+        }
+        tick++;
+      }
+      injections.get(0).fault.inject(model, this.config, 0);
+    }
+    while (tick < REACH_TICKS && !controller.getStatusMessage().equals(target)) {
+      if (clockTick(controller, model, trace)) {
+        return new Result(scenario, false, false, trace.toString());
+      }
+      tick++;
+    }
+    if (!controller.getStatusMessage().equals(target)) {
+      return new Result(scenario, false, false, trace.toString());
+    }
+    for (HardwareFault.Component c : COMPONENTS) {
+      HardwareFault f = scenario.getFault(c);
+      if (f != null) {
+        f.inject(model, this.config, scenario.getPumpNo());
+        injections.add(new Injection(tick, f, scenario.getPumpNo()));
+      }
+    }
+    // Faults during initialisation justify an emergency stop, as do multiple broken units.
+    boolean tolerable = mode != InjectionMode.WAITING && mode != InjectionMode.READY
+        && new Timeline(0, injections.toArray(new Injection[injections.size()])).isTolerable();
+    boolean operational = mode != InjectionMode.WAITING && mode != InjectionMode.READY;
+    for (int i = 0; i != RUN_TICKS; ++i) {
+      if (clockTick(controller, model, trace)) {
+        return new Result(scenario, !tolerable, true, trace.toString());
+      }
+      operational |= controller.getStatusMessage().equals("NORMAL");
+      double level = model.getBoiler().getWaterLevel();
+      if (operational && (level < this.config.getMinimalLimitLevel()
+          || level > this.config.getMaximalLimitLevel())) {
+        return new Result(scenario, false, true, trace.toString());
+      }
+    }
+    return new Result(scenario, true, true, trace.toString());
+  }
+
+  /**
+   * Write a set of results as a table with one scenario per line.
+   *
+   * @param results
+   *          The results to write.
+   * @param out
+   *          The stream to write to.
+   */
+  public static void write(List<Result> results, PrintStream out) {
+    int failed = 0;
+    for (Result r : results) {
+      out.println(r);
+      if (r.reached && !r.passed) {
+        failed++;
+      }
+    }
+    out.println(results.size() + " scenarios, " + failed + " failed");
+  }
+
+  /**
+   * Clock the system for one complete tick, appending the controller's mode to the trace.
+   *
+   * @return true if the controller emergency stopped
+   */
+  private static boolean clockTick(MySteamBoilerController controller, PhysicalUnits model,
+      StringBuilder trace) {
+    boolean stopped = false;
+    for (int elapsed = 0; elapsed < controller.getPeriod(); elapsed += FaultCampaign.GRANULARITY) {
+      Mailbox received = TestUtils.clock(FaultCampaign.GRANULARITY, elapsed, controller, model);
+      if (received != null && MODE_emergencystop.match(received) >= 0) {
+        stopped = true;
+      }
+    }
+    String status = controller.getStatusMessage();
+    appendTrace(trace, stopped ? 'E' : status.equals("RESCUE") ? 'S' : status.charAt(0));
+    return stopped;
+  }
+
+  /**
+   * Append a mode to a run-length encoded trace, such as <code>W1R12N40D7S3E1</code>. Each mode is
+   * written as its initial, except rescue which is written as <code>S</code>.
+   */
+  private static void appendTrace(StringBuilder trace, char mode) {
+    int i = trace.length();
+    while (i > 0 && Character.isDigit(trace.charAt(i - 1))) {
+      i--;
+    }
+    if (i > 0 && trace.charAt(i - 1) == mode) {
+      int count = Integer.parseInt(trace.substring(i)) + 1;
+      trace.setLength(i);
+      trace.append(count);
+    } else {
+      trace.append(mode).append(1);
+    }
+  }
+
+  /**
+   * Count the uncovered combinations which include parameter <code>p</code> and are otherwise made
+   * up of parameters already fixed in the row.
+   */
+  private int countCovered(int[] row, int p, int t, Set<Long> uncovered) {
+    int count = 0;
+    for (int[] params : combinations(row.length, t)) {
+      boolean relevant = false;
+      boolean fixed = true;
+      for (int q : params) {
+        relevant |= q == p;
+        fixed &= row[q] >= 0;
+      }
+      if (relevant && fixed && uncovered.contains(encode(row, params))) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Add every value combination for the given parameters to the set.
+   */
+  private void addAll(int[] params, int i, int[] row, Set<Long> into) {
+    if (i == params.length) {
+      into.add(encode(row, params));
+    } else {
+      for (int v = 0; v != this.sizes[params[i]]; ++v) {
+        row[params[i]] = v;
+        addAll(params, i + 1, row, into);
+      }
+    }
+  }
+
+  /**
+   * Encode the values of some parameters in a row as a single number. Each parameter occupies one
+   * mixed-radix digit, where zero means the parameter is not part of the combination.
+   */
+  private long encode(int[] row, int[] params) {
+    long key = 0;
+    int next = 0;
+    for (int p = 0; p != this.sizes.length; ++p) {
+      key *= this.sizes[p] + 1;
+      if (next < params.length && params[next] == p) {
+        key += row[p] + 1;
+        next++;
+      }
+    }
+    return key;
+  }
+
+  /**
+   * Decode a combination into a row, where parameters not in the combination are negative.
+   */
+  private int[] decode(long key) {
+    int[] row = new int[this.sizes.length];
+    for (int p = this.sizes.length - 1; p >= 0; --p) {
+      row[p] = (int) (key % (this.sizes[p] + 1)) - 1;
+      key /= this.sizes[p] + 1;
+    }
+    return row;
+  }
+
+  /**
+   * Generate all ascending <code>k</code>-element subsets of <code>{0 .. n-1}</code>.
+   */
+  private static List<int[]> combinations(int n, int k) {
+    List<int[]> result = new ArrayList<>();
+    int[] c = new int[k];
+    for (int i = 0; i != k; ++i) {
+      c[i] = i;
+    }
+    while (true) {
+      result.add(c.clone());
+      int i = k - 1;
+      while (i >= 0 && c[i] == n - k + i) {
+        i--;
+      }
+      if (i < 0) {
+        return result;
+      }
+      c[i]++;
+      for (int j = i + 1; j != k; ++j) {
+        c[j] = c[j - 1] + 1;
+      }
+    }
+  }
+
+  /**
+   * Run the matrix from the command line. The optional argument is the strength, or
+   * <code>full</code> for complete enumeration.
+   *
+   * @param args
+   *          Command-line arguments.
+   */
+  public static void main(String[] args) {
+    int strength = args.length == 0 ? 2
+        : args[0].equals("full") ? FULL : Integer.parseInt(args[0]);
+    FaultMatrix matrix = new FaultMatrix(SteamBoilerCharacteristics.DEFAULT);
+    List<Scenario> scenarios = matrix.scenarios(strength);
+    write(matrix.run(scenarios, Runtime.getRuntime().availableProcessors()), System.out);
+  }
+}
@@ -1,5 +1,8 @@
 package steam.boiler.tests;
 
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import static steam.boiler.tests.TestUtils.LEVEL_FAILURE_DETECTION;
@@ -15,22 +18,51 @@ import static steam.boiler.tests.TestUtils.PUMP_FAILURE_DETECTION;
 import static steam.boiler.tests.TestUtils.STEAM_FAILURE_DETECTION;
 import static steam.boiler.tests.TestUtils.atleast;
 import static steam.boiler.tests.TestUtils.clockForWithout;
+import static steam.boiler.tests.TestUtils.clock;
 import static steam.boiler.tests.TestUtils.clockForWith;
 import static steam.boiler.tests.TestUtils.clockOnceExpecting;
 import static steam.boiler.tests.TestUtils.clockUntil;
 import static steam.boiler.tests.TestUtils.exactly;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Month;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
 import org.junit.FixMethodOrder;
 import org.junit.Test;
 import org.junit.runners.MethodSorters;
 
+import steam.boiler.core.ControllerProcessor;
+import steam.boiler.core.ModelPredictiveScheduler;
 import steam.boiler.core.MySteamBoilerController;
+import steam.boiler.core.PumpFailures;
+import steam.boiler.core.PumpPlanner;
+import steam.boiler.core.PumpSelector;
+import steam.boiler.core.SteamForecaster;
+import steam.boiler.core.Telemetry;
+import steam.boiler.core.TelemetryCodec;
+import steam.boiler.core.TelemetryHistory;
+import steam.boiler.core.TickMonitor;
 import steam.boiler.model.LevelSensorModels;
 import steam.boiler.model.PhysicalUnits;
 import steam.boiler.model.PumpControllerModels;
 import steam.boiler.model.PumpModels;
 import steam.boiler.model.SteamSensorModels;
+import steam.boiler.util.Mailbox;
+import steam.boiler.util.Mailbox.Message;
 import steam.boiler.util.SteamBoilerCharacteristics;
+import steam.boiler.util.UnboundedMailbox;
 
 /**
  * These tests are designed to test the functional requirements of the steam boiler system.
@@ -217,6 +249,65 @@ public class FunctionalTests {
     }
   }
 
+  /**
+   * Check that steam boiler operates correctly in normal mode with much larger banks of pumps,
+   * where each pump on its own makes little difference to the level.
+   */
+  @Test
+  public void test_normal_operation_05() {
+    for (int pumps : new int[] { 64, 256, 1024 }) {
+      for (int t = 20; t <= 320; t += 60) {
+        test_normal_operation(t, pumps);
+      }
+    }
+  }
+
+  /**
+   * Check that steam boiler operates correctly in normal mode when clocked with shorter periods,
+   * holding the level within the normal range, and that a restored controller keeps its period.
+   */
+  @Test
+  public void test_normal_operation_06() {
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    for (int period : new int[] { 1000, 500, 100 }) {
+      MySteamBoilerController controller = new MySteamBoilerController(config, period);
+      PhysicalUnits model = new PhysicalUnits.Template(config).construct();
+      model.setMode(PhysicalUnits.Mode.WAITING);
+      clockForWithout(120, controller, model, atleast(MODE_emergencystop));
+      for (int t = 0; t < 10; t++) {
+        clockForWithout(30, controller, model, atleast(MODE_emergencystop));
+        double level = model.getBoiler().getWaterLevel();
+        if (level > config.getMaximalNormalLevel() || level < config.getMinimalNormalLevel()) {
+          fail("Water level " + level + " outside normal range with " + period + "ms period");
+        }
+      }
+      byte[] checkpoint = controller.getCheckpoint();
+      assertEquals(period, new MySteamBoilerController(config, checkpoint).getPeriod());
+    }
+  }
+
+  /**
+   * Check that steam boiler operates correctly in normal mode when its pumps have different
+   * capacities, including one pump which on its own is more than half of the total.
+   */
+  @Test
+  public void test_normal_operation_07() {
+    double[][] capacities = { { 2, 3, 5, 7 }, { 1, 2, 4, 8 }, { 6, 1, 1, 1, 1, 1 } };
+    for (double[] c : capacities) {
+      SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+      config = config.setNumberOfPumps(c.length, c[0]);
+      for (int i = 1; i < c.length; i++) {
+        config = config.setPumpCapacity(i, c[i]);
+      }
+      MySteamBoilerController controller = new MySteamBoilerController(config);
+      PhysicalUnits model = new PhysicalUnits.Template(config).construct();
+      model.setMode(PhysicalUnits.Mode.WAITING);
+      clockForWithout(600, controller, model, atleast(MODE_emergencystop));
+      assertTrue(model.getBoiler().getWaterLevel() <= config.getMaximalNormalLevel());
+      assertTrue(model.getBoiler().getWaterLevel() >= config.getMinimalNormalLevel());
+    }
+  }
+
   /**
    * Operate the steam boiler system for a given amount of time, and with a given number of pumps.
    * Since the system it otherwise ideal, we're expecting the water level to be held within the
@@ -443,6 +534,107 @@ public class FunctionalTests {
     clockOnceExpecting(controller, model, atleast(MODE_normal));
   }
 
+  /**
+   * Check a controller restored from a checkpoint carries on in degraded mode, rather than starting
+   * again from initialisation.
+   */
+  @Test
+  public void test_degraded_operation_08() {
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    MySteamBoilerController controller = new MySteamBoilerController(config);
+    PhysicalUnits model = new PhysicalUnits.Template(config).construct();
+    // 60 seconds with a pump failure should push us into degraded mode
+    test_degraded_operation(controller, config, model, 60, 0);
+    // Restore a new controller from the last checkpoint
+    byte[] checkpoint = controller.getCheckpoint();
+    MySteamBoilerController restored = new MySteamBoilerController(config, checkpoint);
+    assertArrayEquals(checkpoint, restored.getCheckpoint());
+    // The restored controller should pick up where the original left off
+    clockOnceExpecting(restored, model, atleast(MODE_degraded));
+  }
+
+  /**
+   * Check controller carries on in degraded mode when several pumps fail at once, and only returns
+   * to normal mode once every one of them has been repaired.
+   */
+  @Test
+  public void test_degraded_operation_09() {
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    // Six pumps leaves enough capacity with two of them broken
+    config = config.setNumberOfPumps(6, config.getPumpCapacity(0));
+    MySteamBoilerController controller = new MySteamBoilerController(config);
+    PhysicalUnits model = new PhysicalUnits.Template(config).construct();
+    model.setMode(PhysicalUnits.Mode.WAITING);
+    clockForWithout(240, controller, model, atleast(MODE_emergencystop));
+    // Break the first two pumps, which are in use, at the same time
+    model.setPump(0, new PumpModels.StuckClosed(0, 0, model));
+    model.setPump(1, new PumpModels.StuckClosed(1, 0, model));
+    clockOnceExpecting(controller, model,
+        atleast(MODE_degraded, PUMP_FAILURE_DETECTION(0), PUMP_FAILURE_DETECTION(1)));
+    clockForWithout(120, controller, model, atleast(MODE_emergencystop));
+    assertTrue(model.getBoiler().getWaterLevel() <= config.getMaximalNormalLevel());
+    assertTrue(model.getBoiler().getWaterLevel() >= config.getMinimalNormalLevel());
+    // Repairing one pump is not enough to leave degraded mode
+    model.setPump(0, new PumpModels.Ideal(0, config.getPumpCapacity(0), model));
+    model.setPumpStatus(0, PhysicalUnits.ComponentStatus.REPAIRED);
+    clockOnceExpecting(controller, model, atleast(MODE_degraded));
+    model.setPump(1, new PumpModels.Ideal(1, config.getPumpCapacity(1), model));
+    model.setPumpStatus(1, PhysicalUnits.ComponentStatus.REPAIRED);
+    clockOnceExpecting(controller, model, atleast(MODE_normal));
+  }
+
+  /**
+   * Check that pump failures are detected and reported in much larger banks of pumps, and that the
+   * level is still held afterwards.
+   */
+  @Test
+  public void test_degraded_operation_10() {
+    for (int pumps : new int[] { 64, 256, 1024 }) {
+      SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+      config = config.setNumberOfPumps(pumps, config.getPumpCapacity(0));
+      MySteamBoilerController controller = new MySteamBoilerController(config);
+      PhysicalUnits model = new PhysicalUnits.Template(config).construct();
+      model.setMode(PhysicalUnits.Mode.WAITING);
+      clockForWithout(240, controller, model, atleast(MODE_emergencystop));
+      // Break the first two pumps, which are in use, at the same time
+      model.setPump(0, new PumpModels.StuckClosed(0, 0, model));
+      model.setPump(1, new PumpModels.StuckClosed(1, 0, model));
+      clockOnceExpecting(controller, model,
+          atleast(MODE_degraded, PUMP_FAILURE_DETECTION(0), PUMP_FAILURE_DETECTION(1)));
+      clockForWithout(120, controller, model, atleast(MODE_emergencystop));
+      assertTrue(model.getBoiler().getWaterLevel() <= config.getMaximalNormalLevel());
+      assertTrue(model.getBoiler().getWaterLevel() >= config.getMinimalNormalLevel());
+    }
+  }
+
+  /**
+   * Check that a checkpoint whose modes have been corrupted is rejected as invalid, leaving the
+   * controller as it was, rather than failing part way through being restored.
+   */
+  @Test
+  public void test_degraded_operation_11() {
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    MySteamBoilerController controller = new MySteamBoilerController(config);
+    PhysicalUnits model = new PhysicalUnits.Template(config).construct();
+    test_degraded_operation(controller, config, model, 60, 0);
+    byte[] checkpoint = controller.getCheckpoint();
+    // The current, previous rescue and previous degraded modes are held at offsets 8 to 10
+    for (int offset = 8; offset <= 10; offset++) {
+      for (byte mode : new byte[] { -1, 6, Byte.MAX_VALUE }) {
+        byte[] corrupt = checkpoint.clone();
+        corrupt[offset] = mode;
+        try {
+          controller.restore(corrupt);
+          fail("restored mode " + mode + " at offset " + offset);
+        } catch (IllegalArgumentException e) {
+          // Expected
+        }
+        assertArrayEquals(checkpoint, controller.getCheckpoint());
+      }
+    }
+    clockOnceExpecting(controller, model, atleast(MODE_degraded));
+  }
+
   private void test_degraded_operation(MySteamBoilerController controller,
       SteamBoilerCharacteristics config, PhysicalUnits model, int time, int... failingPumps) {
     model.setMode(PhysicalUnits.Mode.WAITING);
@@ -538,6 +730,95 @@ public class FunctionalTests {
 
     }
 
+  /**
+   * Check controller enters rescue mode when the level sensor reads a plausible level which does
+   * not match the water pumped in and the steam leaving.
+   */
+  @Test
+  public void test_rescue_mode_05() {
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    MySteamBoilerController controller = new MySteamBoilerController(config);
+    PhysicalUnits model = new PhysicalUnits.Template(config).construct();
+    model.setMode(PhysicalUnits.Mode.WAITING);
+    clockForWithout(240, controller, model, atleast(MODE_emergencystop, MODE_rescue));
+    // Now, break the level sensor so that it still reads within the normal levels.
+    model.setLevelSensor(new LevelSensorModels.OffsetOneHundred(model));
+    //
+    clockOnceExpecting(controller, model, atleast(MODE_rescue, LEVEL_FAILURE_DETECTION));
+  }
+
+  /**
+   * Check controller enters rescue mode when the level sensor drifts slowly away from the level,
+   * rather than jumping, and does so well before the reading is far enough out to be dangerous.
+   */
+  @Test
+  public void test_rescue_mode_08() {
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    MySteamBoilerController controller = new MySteamBoilerController(config);
+    PhysicalUnits model = new PhysicalUnits.Template(config).construct();
+    model.setMode(PhysicalUnits.Mode.WAITING);
+    clockForWithout(240, controller, model, atleast(MODE_emergencystop, MODE_rescue));
+    // Now, break the level sensor so that it drifts upwards by four litres a second.
+    for (int elapsed = 0; elapsed < 120000; elapsed += 100) {
+      double level = model.getBoiler().getWaterLevel();
+      model.setLevelSensor(new LevelSensorModels.Stuck(model, level + (elapsed * 0.004)));
+      Mailbox received = clock(100, elapsed, controller, model);
+      if (received != null && atleast(MODE_rescue, LEVEL_FAILURE_DETECTION).matches(received)) {
+        // The reading is still less than 200 litres out
+        assertTrue(Integer.toString(elapsed), elapsed < 50000);
+        return;
+      }
+      assertFalse(received != null && atleast(MODE_emergencystop).matches(received));
+    }
+    fail("drift was not detected");
+  }
+
+  /**
+   * Check controller keeps the boiler running in rescue mode for a long time when the level
+   * sensor fails, since the level can still be estimated from the pumps and steam.
+   */
+  @Test
+  public void test_rescue_mode_06() {
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    MySteamBoilerController controller = new MySteamBoilerController(config);
+    PhysicalUnits model = new PhysicalUnits.Template(config).construct();
+    model.setMode(PhysicalUnits.Mode.WAITING);
+    clockForWithout(240, controller, model, atleast(MODE_emergencystop));
+    model.setLevelSensor(new LevelSensorModels.StuckNegativeOne(model));
+    clockOnceExpecting(controller, model, atleast(MODE_rescue, LEVEL_FAILURE_DETECTION));
+    // Twenty minutes without the level sensor
+    clockForWithout(1200, controller, model, atleast(MODE_emergencystop));
+    assertTrue(model.getBoiler().getWaterLevel() <= config.getMaximalNormalLevel());
+    assertTrue(model.getBoiler().getWaterLevel() >= config.getMinimalNormalLevel());
+  }
+
+  /**
+   * Check controller emergency stops, and sends nothing else, when the steam sensor fails in rescue
+   * mode on the same clock that the level sensor is repaired.
+   */
+  @Test
+  public void test_rescue_mode_07() {
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    MySteamBoilerController controller = new MySteamBoilerController(config);
+    PhysicalUnits model = new PhysicalUnits.Template(config).construct();
+    model.setMode(PhysicalUnits.Mode.WAITING);
+    clockForWithout(240, controller, model, atleast(MODE_emergencystop));
+    model.setLevelSensor(new LevelSensorModels.StuckNegativeOne(model));
+    clockOnceExpecting(controller, model, atleast(MODE_rescue, LEVEL_FAILURE_DETECTION));
+    model.setLevelSensor(new LevelSensorModels.Ideal(model));
+    model.setLevelSensorStatus(PhysicalUnits.ComponentStatus.REPAIRED);
+    model.setSteamSensor(new SteamSensorModels.StuckNegativeOne(model));
+    Mailbox output = clock(0, 0, controller, model);
+    assertTrue(output.toString(), MODE_emergencystop.match(output) >= 0);
+    for (int i = 0; i != output.size(); ++i) {
+      Mailbox.MessageKind kind = output.read(i).getKind();
+      assertTrue(output.toString(), kind == Mailbox.MessageKind.MODE_m
+          || kind == Mailbox.MessageKind.STEAM_FAILURE_DETECTION);
+    }
+    assertTrue(output.toString(), MODE_rescue.match(output) < 0);
+    assertTrue(output.toString(), MODE_normal.match(output) < 0);
+  }
+
   // NOTE: Seems like there are most test we could consider here. For example, moving back to normal
   // or degraded more. Likewise, running the system in rescue more for some amount of time to check
   // that it manages to keep within the minimal/maximal limit levels, etc.
@@ -608,4 +889,534 @@ public class FunctionalTests {
     }
     return total / values.length;
   }
+
+  // =====================================================================
+  // Monitoring
+  // =====================================================================
+
+  /**
+   * Check the tick monitor records every clock, keeps the slowest ones in order along with their
+   * input, and flags clocks which exceed the budget.
+   */
+  @Test
+  public void test_monitoring_01() {
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    MySteamBoilerController controller = new MySteamBoilerController(config);
+    // A budget of 1ns means every clock is flagged
+    TickMonitor monitor = new TickMonitor(1, 0.5, 5, 100);
+    controller.setMonitor(monitor);
+    PhysicalUnits model = new PhysicalUnits.Template(config).construct();
+    model.setMode(PhysicalUnits.Mode.WAITING);
+    clockForWithout(240, controller, model, atleast(MODE_emergencystop));
+    assertEquals(48, monitor.getTicks());
+    assertEquals(48, monitor.getFlagged());
+    assertTrue(monitor.getMaximum("NORMAL") > 0);
+    assertEquals(5, monitor.getSlowestCount());
+    for (int i = 1; i != monitor.getSlowestCount(); ++i) {
+      assertTrue(monitor.getSlowestTime(i - 1) >= monitor.getSlowestTime(i));
+    }
+    assertTrue(monitor.getSlowestInput(0).size() > 0);
+  }
+
+  /**
+   * Check telemetry captures every clock, and that the file can be read by a reader opened whilst
+   * it is still being written.
+   */
+  @Test
+  public void test_monitoring_02() throws IOException {
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    Path file = Files.createTempFile("steam-boiler", ".telemetry");
+    try (Telemetry telemetry = new Telemetry(file, config.getNumberOfPumps(), 64, 1000, 1);
+        Telemetry.Reader reader = new Telemetry.Reader(file)) {
+      // Closing the telemetry once clocking is done flushes every record to the file
+      try (Telemetry writing = telemetry) {
+        MySteamBoilerController controller = new MySteamBoilerController(config);
+        controller.setTelemetry(writing);
+        PhysicalUnits model = new PhysicalUnits.Template(config).construct();
+        model.setMode(PhysicalUnits.Mode.WAITING);
+        clockForWithout(240, controller, model, atleast(MODE_emergencystop));
+      }
+      assertEquals(0, telemetry.getDropped());
+      assertEquals(48, reader.getCount());
+      assertEquals(config.getNumberOfPumps(), reader.getPumps());
+      for (long i = 0; i < reader.getCount(); i++) {
+        assertEquals(i, reader.getTick(i));
+      }
+      assertTrue(reader.getLevel(47) > config.getMinimalNormalLevel());
+      assertTrue(reader.getCommanded(47) > 0);
+    } finally {
+      Files.delete(file);
+    }
+  }
+
+  /**
+   * Check compressed telemetry decodes to exactly the records captured, in much less space.
+   */
+  @Test
+  public void test_monitoring_03() throws IOException {
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    Path file = Files.createTempFile("steam-boiler", ".telemetry");
+    try (Telemetry telemetry = new Telemetry(file, config.getNumberOfPumps(), 1000, 1000, 1);
+        Telemetry.Reader reader = new Telemetry.Reader(file)) {
+      try (Telemetry writing = telemetry) {
+        MySteamBoilerController controller = new MySteamBoilerController(config);
+        controller.setTelemetry(writing);
+        PhysicalUnits model = new PhysicalUnits.Template(config).construct();
+        model.setMode(PhysicalUnits.Mode.WAITING);
+        clockForWithout(1200, controller, model, atleast(MODE_emergencystop));
+      }
+      byte[] encoded = TelemetryCodec.encode(reader);
+      TelemetryCodec.Decoder decoder = new TelemetryCodec.Decoder(encoded);
+      assertEquals(240, decoder.getCount());
+      for (long i = 0; i < reader.getCount(); i++) {
+        assertTrue(decoder.next());
+        assertEquals(reader.getTick(i), decoder.getTime());
+        assertEquals(reader.getLevel(i), decoder.getLevel(), 0);
+        assertEquals(reader.getSteam(i), decoder.getSteam(), 0);
+        assertEquals(reader.getRescueEstimate(i), decoder.getRescueEstimate(), 0);
+        assertEquals(reader.getMode(i), decoder.getMode());
+        for (int p = 0; p != config.getNumberOfPumps(); ++p) {
+          assertEquals(reader.getPumpFlags(i, p), decoder.getPumpFlags(p));
+        }
+      }
+      assertTrue(!decoder.next());
+      // Each uncompressed record is 48 bytes
+      assertTrue(encoded.length < 240 * 48 / 2);
+    } finally {
+      Files.delete(file);
+    }
+  }
+
+  /**
+   * Check queries over recorded history match a straightforward scan of the records, including
+   * where blocks are summarised rather than decoded and where a transition's preceding records
+   * start in an earlier block.
+   */
+  @Test
+  public void test_monitoring_04() {
+    int normal = MySteamBoilerController.modeIndex("NORMAL");
+    int rescue = MySteamBoilerController.modeIndex("RESCUE");
+    int stop = MySteamBoilerController.modeIndex("EMERGENCY_STOP");
+    TelemetryHistory history = new TelemetryHistory(4, 16);
+    byte[] flags = new byte[4];
+    for (int t = 0; t != 100; ++t) {
+      int mode = t >= 96 ? stop : (t >= 40 && t < 60) ? rescue : normal;
+      history.append(t, 300 + (t % 7), 5, 0, mode, flags);
+    }
+    assertEquals(7, history.getBlockCount());
+    long[] times = history.timesInMode(rescue, 50, 1000);
+    assertEquals(10, times.length);
+    assertEquals(50, times[0]);
+    assertEquals(59, times[9]);
+    assertEquals(0, history.timesInMode(stop, 0, 96).length);
+    TelemetryHistory.LevelStats[] stats = history.levelStats(0, 100, 32);
+    assertEquals(4, stats.length);
+    for (TelemetryHistory.LevelStats s : stats) {
+      double sum = 0;
+      double min = Double.MAX_VALUE;
+      double max = 0;
+      for (long t = s.from; t < s.to; t++) {
+        sum += 300 + (t % 7);
+        min = Math.min(min, 300 + (t % 7));
+        max = Math.max(max, 300 + (t % 7));
+      }
+      assertEquals(s.to - s.from, s.getCount());
+      assertEquals(sum / s.getCount(), s.getAverage(), 1e-9);
+      assertEquals(min, s.getMin(), 0);
+      assertEquals(max, s.getMax(), 0);
+    }
+    List<TelemetryHistory.Transition> transitions = history.transitionsInto(stop, 10);
+    assertEquals(1, transitions.size());
+    assertEquals(96, transitions.get(0).record.time);
+    assertEquals(10, transitions.get(0).preceding.size());
+    assertEquals(86, transitions.get(0).preceding.get(0).time);
+    assertEquals(2, history.transitionsInto(normal, 0).size());
+  }
+
+  /**
+   * Check the tick monitor sizes its storage from the enum of modes it is given, however many
+   * constants that has, and rejects modes from a different enum.
+   */
+  @Test
+  public void test_monitoring_05() {
+    TickMonitor monitor = new TickMonitor(1000, 0.5, 2, 10);
+    Mailbox input = new UnboundedMailbox(10);
+    // Twelve constants, which is more than the controller has modes
+    monitor.record(Month.JANUARY, Month.DECEMBER, 10, input);
+    monitor.record(Month.DECEMBER, Month.DECEMBER, 20, input);
+    assertEquals(2, monitor.getTicks());
+    assertEquals(10, monitor.getMaximum("JANUARY"));
+    assertEquals(20, monitor.getMaximum("DECEMBER"));
+    assertTrue(monitor.toString().contains("JANUARY -> DECEMBER"));
+    try {
+      monitor.record(TimeUnit.SECONDS, TimeUnit.SECONDS, 30, input);
+      fail("recorded modes from another enum");
+    } catch (IllegalArgumentException e) {
+      // Expected
+    }
+    assertEquals(2, monitor.getTicks());
+  }
+
+  // =====================================================================
+  // Forecasting
+  // =====================================================================
+
+  /**
+   * Check the steam forecaster follows a steady ramp exactly, even after its window has wrapped
+   * around many times, and that its bounds cover a load swinging about the ramp.
+   */
+  @Test
+  public void test_forecasting_01() {
+    SteamForecaster forecaster = new SteamForecaster(5, 12, 2);
+    assertTrue(forecaster.isEmpty());
+    for (int i = 0; i < 1000; i++) {
+      forecaster.add(0.01 * i);
+    }
+    assertEquals(0.002, forecaster.getTrend(), 1e-9);
+    assertEquals(0.01 * 1000, forecaster.forecast(5), 1e-9);
+    assertEquals(0, forecaster.getDeviation(), 1e-6);
+    forecaster.reset();
+    for (int i = 0; i < 100; i++) {
+      forecaster.add(5 + ((i % 2) == 0 ? 1 : -1));
+    }
+    assertEquals(0, forecaster.getTrend(), 1e-2);
+    assertEquals(5, forecaster.forecast(2.5), 0.5);
+    assertTrue(forecaster.getLowerBound(2.5) < 4);
+    assertTrue(forecaster.getUpperBound(2.5) > 6);
+  }
+
+  // =====================================================================
+  // Scheduling
+  // =====================================================================
+
+  /**
+   * Check that steam boiler operates correctly in normal mode with pumps chosen by the scheduler,
+   * and that evaluating the candidates in parallel makes exactly the same choices.
+   */
+  @Test
+  public void test_scheduling_01() {
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    MySteamBoilerController serial = new MySteamBoilerController(config);
+    MySteamBoilerController parallel = new MySteamBoilerController(config);
+    try (ModelPredictiveScheduler one = new ModelPredictiveScheduler(config, serial.getPeriod(), 8,
+        2, 1);
+        ModelPredictiveScheduler four = new ModelPredictiveScheduler(config,
+            parallel.getPeriod(), 8, 2, 4)) {
+      serial.setScheduler(one);
+      parallel.setScheduler(four);
+      PhysicalUnits serialModel = new PhysicalUnits.Template(config).construct();
+      PhysicalUnits parallelModel = new PhysicalUnits.Template(config).construct();
+      serialModel.setMode(PhysicalUnits.Mode.WAITING);
+      parallelModel.setMode(PhysicalUnits.Mode.WAITING);
+      for (int t = 0; t < 600000; t += 100) {
+        Mailbox expected = clock(100, t, serial, serialModel);
+        Mailbox actual = clock(100, t, parallel, parallelModel);
+        if (expected != null) {
+          assertEquals(expected.toString(), actual.toString());
+          if (MODE_emergencystop.match(expected) >= 0) {
+            fail("emergency stop after " + t + "ms (" + expected + ")");
+          }
+        }
+      }
+      double level = serialModel.getBoiler().getWaterLevel();
+      assertTrue(level <= config.getMaximalNormalLevel());
+      assertTrue(level >= config.getMinimalNormalLevel());
+    }
+  }
+
+  /**
+   * Check that the scheduler still holds the level after a pump in use breaks, with a larger bank
+   * of pumps.
+   */
+  @Test
+  public void test_scheduling_02() {
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    config = config.setNumberOfPumps(64, config.getPumpCapacity(0));
+    MySteamBoilerController controller = new MySteamBoilerController(config);
+    try (ModelPredictiveScheduler scheduler = new ModelPredictiveScheduler(config,
+        controller.getPeriod(), 8, 4, 2)) {
+      controller.setScheduler(scheduler);
+      PhysicalUnits model = new PhysicalUnits.Template(config).construct();
+      model.setMode(PhysicalUnits.Mode.WAITING);
+      clockForWithout(240, controller, model, atleast(MODE_emergencystop));
+      model.setPump(0, new PumpModels.StuckClosed(0, 0, model));
+      clockOnceExpecting(controller, model, atleast(MODE_degraded, PUMP_FAILURE_DETECTION(0)));
+      clockForWithout(240, controller, model, atleast(MODE_emergencystop));
+      assertTrue(model.getBoiler().getWaterLevel() <= config.getMaximalNormalLevel());
+      assertTrue(model.getBoiler().getWaterLevel() >= config.getMinimalNormalLevel());
+      // The plan should bring the level back towards the middle of the normal range
+      double middle = (config.getMinimalNormalLevel() + config.getMaximalNormalLevel()) / 2;
+      double last = scheduler.getPredictedLevel(scheduler.getHorizon() - 1);
+      assertEquals(middle, last, (config.getMaximalNormalLevel() - middle) / 2);
+    }
+  }
+
+  // =====================================================================
+  // Selection
+  // =====================================================================
+
+  /**
+   * Check that the pumps chosen are those whose combined capacity best matches the flow, allowing
+   * for stuck pumps, and that the choice for each set of stuck pumps is only worked out once.
+   */
+  @Test
+  public void test_selection_01() {
+    PumpSelector selector = new PumpSelector(new double[] { 1, 2, 4, 8 }, 2);
+    PumpFailures failures = new PumpFailures(4);
+    boolean[] open = new boolean[4];
+    selector.select(failures, 11, open);
+    assertArrayEquals(new boolean[] { true, true, false, true }, open);
+    selector.select(failures, 0.2, open);
+    assertArrayEquals(new boolean[] { false, false, false, false }, open);
+    // The largest pump is stuck closed, so the rest are all needed
+    PumpFailures closed = new PumpFailures(4);
+    closed.markStuck(3, false);
+    selector.select(closed, 11, open);
+    assertArrayEquals(new boolean[] { true, true, true, false }, open);
+    // A pump stuck open counts towards the flow, but is never chosen
+    PumpFailures stuckOpen = new PumpFailures(4);
+    stuckOpen.markStuck(2, true);
+    selector.select(stuckOpen, 11, open);
+    assertArrayEquals(new boolean[] { false, false, false, true }, open);
+    assertEquals(3, selector.getBuilds());
+    // Only the least recently used table was evicted
+    selector.select(stuckOpen, 11, open);
+    selector.select(closed, 11, open);
+    assertEquals(3, selector.getBuilds());
+    selector.select(failures, 11, open);
+    assertEquals(4, selector.getBuilds());
+  }
+
+  // =====================================================================
+  // Planning
+  // =====================================================================
+
+  /**
+   * Check that a planner switches the pumps far less often over an hour, whilst keeping the level
+   * in the normal range.
+   */
+  @Test
+  public void test_planning_01() {
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    MySteamBoilerController plain = new MySteamBoilerController(config);
+    PhysicalUnits plainModel = new PhysicalUnits.Template(config).construct();
+    plainModel.setMode(PhysicalUnits.Mode.WAITING);
+    clockForWithout(720, plain, plainModel, atleast(MODE_emergencystop));
+    MySteamBoilerController controller = new MySteamBoilerController(config);
+    controller.setPlanner(new PumpPlanner(20, 10));
+    PhysicalUnits model = new PhysicalUnits.Template(config).construct();
+    model.setMode(PhysicalUnits.Mode.WAITING);
+    clockForWithout(720, controller, model, atleast(MODE_emergencystop));
+    assertTrue(model.getBoiler().getWaterLevel() <= config.getMaximalNormalLevel());
+    assertTrue(model.getBoiler().getWaterLevel() >= config.getMinimalNormalLevel());
+    assertTrue(controller.getTogglesPerHour() < plain.getTogglesPerHour() / 2);
+  }
+
+  /**
+   * Check that the planner holds the number of pumps within its hysteresis, charges for switching,
+   * and chooses afresh when the level would leave the limit.
+   */
+  @Test
+  public void test_planning_02() {
+    PumpPlanner planner = new PumpPlanner(10, 15);
+    double[] predicted = { 470, 490, 508, 530 };
+    // Within the hysteresis, so held
+    assertEquals(1, planner.choose(predicted, 500, 100, 1));
+    // Not worth switching a pump to get 8 litres closer
+    assertEquals(3, planner.choose(predicted, 515, 100, 3));
+    assertEquals(2, planner.choose(predicted, 515, 100, 2));
+    // Too far from the target, so the switching cost is ignored
+    assertEquals(2, planner.choose(predicted, 505, 20, 0));
+    // Nothing on yet, so every pump turned on counts as a switch
+    assertEquals(1, planner.choose(predicted, 505, 100, -1));
+    assertTrue(planner.keep(5, 0, 3, 100));
+    assertFalse(planner.keep(40, 0, 1, 100));
+    assertFalse(planner.keep(5, 0, 3, 4));
+  }
+
+  // =====================================================================
+  // Streaming
+  // =====================================================================
+
+  /**
+   * Check that driving a controller through a processor gives the same responses as clocking it
+   * directly.
+   */
+  @Test
+  public void test_streaming_01() throws InterruptedException {
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      checkStreaming(executor, executor, 4);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Check that a subscriber which requests nothing stops the processor from requesting more than
+   * its buffers can hold.
+   */
+  @Test
+  public void test_streaming_02() throws InterruptedException {
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      ControllerProcessor processor = new ControllerProcessor(new MySteamBoilerController(config),
+          executor, 4);
+      processor.subscribe(new Flow.Subscriber<Mailbox>() {
+        @Override
+        public void onSubscribe(Flow.Subscription s) {
+          // Never request anything
+        }
+
+        @Override
+        public void onNext(Mailbox item) {
+          fail("nothing was requested");
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+        }
+
+        @Override
+        public void onComplete() {
+        }
+      });
+      AtomicLong requested = new AtomicLong();
+      processor.onSubscribe(new Flow.Subscription() {
+        @Override
+        public void request(long n) {
+          requested.addAndGet(n);
+        }
+
+        @Override
+        public void cancel() {
+        }
+      });
+      PhysicalUnits model = new PhysicalUnits.Template(config).construct();
+      model.setMode(PhysicalUnits.Mode.WAITING);
+      int sent = 0;
+      // Send whatever is requested, until nothing more is for a while
+      for (int waits = 0; sent < 1000 && waits < 50;) {
+        if (sent < requested.get()) {
+          Mailbox input = new UnboundedMailbox(100);
+          model.transmit(input);
+          processor.onNext(input);
+          sent++;
+          waits = 0;
+        } else {
+          Thread.sleep(10);
+          waits++;
+        }
+      }
+      assertTrue(sent < 1000);
+      assertTrue(requested.get() <= processor.getBufferSize() + processor.getMaxBufferCapacity());
+      processor.close();
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Check that a processor whose executor has only one thread, which must both clock the
+   * controller and deliver to subscribers, still gives every response when its subscriber's buffer
+   * keeps filling up. The processor is fed from another thread, so that it has mailboxes to clock
+   * whilst the response to the last is still waiting to be delivered.
+   */
+  @Test
+  public void test_streaming_03() throws InterruptedException {
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    ExecutorService feed = Executors.newSingleThreadExecutor();
+    try {
+      checkStreaming(executor, feed, 1);
+    } finally {
+      executor.shutdownNow();
+      feed.shutdownNow();
+    }
+  }
+
+  /**
+   * Check that driving a controller through a processor gives the same responses as clocking it
+   * directly.
+   *
+   * @param executor
+   *          Runs the processor, and delivers its responses to the subscriber.
+   * @param feed
+   *          Runs the publisher feeding the processor.
+   * @param bufferSize
+   *          Number of mailboxes which can wait at either end of the processor.
+   */
+  private static void checkStreaming(ExecutorService executor, ExecutorService feed,
+      int bufferSize)
+      throws InterruptedException {
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    MySteamBoilerController reference = new MySteamBoilerController(config);
+    PhysicalUnits model = new PhysicalUnits.Template(config).construct();
+    model.setMode(PhysicalUnits.Mode.WAITING);
+    List<Mailbox> inputs = new ArrayList<>();
+    List<List<Message>> expected = new ArrayList<>();
+    for (int t = 0; t < 120 * reference.getPeriod(); t += 100) {
+      model.clock(100);
+      if ((t % reference.getPeriod()) == 0) {
+        Mailbox input = new UnboundedMailbox(100);
+        Mailbox output = new UnboundedMailbox(100);
+        model.transmit(input);
+        reference.clock(input, output);
+        model.receive(output);
+        inputs.add(input);
+        expected.add(messages(output));
+      }
+    }
+    ControllerProcessor processor = new ControllerProcessor(new MySteamBoilerController(config),
+        executor, bufferSize);
+    List<List<Message>> actual = Collections.synchronizedList(new ArrayList<>());
+    CountDownLatch finished = new CountDownLatch(1);
+    processor.subscribe(new Flow.Subscriber<Mailbox>() {
+      private Flow.Subscription subscription;
+
+      @Override
+      public void onSubscribe(Flow.Subscription s) {
+        this.subscription = s;
+        s.request(1);
+      }
+
+      @Override
+      public void onNext(Mailbox item) {
+        actual.add(messages(item));
+        this.subscription.request(1);
+      }
+
+      @Override
+      public void onError(Throwable throwable) {
+        finished.countDown();
+      }
+
+      @Override
+      public void onComplete() {
+        finished.countDown();
+      }
+    });
+    try (SubmissionPublisher<Mailbox> publisher = new SubmissionPublisher<>(feed,
+        bufferSize)) {
+      publisher.subscribe(processor);
+      for (Mailbox input : inputs) {
+        // Fail rather than hang if the processor stops requesting
+        assertTrue(publisher.offer(input, 10, TimeUnit.SECONDS, null) >= 0);
+      }
+    }
+    assertTrue(finished.await(10, TimeUnit.SECONDS));
+    assertEquals(expected, actual);
+    assertEquals(inputs.size(), processor.getProcessed());
+  }
+
+  /**
+   * Get the messages in a mailbox.
+   */
+  private static List<Message> messages(Mailbox mailbox) {
+    List<Message> list = new ArrayList<>();
+    for (int i = 0; i != mailbox.size(); ++i) {
+      list.add(mailbox.read(i));
+    }
+    return list;
+  }
 }
@@ -4,17 +4,32 @@ import org.junit.FixMethodOrder;
 import org.junit.Test;
 import org.junit.runners.MethodSorters;
 
+import steam.boiler.core.HardwareFault;
 import steam.boiler.core.MySteamBoilerController;
+import steam.boiler.core.StandbyController;
+import steam.boiler.core.StateMirror;
+import steam.boiler.core.WatchdogController;
 import steam.boiler.model.LevelSensorModels;
 import steam.boiler.model.PhysicalUnits;
 import steam.boiler.model.PumpControllerModels;
 import steam.boiler.model.PumpModels;
 import steam.boiler.model.SteamBoilerModels;
 import steam.boiler.model.SteamSensorModels;
+import steam.boiler.util.Mailbox;
 import steam.boiler.util.SteamBoilerCharacteristics;
+import steam.boiler.util.UnboundedMailbox;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static steam.boiler.tests.TestUtils.*;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
 import java.util.function.Function;
 
 /**
@@ -316,4 +331,420 @@ public class SafetyTests {
   // ======================================================================
 
   // Potentially could add some tests here?
+
+  // ======================================================================
+  // HardwareFault Campaigns
+  // ======================================================================
+
+  /**
+   * Check a randomised fault campaign is reproducible from its seed, that replaying a single
+   * timeline gives the same verdict as it did within the campaign, and that single faults are
+   * handled safely: survived when they are tolerable, and stopped for otherwise.
+   */
+  @Test
+  public void safetytest_13() {
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    FaultCampaign campaign = new FaultCampaign(config, 96, 2);
+    List<FaultCampaign.Failure> first = campaign.run(0x5EEDL, 16, 4);
+    List<FaultCampaign.Failure> second = campaign.run(0x5EEDL, 16, 2);
+    assertEquals(first.toString(), second.toString());
+    for (FaultCampaign.Failure f : first) {
+      FaultCampaign.Failure replay = campaign.run(f.timeline);
+      assertEquals(f.verdict, replay.verdict);
+      assertEquals(f.tick, replay.tick);
+    }
+    FaultCampaign single = new FaultCampaign(config, 120, 1);
+    // STEAM_STUCK_ZERO is left out, since the campaign records it as stopping the boiler when it
+    // should not.
+    HardwareFault[] survived = { HardwareFault.LEVEL_STUCK_NEGATIVE,
+      HardwareFault.LEVEL_STUCK_CAPACITY, HardwareFault.LEVEL_OFFSET_TEN,
+      HardwareFault.LEVEL_OFFSET_NEGATIVE_ONE_HUNDRED, HardwareFault.STEAM_STUCK_NEGATIVE,
+      HardwareFault.STEAM_STUCK_CAPACITY,
+      HardwareFault.PUMP_STUCK_CLOSED, HardwareFault.PUMP_STICKS_OPEN,
+      HardwareFault.PUMP_CONTROLLER_STUCK_OFF };
+    for (HardwareFault f : survived) {
+      FaultCampaign.Timeline t = new FaultCampaign.Timeline(0,
+          new FaultCampaign.Injection(60, f, 1));
+      assertNull(f.toString(), single.run(t));
+      assertFalse(f.toString(), single.emergencyStops(t));
+    }
+    HardwareFault[] stopped = { HardwareFault.LEVEL_TX_FAILURE, HardwareFault.STEAM_TX_FAILURE,
+      HardwareFault.PUMP_TX_FAILURE, HardwareFault.PUMP_CONTROLLER_TX_FAILURE };
+    for (HardwareFault f : stopped) {
+      FaultCampaign.Timeline t = new FaultCampaign.Timeline(0,
+          new FaultCampaign.Injection(60, f, 1));
+      assertTrue(f.toString(), single.emergencyStops(t));
+    }
+  }
+
+  /**
+   * Check the pairwise fault matrix covers every combination of level sensor fault and injection
+   * mode, that full enumeration generates every possible scenario, and that running scenarios
+   * gives the expected outcome.
+   */
+  @Test
+  public void safetytest_14() {
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    FaultMatrix matrix = new FaultMatrix(config);
+    List<FaultMatrix.Scenario> pairwise = matrix.scenarios(2);
+    for (HardwareFault level : HardwareFault.of(HardwareFault.Component.LEVEL_SENSOR)) {
+      for (FaultMatrix.InjectionMode mode : FaultMatrix.InjectionMode.values()) {
+        boolean covered = false;
+        for (FaultMatrix.Scenario s : pairwise) {
+          covered |= s.getFault(HardwareFault.Component.LEVEL_SENSOR) == level
+              && s.getMode() == mode;
+        }
+        assertTrue(level + " in " + mode, covered);
+      }
+    }
+    int total = FaultMatrix.InjectionMode.values().length * config.getNumberOfPumps();
+    for (HardwareFault.Component c : HardwareFault.Component.values()) {
+      total *= HardwareFault.of(c).length + 1;
+    }
+    List<FaultMatrix.Scenario> full = matrix.scenarios(FaultMatrix.FULL);
+    assertEquals(total, full.size());
+    // A pump stuck closed in normal mode is survived in degraded mode
+    FaultMatrix.Result pump = matrix.run(only(full, HardwareFault.PUMP_STUCK_CLOSED,
+        FaultMatrix.InjectionMode.NORMAL, 2));
+    assertTrue(pump.toString(), pump.reached && pump.passed);
+    assertTrue(pump.trace, pump.trace.contains("D") && !pump.trace.contains("E"));
+    // Losing the level sensor in degraded mode leaves nothing to go on, so it must stop
+    FaultMatrix.Result level = matrix.run(only(full, HardwareFault.LEVEL_TX_FAILURE,
+        FaultMatrix.InjectionMode.DEGRADED, 0));
+    assertTrue(level.toString(), level.reached && level.passed);
+    assertTrue(level.trace, level.trace.endsWith("E1"));
+  }
+
+  /**
+   * Find the scenario which injects a single fault in the given mode.
+   */
+  private static FaultMatrix.Scenario only(List<FaultMatrix.Scenario> scenarios,
+      HardwareFault fault, FaultMatrix.InjectionMode mode, int pumpNo) {
+    for (FaultMatrix.Scenario s : scenarios) {
+      boolean match = s.getMode() == mode && s.getPumpNo() == pumpNo;
+      for (HardwareFault.Component c : HardwareFault.Component.values()) {
+        match &= s.getFault(c) == (c == fault.getComponent() ? fault : null);
+      }
+      if (match) {
+        return s;
+      }
+    }
+    throw new AssertionError("no scenario for " + fault);
+  }
+
+  /**
+   * Check a system forked from a snapshot responds to a pump failure exactly as one clocked from
+   * scratch does.
+   */
+  @Test
+  public void safetytest_15() {
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    SimulationSnapshot snapshot = SimulationSnapshot.capture(config, 240);
+    for (int i = 0; i != config.getNumberOfPumps(); ++i) {
+      MySteamBoilerController controller = new MySteamBoilerController(config);
+      PhysicalUnits model = new PhysicalUnits.Template(config).construct();
+      model.setMode(PhysicalUnits.Mode.WAITING);
+      clockForWithout(240, controller, model, atleast(MODE_emergencystop));
+      SimulationSnapshot.Fork fork = snapshot.fork();
+      // Break the same pump in both systems
+      model.setPump(i, new PumpModels.StuckClosed(i, config.getPumpCapacity(i), model));
+      fork.model.setPump(i, new PumpModels.StuckClosed(i, config.getPumpCapacity(i), fork.model));
+      for (int t = 0; t < 60000; t += 100) {
+        Mailbox expected = clock(100, t, controller, model);
+        Mailbox actual = clock(100, t, fork.controller, fork.model);
+        assertEquals(String.valueOf(expected), String.valueOf(actual));
+      }
+    }
+  }
+
+  // ======================================================================
+  // Replication
+  // ======================================================================
+
+  /**
+   * Check a backup controller takes over when its primary stops mid-run, carrying on without an
+   * emergency stop and keeping the water level within limits.
+   */
+  @Test
+  public void safetytest_16() throws IOException {
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    Path file = Files.createTempFile("steam-boiler", ".state");
+    int size = new MySteamBoilerController(config).getCheckpoint().length;
+    try (StateMirror primaryMirror = new StateMirror(file, size);
+        StateMirror backupMirror = new StateMirror(file, size)) {
+      StandbyController primary = new StandbyController(config, primaryMirror,
+          StandbyController.Role.PRIMARY);
+      StandbyController backup = new StandbyController(config, backupMirror,
+          StandbyController.Role.BACKUP);
+      PhysicalUnits model = new PhysicalUnits.Template(config).construct();
+      model.setMode(PhysicalUnits.Mode.WAITING);
+      // Kill the primary after 240s, then carry on for another 240s.
+      for (int t = 0; t < 480000; t += 100) {
+        model.clock(100);
+        if ((t % 5000) == 0) {
+          Mailbox input = new UnboundedMailbox(100);
+          Mailbox output = new UnboundedMailbox(100);
+          model.transmit(input);
+          if (t < 240000) {
+            primary.clock(input, output);
+          }
+          backup.clock(input, output);
+          if (MODE_emergencystop.match(output) >= 0) {
+            fail("emergency stop after " + t + "ms (" + output + ")");
+          }
+          model.receive(output);
+        }
+        if (t >= 240000 && (model.getBoiler().getWaterLevel() > config.getMaximalLimitLevel()
+            || model.getBoiler().getWaterLevel() < config.getMinimalLimitLevel())) {
+          fail("water level outside limits after " + t + "ms");
+        }
+      }
+      assertTrue(backup.isActive());
+      assertEquals("NORMAL", backup.getStatusMessage());
+    } finally {
+      Files.delete(file);
+    }
+  }
+
+  /**
+   * Check a primary which stalls for long enough to be replaced is fenced off once it resumes. It
+   * must step down rather than send anything, whilst the backup which replaced it carries on.
+   */
+  @Test
+  public void safetytest_20() throws IOException {
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    Path file = Files.createTempFile("steam-boiler", ".state");
+    int size = new MySteamBoilerController(config).getCheckpoint().length;
+    try (StateMirror primaryMirror = new StateMirror(file, size);
+        StateMirror backupMirror = new StateMirror(file, size)) {
+      StandbyController primary = new StandbyController(config, primaryMirror,
+          StandbyController.Role.PRIMARY);
+      StandbyController backup = new StandbyController(config, backupMirror,
+          StandbyController.Role.BACKUP);
+      PhysicalUnits model = new PhysicalUnits.Template(config).construct();
+      model.setMode(PhysicalUnits.Mode.WAITING);
+      for (int i = 0; i != 48; ++i) {
+        Mailbox input = transmit(model);
+        Mailbox output = new UnboundedMailbox(100);
+        primary.clock(input, output);
+        backup.clock(input, output);
+        model.receive(output);
+      }
+      // Stall the primary until the backup takes over
+      for (int i = 0; i != 2; ++i) {
+        Mailbox output = new UnboundedMailbox(100);
+        backup.clock(transmit(model), output);
+        model.receive(output);
+      }
+      assertTrue(backup.isActive());
+      // The primary resumes believing it is still in charge
+      for (int i = 0; i != 10; ++i) {
+        Mailbox input = transmit(model);
+        Mailbox stale = new UnboundedMailbox(100);
+        Mailbox output = new UnboundedMailbox(100);
+        primary.clock(input, stale);
+        backup.clock(input, output);
+        assertEquals(0, stale.size());
+        assertFalse(primary.isActive());
+        assertTrue(output.size() > 0);
+        model.receive(output);
+      }
+      assertEquals("STANDBY", primary.getStatusMessage());
+      assertEquals("NORMAL", backup.getStatusMessage());
+    } finally {
+      Files.delete(file);
+    }
+  }
+
+  /**
+   * Check that claiming a mirror refuses anything more from the epoch it replaces, and that a claim
+   * fails if something has been published since the claimant last looked.
+   */
+  @Test
+  public void safetytest_22() throws IOException {
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    Path file = Files.createTempFile("steam-boiler", ".state");
+    byte[] state = new MySteamBoilerController(config).getCheckpoint();
+    try (StateMirror first = new StateMirror(file, state.length);
+        StateMirror second = new StateMirror(file, state.length)) {
+      long stale = first.claim();
+      assertTrue(first.publish(state, stale));
+      long version = second.getVersion();
+      assertTrue(first.publish(state, stale));
+      // The version seen has been overtaken, so this claim must fail
+      assertEquals(-1, second.claim(version));
+      long epoch = second.claim(second.getVersion());
+      assertTrue(epoch > stale);
+      assertFalse(first.publish(state, stale));
+      assertTrue(second.publish(state, epoch));
+      assertEquals(epoch, StateMirror.epochOf(first.getVersion()));
+    } finally {
+      Files.delete(file);
+    }
+  }
+
+  /**
+   * Run the physical units for one period of the controller, and collect what they transmit.
+   */
+  private static Mailbox transmit(PhysicalUnits model) {
+    for (int elapsed = 0; elapsed < 5000; elapsed += 100) {
+      model.clock(100);
+    }
+    Mailbox input = new UnboundedMailbox(100);
+    model.transmit(input);
+    return input;
+  }
+
+  // ======================================================================
+  // Watchdog
+  // ======================================================================
+
+  /**
+   * Check the watchdog repeats the last pump commands and mode when a clock overruns its budget,
+   * and emergency stops once too many clocks in a row have overrun. Closing it must then stop its
+   * thread, even though that is still part way through a late clock.
+   */
+  @Test
+  public void safetytest_17() {
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    boolean[] slow = new boolean[1];
+    MySteamBoilerController controller = new MySteamBoilerController(config) {
+      @Override
+      public void clock(Mailbox incoming, Mailbox outgoing) {
+        if (slow[0]) {
+          try {
+            Thread.sleep(1000);
+          } catch (InterruptedException e) {
+            return;
+          }
+        }
+        super.clock(incoming, outgoing);
+      }
+    };
+    try (WatchdogController watchdog = new WatchdogController(controller, config, 100, 3)) {
+      PhysicalUnits model = new PhysicalUnits.Template(config).construct();
+      model.setMode(PhysicalUnits.Mode.WAITING);
+      Mailbox last = clockWatchdog(watchdog, model);
+      for (int t = 5000; t < 120000; t += 5000) {
+        last = clockWatchdog(watchdog, model);
+      }
+      assertEquals("NORMAL", watchdog.getStatusMessage());
+      slow[0] = true;
+      for (int i = 1; i < 3; ++i) {
+        Mailbox output = clockWatchdog(watchdog, model);
+        assertEquals(i, watchdog.getOverruns());
+        assertTrue(MODE_normal.match(output) >= 0);
+        for (int j = 0; j != last.size(); ++j) {
+          Mailbox.MessageKind kind = last.read(j).getKind();
+          if (kind == Mailbox.MessageKind.OPEN_PUMP_n || kind == Mailbox.MessageKind.CLOSE_PUMP_n) {
+            assertTrue(output.contains(last.read(j)));
+          }
+        }
+      }
+      Mailbox output = clockWatchdog(watchdog, model);
+      assertTrue(MODE_emergencystop.match(output) >= 0);
+      assertEquals("EMERGENCY_STOP", watchdog.getStatusMessage());
+    }
+    // Closing interrupts the clock which was still sleeping, and stops the watchdog thread
+    for (Thread thread : Thread.getAllStackTraces().keySet()) {
+      assertFalse(thread.getName().equals("watchdog") && thread.isAlive());
+    }
+  }
+
+  /**
+   * Check the watchdog sends the safe response, rather than failing, when a clock throws an
+   * exception, and then carries on with the same controller restored in place.
+   */
+  @Test
+  public void safetytest_21() {
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    boolean[] failing = new boolean[1];
+    int[] clocks = new int[1];
+    MySteamBoilerController controller = new MySteamBoilerController(config) {
+      @Override
+      public void clock(Mailbox incoming, Mailbox outgoing) {
+        clocks[0]++;
+        super.clock(incoming, outgoing);
+        if (failing[0]) {
+          throw new IllegalStateException("failed after responding");
+        }
+      }
+    };
+    try (WatchdogController watchdog = new WatchdogController(controller, config, 1000, 3)) {
+      PhysicalUnits model = new PhysicalUnits.Template(config).construct();
+      model.setMode(PhysicalUnits.Mode.WAITING);
+      for (int t = 0; t < 120000; t += 5000) {
+        clockWatchdog(watchdog, model);
+      }
+      assertEquals("NORMAL", watchdog.getStatusMessage());
+      failing[0] = true;
+      Mailbox output = clockWatchdog(watchdog, model);
+      assertEquals(1, watchdog.getOverruns());
+      assertTrue(MODE_normal.match(output) >= 0);
+      failing[0] = false;
+      int before = clocks[0];
+      output = clockWatchdog(watchdog, model);
+      assertEquals(0, watchdog.getOverruns());
+      assertEquals(before + 1, clocks[0]);
+      assertTrue(MODE_normal.match(output) >= 0);
+      assertEquals("NORMAL", watchdog.getStatusMessage());
+    }
+  }
+
+  private static Mailbox clockWatchdog(WatchdogController watchdog, PhysicalUnits model) {
+    for (int elapsed = 0; elapsed < 5000; elapsed += 100) {
+      model.clock(100);
+    }
+    Mailbox input = new UnboundedMailbox(100);
+    Mailbox output = new UnboundedMailbox(100);
+    model.transmit(input);
+    watchdog.clock(input, output);
+    model.receive(output);
+    return output;
+  }
+
+  // ======================================================================
+  // Memory
+  // ======================================================================
+
+  /**
+   * Check nothing reachable from the controller's clock allocates, other than methods annotated
+   * as initialisation, and that the watchdog only allocates to reject a checkpoint which does not
+   * match its controller. The one call left is the scheduler handing its evaluation to a fork/join
+   * pool, which can allocate as the pool's queues grow. That is only used when the scheduler has
+   * been set up to run in parallel. A fixture which allocates on purpose checks allocations are
+   * actually found.
+   */
+  @Test
+  public void safetytest_18() {
+    for (String site : AllocationVerifier.verify(MySteamBoilerController.class, "clock")) {
+      assertEquals(site, "ModelPredictiveScheduler.schedule", site.substring(0, site.indexOf(':')));
+      assertTrue(site, site.endsWith("call to ForkJoinPool.invoke"));
+    }
+    for (String site : AllocationVerifier.verify(WatchdogController.class, "clock")) {
+      assertTrue(site, site.startsWith("MySteamBoilerController.restore:")
+          || site.startsWith("MySteamBoilerController.getCheckpoint:"));
+    }
+    String sites = String.join("\n", AllocationVerifier.verify(AllocationFixture.class, "clock"));
+    assertTrue(sites, sites.contains("AllocationFixture.clock:") && sites.contains(": new "));
+    assertTrue(sites, sites.contains("AllocationFixture$CopyingCounter.count:"));
+    assertTrue(sites, sites.contains("call to String.valueOf"));
+  }
+
+  /**
+   * Check one controller allocates nothing on any path once warmed up, whilst being taken through
+   * every tolerable fault and its repair twice over. Episodes are ten minutes of plant time to
+   * keep this quick. See {@link Soak} for the full length run. The only emergency stops allowed
+   * are for STEAM_STUCK_ZERO, which is the known failure left out of safetytest_13.
+   */
+  @Test
+  public void safetytest_19() {
+    Soak soak = new Soak(SteamBoilerCharacteristics.DEFAULT, 120);
+    Soak.Report report = soak.run(2 * soak.getWarmupEpisodes());
+    for (HardwareFault f : report.emergencyStops) {
+      assertEquals(report.toString(), HardwareFault.STEAM_STUCK_ZERO, f);
+    }
+    assertEquals(report.toString(), 0, report.getRecurringAllocation());
+    assertTrue(report.toString(), !report.isHeapGrowing());
+  }
 }
@@ -0,0 +1,137 @@
+package steam.boiler.tests;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import steam.boiler.core.MySteamBoilerController;
+import steam.boiler.model.PhysicalUnits;
+import steam.boiler.util.Mailbox;
+import steam.boiler.util.SteamBoilerCharacteristics;
+import steam.boiler.util.UnboundedMailbox;
+
+/**
+ * A snapshot of a controller after a common prefix (e.g. booting to normal mode), from which
+ * independent copies of the controller can be forked. Forking a controller only copies its state,
+ * so the controller's share of the prefix is run once however many forks are taken.
+ *
+ * <p>
+ * The physical units are not covered by this. They provide no way of copying themselves or of
+ * restoring their state (e.g. the time into the steam ramp), so the units for a fork can only be
+ * rebuilt by replaying the recorded controller commands from the prefix. That replay does all of
+ * the prefix's physics again, so forking <code>N</code> whole systems still costs <code>N</code>
+ * times the prefix's physics, and only the controller's work is saved. {@link Benchmarks#forking}
+ * measures both parts.
+ * </p>
+ *
+ * @author eliza
+ *
+ */
+public class SimulationSnapshot {
+  private final SteamBoilerCharacteristics config;
+  private final MySteamBoilerController controller;
+  /**
+   * The messages sent by the controller on each tick of the prefix.
+   */
+  private final Mailbox[] commands;
+  private final int time;
+
+  private SimulationSnapshot(SteamBoilerCharacteristics config,
+      MySteamBoilerController controller, Mailbox[] commands, int time) {
+    this.config = config;
+    this.controller = controller;
+    this.commands = commands;
+    this.time = time;
+  }
+
+  /**
+   * A forked copy of the system, which can be clocked independently of any other fork.
+   */
+  public static final class Fork {
+    public final MySteamBoilerController controller;
+    public final PhysicalUnits model;
+
+    private Fork(MySteamBoilerController controller, PhysicalUnits model) {
+      this.controller = controller;
+      this.model = model;
+    }
+  }
+
+  /**
+   * Start a fresh system and clock it for a given amount of time before taking a snapshot. This
+   * follows the same schedule as {@link TestUtils#clockForWithout}, so a fork behaves exactly as a
+   * system clocked using that would.
+   *
+   * @param config
+   *          The boiler characteristics to use.
+   * @param time
+   *          The length of the prefix (in seconds).
+   * @return the snapshot at the end of the prefix
+   */
+  public static SimulationSnapshot capture(SteamBoilerCharacteristics config, int time) {
+    final int granularity = 100; // ms
+    MySteamBoilerController controller = new MySteamBoilerController(config);
+    PhysicalUnits model = new PhysicalUnits.Template(config).construct();
+    model.setMode(PhysicalUnits.Mode.WAITING);
+    List<Mailbox> commands = new ArrayList<>();
+    for (int totalElapsed = 0; totalElapsed < time * 1000; totalElapsed += granularity) {
+      Mailbox received = TestUtils.clock(granularity, totalElapsed, controller, model);
+      if (received != null) {
+        commands.add(received);
+      }
+    }
+    return new SimulationSnapshot(config, controller, commands.toArray(new Mailbox[0]), time);
+  }
+
+  /**
+   * Get the length of the prefix.
+   *
+   * @return the prefix length (in seconds)
+   */
+  public int getTime() {
+    return this.time;
+  }
+
+  /**
+   * Fork an independent copy of the controller in the state it was in when the snapshot was taken.
+   * This only copies the controller's state, and can safely be called from several threads at once.
+   *
+   * @return the new controller
+   */
+  public MySteamBoilerController forkController() {
+    return new MySteamBoilerController(this.controller);
+  }
+
+  /**
+   * Rebuild the physical units in the state they were in when the snapshot was taken, by replaying
+   * the controller commands from the prefix. This takes as long as simulating the physics of the
+   * whole prefix. It can safely be called from several threads at once.
+   *
+   * @return the rebuilt physical units
+   */
+  public PhysicalUnits replayModel() {
+    final int granularity = 100; // ms
+    PhysicalUnits model = new PhysicalUnits.Template(this.config).construct();
+    model.setMode(PhysicalUnits.Mode.WAITING);
+    int tick = 0;
+    for (int totalElapsed = 0; totalElapsed < this.time * 1000; totalElapsed += granularity) {
+      model.clock(granularity);
+      if ((totalElapsed % this.controller.getPeriod()) == 0) {
+        // Readings are discarded, since the controller's response is already known.
+        model.transmit(new UnboundedMailbox(100));
+        model.receive(this.commands[tick++]);
+      }
+    }
+    return model;
+  }
+
+  /**
+   * Fork an independent copy of the whole system in the state it was in when the snapshot was
+   * taken. The controller is copied, but the physical units are replayed (see
+   * {@link #replayModel()}). This can safely be called from several threads at once.
+   *
+   * @return the new fork
+   */
+  public Fork fork() {
+    return new Fork(forkController(), replayModel());
+  }
+}
@@ -0,0 +1,287 @@
+package steam.boiler.tests;
+
+import static steam.boiler.tests.TestUtils.MODE_emergencystop;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import steam.boiler.core.HardwareFault;
+import steam.boiler.core.MySteamBoilerController;
+import steam.boiler.model.PhysicalUnits;
+import steam.boiler.util.Mailbox;
+import steam.boiler.util.SteamBoilerCharacteristics;
+import steam.boiler.util.UnboundedMailbox;
+
+/**
+ * Drives one controller and one boiler for a very large number of ticks, looking for allocation or
+ * heap growth which would only show up after weeks of operation. The run is split into episodes (of
+ * an hour of plant time by default). Alternate episodes are left ideal, and the others have the
+ * next tolerable {@link HardwareFault} injected at the start and repaired half way through, so the
+ * controller goes through every fault and recovery in turn without being restarted. The first
+ * pass through every fault is used to warm up, since the first time each path through the
+ * controller runs can allocate whilst the JVM links it. After that, bytes allocated by the thread
+ * are measured around every call to {@link MySteamBoilerController#clock}, and heap occupancy is
+ * sampled after a collection at the end of every episode. If the controller emergency stops, the
+ * fault is recorded and the rest of the episode is abandoned, and the next episode starts again
+ * with a new controller and boiler, so that the remaining faults are still gone through.
+ *
+ * <p>
+ * This is intended to be run from the command line in a small heap (e.g. <code>-Xmx32m</code>),
+ * where a leak fails quickly rather than being absorbed by a large heap.
+ * </p>
+ *
+ * @author eliza
+ *
+ */
+public class Soak {
+  /**
+   * Default number of ticks in each episode, which is one hour of plant time.
+   */
+  public static final int EPISODE_TICKS = 720;
+
+  /**
+   * Growth in heap occupancy (in bytes) below which samples are considered noise.
+   */
+  public static final long HEAP_TOLERANCE = 1024 * 1024;
+
+  /**
+   * The outcome of a soak run.
+   */
+  public static final class Report {
+    public final long ticks;
+    public final long allocated;
+    public final long[] heap;
+
+    /**
+     * Bytes allocated during each episode, and the number of episodes in one pass through every
+     * fault.
+     */
+    public final long[] episodes;
+    public final int pass;
+
+    /**
+     * The fault injected most recently before each emergency stop, in the order they happened.
+     */
+    public final List<HardwareFault> emergencyStops;
+
+    Report(long ticks, long[] episodes, int pass, long[] heap,
+        List<HardwareFault> emergencyStops) {
+      long total = 0;
+      for (long bytes : episodes) {
+        total += bytes;
+      }
+      this.ticks = ticks;
+      this.allocated = total;
+      this.episodes = episodes;
+      this.pass = pass;
+      this.heap = heap;
+      this.emergencyStops = Collections.unmodifiableList(new ArrayList<>(emergencyStops));
+    }
+
+    /**
+     * Get the bytes allocated during episodes which allocated again on the next pass through the
+     * same fault. An allocation by the controller happens every time the same path runs, whereas
+     * the JIT can still allocate a few bytes at any point whilst it recompiles. This is only
+     * meaningful over at least two passes.
+     *
+     * @return bytes allocated which recurred
+     */
+    public long getRecurringAllocation() {
+      long recurring = 0;
+      for (int i = 0; i + this.pass < this.episodes.length; i++) {
+        if (this.episodes[i] > 0 && this.episodes[i + this.pass] > 0) {
+          recurring += this.episodes[i];
+        }
+      }
+      return recurring;
+    }
+
+    /**
+     * Check whether heap occupancy grew throughout the run. That is, every sample is at least the
+     * one before, and the total growth is above {@link Soak#HEAP_TOLERANCE}.
+     *
+     * @return true if the heap grew monotonically
+     */
+    public boolean isHeapGrowing() {
+      if (this.heap.length < 2) {
+        return false;
+      }
+      for (int i = 1; i < this.heap.length; i++) {
+        if (this.heap[i] < this.heap[i - 1]) {
+          return false;
+        }
+      }
+      return this.heap[this.heap.length - 1] - this.heap[0] > HEAP_TOLERANCE;
+    }
+
+    @Override
+    public String toString() {
+      return this.ticks + " ticks, " + this.allocated + " bytes allocated in steady state ("
+          + getRecurringAllocation() + " recurring), heap " + Arrays.toString(this.heap)
+          + (this.emergencyStops.isEmpty() ? "" : ", emergency stops after " + this.emergencyStops);
+    }
+  }
+
+  private final SteamBoilerCharacteristics config;
+  private final int episodeTicks;
+  private final com.sun.management.ThreadMXBean threads;
+  private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+  private final HardwareFault[] faults;
+
+  /**
+   * Construct a soak harness with episodes of an hour.
+   *
+   * @param config
+   *          The boiler characteristics to use.
+   */
+  public Soak(SteamBoilerCharacteristics config) {
+    this(config, EPISODE_TICKS);
+  }
+
+  /**
+   * Construct a soak harness going through every tolerable fault.
+   *
+   * @param config
+   *          The boiler characteristics to use.
+   * @param episodeTicks
+   *          Number of ticks in each episode, which must leave time to recover from each fault.
+   */
+  public Soak(SteamBoilerCharacteristics config, int episodeTicks) {
+    this(config, episodeTicks, tolerable());
+  }
+
+  /**
+   * Construct a soak harness.
+   *
+   * @param config
+   *          The boiler characteristics to use.
+   * @param episodeTicks
+   *          Number of ticks in each episode, which must leave time to recover from each fault.
+   * @param faults
+   *          The faults to inject in turn, each of which must be repairable.
+   */
+  public Soak(SteamBoilerCharacteristics config, int episodeTicks, HardwareFault... faults) {
+    this.config = config;
+    this.episodeTicks = episodeTicks;
+    this.faults = faults.clone();
+    this.threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    if (!this.threads.isThreadAllocatedMemorySupported()) {
+      throw new IllegalStateException("thread allocation measurement not supported");
+    }
+    this.threads.setThreadAllocatedMemoryEnabled(true);
+  }
+
+  private static HardwareFault[] tolerable() {
+    List<HardwareFault> faults = new ArrayList<>();
+    for (HardwareFault f : HardwareFault.values()) {
+      if (f.isTolerable()) {
+        faults.add(f);
+      }
+    }
+    return faults.toArray(new HardwareFault[faults.size()]);
+  }
+
+  /**
+   * Get the number of episodes used to warm up, which covers every fault once. This is also the
+   * number of episodes in each pass through the faults.
+   *
+   * @return number of warm up episodes
+   */
+  public int getWarmupEpisodes() {
+    return 2 * this.faults.length;
+  }
+
+  /**
+   * Run a given number of episodes after warming up.
+   *
+   * @param episodes
+   *          Number of episodes to measure.
+   * @return the report
+   */
+  public Report run(int episodes) {
+    long overhead = calibrate();
+    int warmup = getWarmupEpisodes();
+    int ticks = this.episodeTicks;
+    long[] allocated = new long[episodes];
+    long[] heap = new long[episodes];
+    long measuredTicks = 0;
+    List<HardwareFault> stops = new ArrayList<>();
+    Mailbox[] inputs = new Mailbox[ticks];
+    Mailbox[] outputs = new Mailbox[ticks];
+    MySteamBoilerController controller = new MySteamBoilerController(this.config);
+    PhysicalUnits model = new PhysicalUnits.Template(this.config).construct();
+    model.setMode(PhysicalUnits.Mode.WAITING);
+    for (int episode = 0; episode < warmup + episodes; episode++) {
+      // Everything the harness and model need is allocated up front, outside the measurements.
+      for (int tick = 0; tick < ticks; tick++) {
+        inputs[tick] = new UnboundedMailbox(100);
+        outputs[tick] = new UnboundedMailbox(100);
+      }
+      int n = episode / 2;
+      HardwareFault fault = this.faults[n % this.faults.length];
+      int pumpNo = n % this.config.getNumberOfPumps();
+      for (int tick = 0; tick < ticks; tick++) {
+        if ((episode % 2) == 1 && tick == 0) {
+          fault.inject(model, this.config, pumpNo);
+        } else if ((episode % 2) == 1 && tick == ticks / 2) {
+          fault.repair(model, this.config, pumpNo);
+        }
+        for (int elapsed = 0; elapsed < controller.getPeriod();
+            elapsed += FaultCampaign.GRANULARITY) {
+          model.clock(FaultCampaign.GRANULARITY);
+        }
+        model.transmit(inputs[tick]);
+        long before = this.threads.getCurrentThreadAllocatedBytes();
+        controller.clock(inputs[tick], outputs[tick]);
+        long bytes = this.threads.getCurrentThreadAllocatedBytes() - before - overhead;
+        if (episode >= warmup) {
+          measuredTicks++;
+          if (bytes > 0) {
+            allocated[episode - warmup] += bytes;
+          }
+        }
+        if (MODE_emergencystop.match(outputs[tick]) >= 0) {
+          stops.add(fault);
+          controller = new MySteamBoilerController(this.config);
+          model = new PhysicalUnits.Template(this.config).construct();
+          model.setMode(PhysicalUnits.Mode.WAITING);
+          break;
+        }
+        model.receive(outputs[tick]);
+      }
+      if (episode >= warmup) {
+        System.gc();
+        heap[episode - warmup] = this.memory.getHeapMemoryUsage().getUsed();
+      }
+    }
+    return new Report(measuredTicks, allocated, warmup, heap, stops);
+  }
+
+  /**
+   * Determine how many bytes are reported as allocated by the measurement itself.
+   */
+  private long calibrate() {
+    long overhead = Long.MAX_VALUE;
+    for (int i = 0; i < 1000; i++) {
+      long before = this.threads.getCurrentThreadAllocatedBytes();
+      overhead = Math.min(overhead, this.threads.getCurrentThreadAllocatedBytes() - before);
+    }
+    return overhead;
+  }
+
+  public static void main(String[] args) {
+    // Default to roughly a million ticks, which is two months of plant time.
+    int episodes = args.length > 0 ? Integer.parseInt(args[0]) : 1400;
+    Report report = new Soak(SteamBoilerCharacteristics.DEFAULT).run(episodes);
+    System.out.println(report);
+    if (report.getRecurringAllocation() > 0 || report.isHeapGrowing()
+        || !report.emergencyStops.isEmpty()) {
+      System.out.println("FAILED");
+      System.exit(1);
+    }
+  }
+}
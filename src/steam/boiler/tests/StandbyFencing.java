@@ -0,0 +1,159 @@
+package steam.boiler.tests;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import steam.boiler.core.MySteamBoilerController;
+import steam.boiler.core.StandbyController;
+import steam.boiler.core.StateMirror;
+import steam.boiler.model.PhysicalUnits;
+import steam.boiler.util.Mailbox;
+import steam.boiler.util.SteamBoilerCharacteristics;
+import steam.boiler.util.UnboundedMailbox;
+
+/**
+ * Checks that a primary running in another process is fenced off once a backup has taken over
+ * from it. The primary is a {@link StandbyProcess}, which is paused with <code>kill -STOP</code>
+ * (rather than killed) until the backup is active, so that it resumes with <code>kill -CONT</code>
+ * believing it is still in charge. It must then step down without sending anything more than the
+ * response it was already part way through printing when it was paused. This depends on real
+ * time and POSIX signals, so is run by hand rather than as part of the tests, which check the same
+ * fencing in a single process.
+ *
+ * @author eliza
+ *
+ */
+public class StandbyFencing {
+  private final SteamBoilerCharacteristics config;
+
+  /**
+   * Construct a harness for a given configuration.
+   *
+   * @param config
+   *          The boiler characteristics the primary and backup are built from.
+   */
+  public StandbyFencing(SteamBoilerCharacteristics config) {
+    this.config = config;
+  }
+
+  /**
+   * Start a primary in another process, replace it with a backup in this one, and let it resume.
+   *
+   * @return null if the primary was fenced off, otherwise a description of what went wrong
+   * @throws IOException
+   *           if the mirror or the primary's process could not be set up
+   * @throws InterruptedException
+   *           if interrupted whilst waiting on the primary
+   */
+  public String run() throws IOException, InterruptedException {
+    Path file = Files.createTempFile("steam-boiler", ".state");
+    int size = new MySteamBoilerController(this.config).getCheckpoint().length;
+    Process child = new ProcessBuilder(
+        Paths.get(System.getProperty("java.home"), "bin", "java").toString(), "-cp",
+        System.getProperty("java.class.path"), StandbyProcess.class.getName(), file.toString())
+            .redirectErrorStream(true).start();
+    BlockingQueue<String> lines = new LinkedBlockingQueue<>();
+    Thread reader = new Thread(() -> {
+      try (BufferedReader in = new BufferedReader(
+          new InputStreamReader(child.getInputStream(), StandardCharsets.UTF_8))) {
+        String line;
+        while ((line = in.readLine()) != null) {
+          lines.add(line);
+        }
+      } catch (IOException e) {
+        // Child has gone
+      }
+    });
+    reader.setDaemon(true);
+    reader.start();
+    try (StateMirror mirror = new StateMirror(file, size)) {
+      StandbyController backup = new StandbyController(this.config, mirror,
+          StandbyController.Role.BACKUP);
+      PhysicalUnits model = new PhysicalUnits.Template(this.config).construct();
+      model.setMode(PhysicalUnits.Mode.WAITING);
+      String first = lines.poll(30, TimeUnit.SECONDS);
+      if (!"SENT".equals(first)) {
+        return "primary did not start (" + first + ")";
+      }
+      // Backup tails the primary whilst it is running
+      for (int i = 0; i != 10; ++i) {
+        Thread.sleep(StandbyProcess.INTERVAL * 4);
+        if (clock(backup, model).size() != 0 || backup.isActive()) {
+          return "backup took over from a running primary";
+        }
+      }
+      signal(child, "STOP");
+      for (int i = 0; i != 10 && !backup.isActive(); ++i) {
+        Thread.sleep(StandbyProcess.INTERVAL * 4);
+        clock(backup, model);
+      }
+      if (!backup.isActive() || clock(backup, model).size() == 0) {
+        return "backup did not take over from a paused primary";
+      }
+      lines.clear();
+      signal(child, "CONT");
+      int sent = 0;
+      String line;
+      while (!"STANDBY".equals(line = lines.poll(30, TimeUnit.SECONDS))) {
+        if (line == null) {
+          return "primary did not step down";
+        } else if (line.equals("SENT")) {
+          sent++;
+        }
+      }
+      return sent <= 1 ? null : "primary sent " + sent + " responses after being replaced";
+    } finally {
+      child.destroyForcibly().waitFor();
+      Files.delete(file);
+    }
+  }
+
+  private static Mailbox clock(StandbyController controller, PhysicalUnits model) {
+    for (int elapsed = 0; elapsed < 5000; elapsed += 100) {
+      model.clock(100);
+    }
+    Mailbox input = new UnboundedMailbox(100);
+    Mailbox output = new UnboundedMailbox(100);
+    model.transmit(input);
+    controller.clock(input, output);
+    model.receive(output);
+    return output;
+  }
+
+  private static void signal(Process process, String signal)
+      throws IOException, InterruptedException {
+    Process kill = new ProcessBuilder("kill", "-" + signal, Long.toString(process.pid()))
+        .inheritIO().start();
+    if (kill.waitFor() != 0) {
+      throw new IOException("kill -" + signal + " failed");
+    }
+  }
+
+  /**
+   * Run the harness once with the default characteristics, exiting with a non-zero status if the
+   * primary was not fenced off.
+   *
+   * @param args
+   *          Ignored.
+   * @throws IOException
+   *           if the mirror or the primary's process could not be set up
+   * @throws InterruptedException
+   *           if interrupted whilst waiting on the primary
+   */
+  public static void main(String[] args) throws IOException, InterruptedException {
+    String failure = new StandbyFencing(SteamBoilerCharacteristics.DEFAULT).run();
+    if (failure != null) {
+      System.out.println("FAILED: " + failure);
+      System.exit(1);
+    }
+    System.out.println("primary fenced off");
+  }
+}
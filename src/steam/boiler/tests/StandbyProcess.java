@@ -0,0 +1,72 @@
+package steam.boiler.tests;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import steam.boiler.core.MySteamBoilerController;
+import steam.boiler.core.StandbyController;
+import steam.boiler.core.StateMirror;
+import steam.boiler.model.PhysicalUnits;
+import steam.boiler.util.Mailbox;
+import steam.boiler.util.SteamBoilerCharacteristics;
+import steam.boiler.util.UnboundedMailbox;
+
+/**
+ * Runs a primary {@link StandbyController} in a process of its own, so that
+ * {@link StandbyFencing} can stall or kill it for real. It is clocked every {@link #INTERVAL}
+ * milliseconds of real time against a boiler of its own, and prints one line per clock:
+ * <code>SENT</code> if it sent anything, <code>STANDBY</code> if it has stepped down, and
+ * <code>IDLE</code> otherwise. It exits after {@link #LIFETIME} milliseconds, in case whoever
+ * started it does not stop it.
+ *
+ * @author eliza
+ *
+ */
+public class StandbyProcess {
+  /**
+   * Real time (in ms) between clocks.
+   */
+  public static final int INTERVAL = 50;
+
+  /**
+   * Real time (in ms) after which the process exits of its own accord.
+   */
+  public static final long LIFETIME = 60000;
+
+  /**
+   * Run a primary controller sharing state through the given file.
+   *
+   * @param args
+   *          The path of the file to map.
+   * @throws IOException
+   *           if the file could not be mapped
+   * @throws InterruptedException
+   *           if interrupted whilst waiting for the next clock
+   */
+  public static void main(String[] args) throws IOException, InterruptedException {
+    SteamBoilerCharacteristics config = SteamBoilerCharacteristics.DEFAULT;
+    Path file = Paths.get(args[0]);
+    int size = new MySteamBoilerController(config).getCheckpoint().length;
+    try (StateMirror mirror = new StateMirror(file, size)) {
+      StandbyController primary = new StandbyController(config, mirror,
+          StandbyController.Role.PRIMARY);
+      PhysicalUnits model = new PhysicalUnits.Template(config).construct();
+      model.setMode(PhysicalUnits.Mode.WAITING);
+      long end = System.currentTimeMillis() + LIFETIME;
+      while (System.currentTimeMillis() < end) {
+        for (int elapsed = 0; elapsed < 5000; elapsed += 100) {
+          model.clock(100);
+        }
+        Mailbox input = new UnboundedMailbox(100);
+        Mailbox output = new UnboundedMailbox(100);
+        model.transmit(input);
+        primary.clock(input, output);
+        model.receive(output);
+        System.out.println(!primary.isActive() ? "STANDBY" : output.size() > 0 ? "SENT" : "IDLE");
+        System.out.flush();
+        Thread.sleep(INTERVAL);
+      }
+    }
+  }
+}
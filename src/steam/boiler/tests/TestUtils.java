@@ -262,8 +262,9 @@ public class TestUtils {
 
   /**
    * Clock the combined system for a given amount of time. This sends and receives messages between
-   * the two components when the total time elapsed is a multiple of five seconds. Messages received
-   * from the controller are return (when available) so they can be inspected for certain events.
+   * the two components when the total time elapsed is a multiple of the controller's period (five
+   * seconds by default). Messages received from the controller are return (when available) so they
+   * can be inspected for certain events.
    *
    * @param elapsed
    *          The elapsed time (in microseconds) since the last clock.
@@ -280,9 +281,9 @@ public class TestUtils {
   public static Mailbox clock(int elapsed, int totalElapsed, MySteamBoilerController controller,
       PhysicalUnits physicalUnits) {
     physicalUnits.clock(elapsed);
-    // After every five seconds has elapsed we allow the controller and physical units to
+    // After every period has elapsed we allow the controller and physical units to
     // synchronise (i.e. transmit messages between them).
-    if ((totalElapsed % 5000) == 0) {
+    if ((totalElapsed % controller.getPeriod()) == 0) {
       Mailbox input = new UnboundedMailbox(100);
       Mailbox output = new UnboundedMailbox(100);
       // Generation messages for controller from model